@@ -12,6 +12,7 @@ import org.opencv.core.Core;
 import org.opencv.core.Mat;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * Глобальный bundle adjustment для SfM.
@@ -27,6 +28,8 @@ public class BundleAdjuster {
     private final List<List<Point2D>> obs;
     private final List<List<String>> obsNames;
     private final Mat K;
+    /** Камеры с индексами от freeCameras и дальше не оптимизируются. */
+    private final int freeCameras;
     private double[] params;
 
     public BundleAdjuster(Map<String, Point3D> points,
@@ -37,6 +40,24 @@ public class BundleAdjuster {
                           Mat K,
                           int maxEv,
                           int maxIt) {
+        this(points, Rs, Ts, obs, obsNames, K, maxEv, maxIt, Rs.size());
+    }
+
+    /**
+     * Bundle adjustment with fixed cameras: only the first {@code freeCameras} poses are
+     * optimised, the rest take part with their observations but keep their poses, e.g. to
+     * anchor a local adjustment to the rest of the reconstruction.
+     */
+    public BundleAdjuster(Map<String, Point3D> points,
+                          List<Mat> Rs,
+                          List<Mat> Ts,
+                          List<List<Point2D>> obs,
+                          List<List<String>> obsNames,
+                          Mat K,
+                          int maxEv,
+                          int maxIt,
+                          int freeCameras) {
+        this.freeCameras = freeCameras;
         this.ptNames  = new ArrayList<>(points.keySet());
         this.Rs       = Rs;
         this.Ts       = Ts;
@@ -49,7 +70,7 @@ public class BundleAdjuster {
     }
 
     private void initParams(Map<String, Point3D> map) {
-        int nCam = Rs.size();
+        int nCam = freeCameras;
         int nPt  = ptNames.size();
         params = new double[nCam * 6 + nPt * 3];
         int idx = 0;
@@ -76,6 +97,10 @@ public class BundleAdjuster {
 
     public void optimize() {
         MultivariateJacobianFunction model = point -> {
+            // позволяет отменить долгую оптимизацию из фонового потока
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Bundle adjustment cancelled");
+            }
             double[] x = point.toArray();
             double[] residuals = computeResiduals(x);
             org.apache.commons.math3.linear.RealMatrix J = computeJacobian(x);
@@ -108,18 +133,24 @@ public class BundleAdjuster {
 
     private double[] computeResiduals(double[] p) {
         List<Double> res = new ArrayList<>();
-        int nCam = Rs.size();
+        int nCam = freeCameras;
         int idxCam = 0;
         int idxPt  = nCam * 6;
 
-        for (int i = 0; i < nCam; i++) {
+        for (int i = 0; i < Rs.size(); i++) {
             Mat rv = new Mat(3, 1, CvType.CV_64F);
-            rv.put(0,0, p[idxCam], p[idxCam+1], p[idxCam+2]);
             Mat R = new Mat();
-            Calib3d.Rodrigues(rv, R);
             Mat t = new Mat(3,1,CvType.CV_64F);
-            t.put(0,0, p[idxCam+3], p[idxCam+4], p[idxCam+5]);
-            idxCam += 6;
+            if (i < freeCameras) {
+                rv.put(0,0, p[idxCam], p[idxCam+1], p[idxCam+2]);
+                Calib3d.Rodrigues(rv, R);
+                t.put(0,0, p[idxCam+3], p[idxCam+4], p[idxCam+5]);
+                idxCam += 6;
+            } else {
+                // фиксированная камера: поза не входит в параметры
+                Rs.get(i).copyTo(R);
+                Ts.get(i).copyTo(t);
+            }
 
             List<Point2D> obsi = obs.get(i);
             List<String> nmsi    = obsNames.get(i);
@@ -168,7 +199,7 @@ public class BundleAdjuster {
     }
 
     public void updateCloudMap(Map<String, Point3D> map) {
-        int nCam = Rs.size();
+        int nCam = freeCameras;
         int idx  = nCam * 6;
         for (String name : ptNames) {
             double X = params[idx++];
@@ -178,6 +209,26 @@ public class BundleAdjuster {
         }
     }
 
+    /**
+     * Записывает оптимизированные позы камер обратно в списки R и t (по индексам камер);
+     * позы фиксированных камер не меняются.
+     */
+    public void updateCameras(List<Mat> rotations, List<Mat> translations) {
+        int idx = 0;
+        for (int i = 0; i < freeCameras; i++) {
+            Mat rvec = new Mat(3, 1, CvType.CV_64F);
+            rvec.put(0, 0, params[idx], params[idx + 1], params[idx + 2]);
+            Mat R = new Mat();
+            Calib3d.Rodrigues(rvec, R);
+            Mat t = new Mat(3, 1, CvType.CV_64F);
+            t.put(0, 0, params[idx + 3], params[idx + 4], params[idx + 5]);
+            idx += 6;
+            rotations.set(i, R);
+            translations.set(i, t);
+            rvec.release();
+        }
+    }
+
     private static Mat buildProjection(Mat K, Mat R, Mat t) {
         Mat Rt = Mat.zeros(3,4,CvType.CV_64F);
         R.copyTo(Rt.colRange(0,3));
@@ -0,0 +1,37 @@
+package model;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Набор правок проекта с момента последней реконструкции.
+ * Правки точек (перемещение, добавление наблюдения) затрагивают только
+ * треки с этими именами; добавление изображений требует полной перестройки.
+ */
+public class ChangeSet {
+    private final Set<String> pointNames = new HashSet<>();
+    private boolean structural;
+
+    /** Marks the track with this name as edited. */
+    public void pointChanged(String pointName) {
+        pointNames.add(pointName);
+    }
+
+    /** Marks a change the incremental path cannot handle, e.g. a new image. */
+    public void structureChanged() {
+        structural = true;
+    }
+
+    public Set<String> getPointNames() {
+        return Collections.unmodifiableSet(pointNames);
+    }
+
+    public boolean requiresFullRebuild() {
+        return structural;
+    }
+
+    public boolean isEmpty() {
+        return !structural && pointNames.isEmpty();
+    }
+}
@@ -0,0 +1,35 @@
+package model;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Неизменяемое изменение облака точек между двумя снимками реконструкции:
+ * какие точки появились или сдвинулись и какие были удалены.
+ * Позволяет панели просмотра обновляться, не копируя всё облако.
+ */
+@Getter
+public class CloudDelta {
+    /** Monotonic number of the snapshot this delta leads to. */
+    private final long version;
+    private final ReconstructionProgress.Stage stage;
+    /** New or moved points, by name. */
+    private final Map<String, Point3D> upserted;
+    private final Set<String> removed;
+
+    CloudDelta(long version, ReconstructionProgress.Stage stage,
+               Map<String, Point3D> upserted, Set<String> removed) {
+        this.version = version;
+        this.stage = stage;
+        this.upserted = Collections.unmodifiableMap(new LinkedHashMap<>(upserted));
+        this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    public boolean isEmpty() {
+        return upserted.isEmpty() && removed.isEmpty();
+    }
+}
@@ -0,0 +1,32 @@
+package model;
+
+import lombok.Data;
+
+/**
+ * Пороги выбора стратегии сопоставления для COLMAP-пайплайна.
+ */
+@Data
+public class ColmapMatchingOptions {
+    /** Projects with at most this many images match all pairs. */
+    private int exhaustiveMaxImages = 100;
+
+    /** Spatial matching is used when every image has an EXIF GPS position. */
+    private boolean useGps = true;
+    /** Spatial: nearest images matched with each image, and their maximum distance in metres. */
+    private int spatialNeighbours = 20;
+    private double spatialMaxDistance = 100;
+
+    /**
+     * Sequential matching is used when the file names carry frame numbers that increase
+     * in steps of at most this much (median step).
+     */
+    private int sequentialMaxStep = 2;
+    /** Sequential: each image is matched with this many following images. */
+    private int sequentialOverlap = 10;
+    /** Sequential: every N-th image is also matched with its most similar images (loop closure); 0 disables. */
+    private int loopDetectionPeriod = 10;
+    private int loopDetectionTopN = 20;
+
+    /** Vocabulary-tree retrieval: most similar images matched with each image. */
+    private int retrievalTopN = 20;
+}
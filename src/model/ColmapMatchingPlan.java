@@ -0,0 +1,216 @@
+package model;
+
+import lombok.Getter;
+import model.features.FeatureCache;
+import model.features.FeatureOptions;
+import model.features.ImageFeatures;
+import model.features.ImageRetrieval;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Выбор пар изображений для COLMAP по размеру проекта и метаданным съёмки:
+ * <ul>
+ *     <li>небольшой проект — все пары;</li>
+ *     <li>у всех снимков есть GPS — ближайшие соседи по координатам;</li>
+ *     <li>упорядоченная съёмка (номера кадров в именах) — соседние кадры плюс поиск петель;</li>
+ *     <li>иначе — самые похожие по словарному дереву.</li>
+ * </ul>
+ */
+@Getter
+final class ColmapMatchingPlan {
+
+    enum Strategy {
+        EXHAUSTIVE, SPATIAL, SEQUENTIAL, VOCAB_TREE
+    }
+
+    /** Last run of digits in a file name without extension: the frame number. */
+    private static final Pattern FRAME_NUMBER = Pattern.compile("(\\d+)\\D*$");
+    private static final double EARTH_RADIUS = 6_371_000;
+
+    private final Strategy strategy;
+    private final int images;
+    /** Unordered pairs of source image paths. */
+    private final List<String[]> pairs;
+
+    private ColmapMatchingPlan(Strategy strategy, int images, List<String[]> pairs) {
+        this.strategy = strategy;
+        this.images = images;
+        this.pairs = pairs;
+    }
+
+    /**
+     * Picks the strategy for the images and lists their pairs. Image retrieval is queried
+     * only for {@code newImages}: pairs among the other images were matched by earlier runs.
+     *
+     * @param workspace retrieval features are cached in it by image content
+     */
+    static ColmapMatchingPlan plan(ImageProcessor proc, List<String> imagePaths, Set<String> newImages,
+                                   ColmapWorkspace workspace, ColmapMatchingOptions options) {
+        int n = imagePaths.size();
+        if (n <= options.getExhaustiveMaxImages()) {
+            return new ColmapMatchingPlan(Strategy.EXHAUSTIVE, n, exhaustive(imagePaths));
+        }
+        if (options.isUseGps()) {
+            Map<String, double[]> positions = new HashMap<>();
+            for (String imgPath : imagePaths) {
+                double[] gps = ExifGps.read(Path.of(imgPath));
+                if (gps == null) {
+                    break;
+                }
+                positions.put(imgPath, gps);
+            }
+            if (positions.size() == n) {
+                return new ColmapMatchingPlan(Strategy.SPATIAL, n, spatial(imagePaths, positions, options));
+            }
+        }
+        List<String> ordered = frameOrder(imagePaths, options.getSequentialMaxStep());
+        if (ordered != null) {
+            return new ColmapMatchingPlan(Strategy.SEQUENTIAL, n,
+                    sequential(proc, ordered, newImages, workspace, options));
+        }
+        ImageRetrieval retrieval = retrieval(proc, imagePaths, workspace);
+        return new ColmapMatchingPlan(Strategy.VOCAB_TREE, n,
+                retrieval.neighbourPairs(newImages, options.getRetrievalTopN()));
+    }
+
+    @Override
+    public String toString() {
+        long all = (long) images * (images - 1) / 2;
+        return String.format("%s for %d images: %d pairs (%.1f%% of %d exhaustive)",
+                strategy, images, pairs.size(), all == 0 ? 100.0 : 100.0 * pairs.size() / all, all);
+    }
+
+    private static List<String[]> exhaustive(List<String> imagePaths) {
+        List<String[]> pairs = new ArrayList<>();
+        for (int i = 0; i < imagePaths.size(); i++) {
+            for (int j = i + 1; j < imagePaths.size(); j++) {
+                pairs.add(new String[]{imagePaths.get(i), imagePaths.get(j)});
+            }
+        }
+        return pairs;
+    }
+
+    /** Each image with its nearest neighbours within the maximum distance. */
+    private static List<String[]> spatial(List<String> imagePaths, Map<String, double[]> gps,
+                                          ColmapMatchingOptions options) {
+        // локальная плоская проекция вокруг первого снимка достаточна для поиска соседей
+        double lat0 = Math.toRadians(gps.get(imagePaths.get(0))[0]);
+        int n = imagePaths.size();
+        double[][] xyz = new double[n][];
+        for (int i = 0; i < n; i++) {
+            double[] p = gps.get(imagePaths.get(i));
+            xyz[i] = new double[]{
+                    EARTH_RADIUS * Math.toRadians(p[1]) * Math.cos(lat0),
+                    EARTH_RADIUS * Math.toRadians(p[0]),
+                    p[2]};
+        }
+        double maxDist2 = options.getSpatialMaxDistance() * options.getSpatialMaxDistance();
+        Set<String> seen = new HashSet<>();
+        List<String[]> pairs = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            List<double[]> near = new ArrayList<>();
+            for (int j = 0; j < n; j++) {
+                double dx = xyz[i][0] - xyz[j][0], dy = xyz[i][1] - xyz[j][1], dz = xyz[i][2] - xyz[j][2];
+                double d2 = dx * dx + dy * dy + dz * dz;
+                if (j != i && d2 <= maxDist2) {
+                    near.add(new double[]{d2, j});
+                }
+            }
+            near.sort(Comparator.comparingDouble(a -> a[0]));
+            for (double[] e : near.subList(0, Math.min(options.getSpatialNeighbours(), near.size()))) {
+                addPair(imagePaths.get(i), imagePaths.get((int) e[1]), seen, pairs);
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Images sorted by frame number if every file name has one and the median step between
+     * consecutive frames is at most {@code maxStep}; otherwise {@code null}.
+     */
+    private static List<String> frameOrder(List<String> imagePaths, int maxStep) {
+        Map<String, Long> frames = new HashMap<>();
+        for (String imgPath : imagePaths) {
+            String name = Path.of(imgPath).getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            Matcher m = FRAME_NUMBER.matcher(dot > 0 ? name.substring(0, dot) : name);
+            if (!m.find() || m.group(1).length() > 18) {
+                return null;
+            }
+            frames.put(imgPath, Long.parseLong(m.group(1)));
+        }
+        List<String> ordered = new ArrayList<>(imagePaths);
+        ordered.sort(Comparator.comparingLong(frames::get));
+        long[] steps = new long[ordered.size() - 1];
+        for (int i = 1; i < ordered.size(); i++) {
+            steps[i - 1] = frames.get(ordered.get(i)) - frames.get(ordered.get(i - 1));
+        }
+        Arrays.sort(steps);
+        return steps.length > 0 && steps[steps.length / 2] <= maxStep ? ordered : null;
+    }
+
+    /**
+     * Consecutive frames, plus every N-th frame with its most similar images to close loops;
+     * only new frames are queried for loops.
+     */
+    private static List<String[]> sequential(ImageProcessor proc, List<String> ordered, Set<String> newImages,
+                                             ColmapWorkspace workspace, ColmapMatchingOptions options) {
+        Set<String> seen = new HashSet<>();
+        List<String[]> pairs = new ArrayList<>();
+        for (int i = 0; i < ordered.size(); i++) {
+            for (int j = i + 1; j <= Math.min(i + options.getSequentialOverlap(), ordered.size() - 1); j++) {
+                addPair(ordered.get(i), ordered.get(j), seen, pairs);
+            }
+        }
+        int period = options.getLoopDetectionPeriod();
+        boolean anyQuery = false;
+        for (int i = 0; period > 0 && i < ordered.size(); i += period) {
+            anyQuery |= newImages.contains(ordered.get(i));
+        }
+        if (anyQuery) {
+            ImageRetrieval retrieval = retrieval(proc, ordered, workspace);
+            for (int i = 0; i < ordered.size(); i += period) {
+                if (!newImages.contains(ordered.get(i))) {
+                    continue;
+                }
+                for (String other : retrieval.query(ordered.get(i), options.getLoopDetectionTopN())) {
+                    addPair(ordered.get(i), other, seen, pairs);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Vocabulary-tree index over small features of every image. They are cached by the
+     * content hash of the workspace manifest, so only images without cached features are
+     * decoded; entries of images no longer in the project are deleted.
+     */
+    private static ImageRetrieval retrieval(ImageProcessor proc, List<String> imagePaths,
+                                            ColmapWorkspace workspace) {
+        OpenCVSFMConstructor.ensureNativeLoaded();
+        FeatureOptions options = new FeatureOptions();
+        // для поиска хватает небольшого числа признаков на уменьшенном изображении
+        options.setMaxFeatures(1000);
+        options.setMaxImageSize(1024);
+
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (String imgPath : imagePaths) {
+            keys.put(imgPath, FeatureCache.key(workspace.contentHash(imgPath), options));
+        }
+        Map<String, ImageFeatures> features = FeatureCache.load(workspace.retrievalFeatures(), keys,
+                imgPath -> proc.getImage(imgPath).getPyramid(), options);
+        return ImageRetrieval.build(features.values(), options);
+    }
+
+    private static void addPair(String a, String b, Set<String> seen, List<String[]> pairs) {
+        String key = a.compareTo(b) < 0 ? a + "\n" + b : b + "\n" + a;
+        if (seen.add(key)) {
+            pairs.add(new String[]{a, b});
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Разреженная модель COLMAP (папка sparse/N), прочитанная напрямую из cameras.bin,
+ * images.bin и points3D.bin без model_converter: каждый файл целиком читается в кучу и
+ * разбирается как little-endian буфер.
+ */
+@Getter
+public class ColmapModel {
+
+    /** Parameters per COLMAP camera model id (SIMPLE_PINHOLE .. THIN_PRISM_FISHEYE). */
+    private static final int[] MODEL_PARAMS = {3, 4, 4, 5, 8, 8, 12, 5, 4, 5, 12};
+    /** Model ids whose parameters start with a single focal length {@code f, cx, cy}. */
+    private static final Set<Integer> SINGLE_FOCAL = Set.of(0, 2, 3, 8, 9);
+
+    @Getter
+    @AllArgsConstructor
+    public static class Camera {
+        private final int id;
+        private final int modelId;
+        private final long width;
+        private final long height;
+        private final double[] params;
+
+        /** {fx, fy, cx, cy}; distortion parameters are ignored. */
+        public double[] intrinsics() {
+            return SINGLE_FOCAL.contains(modelId)
+                    ? new double[]{params[0], params[0], params[1], params[2]}
+                    : new double[]{params[0], params[1], params[2], params[3]};
+        }
+    }
+
+    /** A registered image: world-to-camera pose and its 2D observations. */
+    @Getter
+    @AllArgsConstructor
+    public static class ImagePose {
+        private final int id;
+        private final String name;
+        private final int cameraId;
+        /** Rotation quaternion (w, x, y, z). */
+        private final double[] qvec;
+        private final double[] tvec;
+        /** Keypoint coordinates x0, y0, x1, y1, ...; pixel centres at +0.5 as in COLMAP. */
+        private final double[] xy;
+        /** 3D point of each keypoint, -1 if it is not triangulated. */
+        private final long[] point3DIds;
+
+        /** Row-major rotation matrix of {@link #qvec}. */
+        public double[][] rotation() {
+            double w = qvec[0], x = qvec[1], y = qvec[2], z = qvec[3];
+            return new double[][]{
+                    {1 - 2 * (y * y + z * z), 2 * (x * y - w * z), 2 * (x * z + w * y)},
+                    {2 * (x * y + w * z), 1 - 2 * (x * x + z * z), 2 * (y * z - w * x)},
+                    {2 * (x * z - w * y), 2 * (y * z + w * x), 1 - 2 * (x * x + y * y)}};
+        }
+
+        /** Camera centre in world coordinates, {@code -R^T t}. */
+        public double[] center() {
+            double[][] R = rotation();
+            double[] c = new double[3];
+            for (int i = 0; i < 3; i++) {
+                c[i] = -(R[0][i] * tvec[0] + R[1][i] * tvec[1] + R[2][i] * tvec[2]);
+            }
+            return c;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Point {
+        private final long id;
+        private final double x;
+        private final double y;
+        private final double z;
+        /** 0xRRGGBB. */
+        private final int rgb;
+        /** Mean reprojection error in pixels. */
+        private final double error;
+        /** Track: image id and keypoint index of every observation. */
+        private final int[] trackImages;
+        private final int[] trackPoints2D;
+    }
+
+    private final Map<Integer, Camera> cameras;
+    private final Map<Integer, ImagePose> images;
+    private final List<Point> points;
+
+    private ColmapModel(Map<Integer, Camera> cameras, Map<Integer, ImagePose> images, List<Point> points) {
+        this.cameras = cameras;
+        this.images = images;
+        this.points = points;
+    }
+
+    /** Reads a binary model directory as written by {@code colmap mapper}. */
+    public static ColmapModel read(Path modelDir) throws IOException {
+        try {
+            return new ColmapModel(
+                    readCameras(load(modelDir.resolve("cameras.bin"))),
+                    readImages(load(modelDir.resolve("images.bin"))),
+                    readPoints(load(modelDir.resolve("points3D.bin"))));
+        } catch (BufferUnderflowException | ArithmeticException e) {
+            throw new IOException("Truncated or corrupt COLMAP model in " + modelDir, e);
+        }
+    }
+
+    /** 3D points named by their COLMAP id. */
+    public List<Point3D> toPoint3D() {
+        List<Point3D> result = new ArrayList<>(points.size());
+        for (Point p : points) {
+            result.add(new Point3D(String.valueOf(p.id), p.x, p.y, p.z));
+        }
+        return result;
+    }
+
+    private static Map<Integer, Camera> readCameras(ByteBuffer buf) throws IOException {
+        long count = buf.getLong();
+        Map<Integer, Camera> cameras = new LinkedHashMap<>();
+        for (long i = 0; i < count; i++) {
+            int id = buf.getInt();
+            int model = buf.getInt();
+            if (model < 0 || model >= MODEL_PARAMS.length) {
+                throw new IOException("Unknown COLMAP camera model " + model + " of camera " + id);
+            }
+            long width = buf.getLong();
+            long height = buf.getLong();
+            double[] params = new double[MODEL_PARAMS[model]];
+            for (int k = 0; k < params.length; k++) {
+                params[k] = buf.getDouble();
+            }
+            cameras.put(id, new Camera(id, model, width, height, params));
+        }
+        return cameras;
+    }
+
+    private static Map<Integer, ImagePose> readImages(ByteBuffer buf) {
+        long count = buf.getLong();
+        Map<Integer, ImagePose> images = new LinkedHashMap<>();
+        for (long i = 0; i < count; i++) {
+            int id = buf.getInt();
+            double[] q = {buf.getDouble(), buf.getDouble(), buf.getDouble(), buf.getDouble()};
+            double[] t = {buf.getDouble(), buf.getDouble(), buf.getDouble()};
+            int cameraId = buf.getInt();
+            String name = readString(buf);
+            int n = Math.toIntExact(buf.getLong());
+            double[] xy = new double[2 * n];
+            long[] ids = new long[n];
+            for (int k = 0; k < n; k++) {
+                xy[2 * k] = buf.getDouble();
+                xy[2 * k + 1] = buf.getDouble();
+                ids[k] = buf.getLong();
+            }
+            images.put(id, new ImagePose(id, name, cameraId, q, t, xy, ids));
+        }
+        return images;
+    }
+
+    private static List<Point> readPoints(ByteBuffer buf) {
+        long count = buf.getLong();
+        List<Point> points = new ArrayList<>(Math.toIntExact(count));
+        for (long i = 0; i < count; i++) {
+            long id = buf.getLong();
+            double x = buf.getDouble(), y = buf.getDouble(), z = buf.getDouble();
+            int rgb = (buf.get() & 0xFF) << 16 | (buf.get() & 0xFF) << 8 | (buf.get() & 0xFF);
+            double error = buf.getDouble();
+            int length = Math.toIntExact(buf.getLong());
+            int[] trackImages = new int[length];
+            int[] trackPoints = new int[length];
+            for (int k = 0; k < length; k++) {
+                trackImages[k] = buf.getInt();
+                trackPoints[k] = buf.getInt();
+            }
+            points.add(new Point(id, x, y, z, rgb, error, trackImages, trackPoints));
+        }
+        return points;
+    }
+
+    /** Null-terminated UTF-8 string. */
+    private static String readString(ByteBuffer buf) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte b = buf.get(); b != 0; b = buf.get()) {
+            bytes.write(b);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the whole file into a heap buffer. The file is not mapped: a mapping is only
+     * released by the garbage collector, and on Windows the workspace could not be deleted
+     * before the next run while it is alive.
+     */
+    private static ByteBuffer load(Path file) throws IOException {
+        if (Files.size(file) > Integer.MAX_VALUE - 8) {
+            throw new IOException("COLMAP model file too large: " + file);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+}
@@ -0,0 +1,136 @@
+package model;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Совмещение моделей sparse/N, на которые COLMAP mapper разбил сцену, в систему координат
+ * самой большой из них.
+ * <p>
+ * Two models are tied by images registered in both (camera centres) and by 3D points that
+ * observe the same keypoint of the same image. As in {@link PartitionedSFMConstructor#merge},
+ * the model with the most ties to the merged set is aligned next with a robust Sim3; models
+ * with fewer than {@link #MIN_SHARED} ties to anything merged are returned separately.
+ */
+final class ColmapModelMerger {
+    private static final Logger LOGGER = Logger.getLogger(ColmapModelMerger.class.getName());
+
+    private static final int MIN_SHARED = 3;
+    private static final double SIM3_OUTLIER_FACTOR = 3.0;
+
+    private ColmapModelMerger() {
+    }
+
+    /**
+     * @param models models by their sparse directory number; points of model 0 keep their
+     *               COLMAP id as name, points of model N are named {@code N_<id>}
+     */
+    static ColmapResult merge(Map<Integer, ColmapModel> models) {
+        List<Integer> pending = new ArrayList<>(models.keySet());
+        pending.sort((a, b) -> Integer.compare(models.get(b).getImages().size(), models.get(a).getImages().size()));
+
+        int reference = pending.remove(0);
+        List<Point3D> cloud = new ArrayList<>(points(reference, models.get(reference), null));
+        // якоря объединённой модели: центры камер и наблюдения точек в её системе координат
+        Map<String, double[]> anchors = anchors(models.get(reference), null);
+        int merged = 1;
+
+        while (!pending.isEmpty()) {
+            int next = -1;
+            List<double[][]> bestPairs = Collections.emptyList();
+            for (int k : pending) {
+                List<double[][]> pairs = correspondences(anchors, models.get(k));
+                if (next < 0 || pairs.size() > bestPairs.size()) {
+                    next = k;
+                    bestPairs = pairs;
+                }
+            }
+            if (bestPairs.size() < MIN_SHARED) {
+                break;
+            }
+            pending.remove(Integer.valueOf(next));
+
+            List<double[]> src = new ArrayList<>(), dst = new ArrayList<>();
+            for (double[][] pair : bestPairs) {
+                src.add(pair[0]);
+                dst.add(pair[1]);
+            }
+            Sim3 sim = Sim3.estimateRobust(src, dst, SIM3_OUTLIER_FACTOR);
+            cloud.addAll(points(next, models.get(next), sim));
+            anchors.putAll(anchors(models.get(next), sim));
+            merged++;
+            LOGGER.info("Aligned COLMAP model " + next + " (" + models.get(next).getImages().size()
+                    + " images) through " + bestPairs.size() + " shared images and points, scale "
+                    + String.format("%.3f", sim.getScale()));
+        }
+
+        List<List<Point3D>> unaligned = new ArrayList<>();
+        for (int k : pending) {
+            int shared = correspondences(anchors, models.get(k)).size();
+            LOGGER.info("COLMAP model " + k + " (" + models.get(k).getImages().size() + " images) "
+                    + (shared == 0 ? "shares nothing" : "shares only " + shared + " images and points")
+                    + " with the merged model, at least " + MIN_SHARED + " are needed; returned separately");
+            unaligned.add(points(k, models.get(k), null));
+        }
+        return new ColmapResult(cloud, merged, unaligned);
+    }
+
+    /**
+     * Keys of a model: {@code cam:<image>} for camera centres and {@code obs:<image>#<keypoint>}
+     * for every observation of a 3D point, mapped through {@code sim} if given.
+     */
+    private static Map<String, double[]> anchors(ColmapModel model, Sim3 sim) {
+        Map<String, double[]> anchors = new HashMap<>();
+        for (ColmapModel.ImagePose image : model.getImages().values()) {
+            anchors.put("cam:" + image.getName(), transform(sim, image.center()));
+        }
+        for (ColmapModel.Point p : model.getPoints()) {
+            double[] xyz = transform(sim, new double[]{p.getX(), p.getY(), p.getZ()});
+            for (int i = 0; i < p.getTrackImages().length; i++) {
+                ColmapModel.ImagePose image = model.getImages().get(p.getTrackImages()[i]);
+                if (image != null) {
+                    anchors.put("obs:" + image.getName() + "#" + p.getTrackPoints2D()[i], xyz);
+                }
+            }
+        }
+        return anchors;
+    }
+
+    /** (model position, merged position) of shared cameras and of points with a shared observation. */
+    private static List<double[][]> correspondences(Map<String, double[]> anchors, ColmapModel model) {
+        List<double[][]> pairs = new ArrayList<>();
+        for (ColmapModel.ImagePose image : model.getImages().values()) {
+            double[] target = anchors.get("cam:" + image.getName());
+            if (target != null) {
+                pairs.add(new double[][]{image.center(), target});
+            }
+        }
+        for (ColmapModel.Point p : model.getPoints()) {
+            for (int i = 0; i < p.getTrackImages().length; i++) {
+                ColmapModel.ImagePose image = model.getImages().get(p.getTrackImages()[i]);
+                double[] target = image == null ? null
+                        : anchors.get("obs:" + image.getName() + "#" + p.getTrackPoints2D()[i]);
+                if (target != null) {
+                    // одна пара на точку, сколько бы общих наблюдений у неё ни было
+                    pairs.add(new double[][]{{p.getX(), p.getY(), p.getZ()}, target});
+                    break;
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static List<Point3D> points(int index, ColmapModel model, Sim3 sim) {
+        List<Point3D> points = new ArrayList<>(model.getPoints().size());
+        for (ColmapModel.Point p : model.getPoints()) {
+            String name = index == 0 ? String.valueOf(p.getId()) : index + "_" + p.getId();
+            double[] xyz = transform(sim, new double[]{p.getX(), p.getY(), p.getZ()});
+            points.add(new Point3D(name, xyz[0], xyz[1], xyz[2]));
+        }
+        return points;
+    }
+
+    private static double[] transform(Sim3 sim, double[] p) {
+        return sim == null ? p : sim.apply(p[0], p[1], p[2]);
+    }
+}
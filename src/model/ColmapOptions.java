@@ -0,0 +1,23 @@
+package model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+/**
+ * Настройки запуска COLMAP-пайплайна: выбор пар и ограничения по времени для каждой стадии.
+ * Таймаут {@code null} означает ожидание без ограничения.
+ */
+@Data
+public class ColmapOptions {
+    private ColmapMatchingOptions matching = new ColmapMatchingOptions();
+
+    /** COLMAP executable: a command looked up on {@code PATH} or a full path. */
+    private String executable = "colmap";
+
+    /** {@code colmap --version}: COLMAP that does not answer quickly is treated as missing. */
+    private Duration versionTimeout = Duration.ofSeconds(30);
+    private Duration featureTimeout;
+    private Duration matchingTimeout;
+    private Duration mapperTimeout;
+}
@@ -0,0 +1,164 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Один запущенный процесс COLMAP: вывод читается отдельным потоком, строки прогресса
+ * превращаются в {@link ColmapProgress}, а отмена или таймаут убивают всё дерево процессов.
+ */
+final class ColmapProcess {
+    private static final Logger LOGGER = Logger.getLogger(ColmapProcess.class.getName());
+
+    /** feature_extractor: {@code Processed file [12/100]}. */
+    private static final Pattern PROCESSED_FILE = Pattern.compile("Processed file \\[(\\d+)/(\\d+)]");
+    /** Matchers: {@code Matching block [3/10]} or {@code Matching block [1/3, 2/3]}. */
+    private static final Pattern MATCHING_BLOCK = Pattern.compile("Matching block \\[(\\d+)/(\\d+)(?:, (\\d+)/(\\d+))?]");
+    /** mapper: {@code Registering image #12 (5)}, the number in brackets is the registered count. */
+    private static final Pattern REGISTERING = Pattern.compile("Registering image #\\d+ \\((\\d+)\\)");
+    /** Output lines kept for the error message of a failed command. */
+    private static final int TAIL_LINES = 30;
+    /** Time a killed process tree gets to exit before it is destroyed forcibly. */
+    private static final long GRACE_MILLIS = 2000;
+
+    private final List<String> command;
+    private final String stage;
+    private final Process process;
+    private final Thread pump;
+    private final Deque<String> tail = new ArrayDeque<>();
+
+    private ColmapProcess(List<String> command, Process process, Consumer<ColmapProgress> progress) {
+        this.command = command;
+        this.stage = command.size() > 1 ? command.get(1) : command.get(0);
+        this.process = process;
+        this.pump = new Thread(() -> pump(progress), "colmap-" + stage + "-output");
+        this.pump.setDaemon(true);
+        this.pump.start();
+    }
+
+    /**
+     * Starts the command with stdout and stderr merged.
+     *
+     * @param progress receives parsed progress on the output thread; may be {@code null}
+     */
+    static ColmapProcess start(List<String> command, Path workingDir, Consumer<ColmapProgress> progress)
+            throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(workingDir.toFile());
+        pb.redirectErrorStream(true);
+        return new ColmapProcess(command, pb.start(), progress);
+    }
+
+    /**
+     * Waits until the process exits and its output is consumed. On timeout or interruption
+     * the process tree is killed first.
+     *
+     * @param timeout {@code null} waits without limit
+     * @return exit code
+     */
+    int waitFor(Duration timeout) throws InterruptedException, TimeoutException {
+        try {
+            if (timeout == null) {
+                process.waitFor();
+            } else if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                cancel();
+                throw new TimeoutException(stage + " did not finish in " + timeout.toSeconds() + " s");
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+        pump.join();
+        return process.exitValue();
+    }
+
+    /** Terminates the process and everything it started, forcibly if it does not exit in time. */
+    void cancel() {
+        List<ProcessHandle> tree = new ArrayList<>();
+        process.descendants().forEach(tree::add);
+        tree.add(process.toHandle());
+        tree.forEach(ProcessHandle::destroy);
+        long deadline = System.currentTimeMillis() + GRACE_MILLIS;
+        for (ProcessHandle handle : tree) {
+            try {
+                handle.onExit().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                handle.destroyForcibly();
+            }
+        }
+    }
+
+    String getStage() {
+        return stage;
+    }
+
+    String getCommandLine() {
+        return String.join(" ", command);
+    }
+
+    /** Last lines of the output, for error messages. */
+    synchronized String outputTail() {
+        return String.join("\n", tail);
+    }
+
+    private void pump(Consumer<ColmapProgress> progress) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LOGGER.fine("[COLMAP " + stage + "] " + line);
+                synchronized (this) {
+                    tail.addLast(line);
+                    if (tail.size() > TAIL_LINES) {
+                        tail.removeFirst();
+                    }
+                }
+                ColmapProgress event = parse(stage, line);
+                if (event != null && progress != null) {
+                    progress.accept(event);
+                }
+            }
+        } catch (IOException e) {
+            // поток закрывается, когда процесс убит
+            LOGGER.log(Level.FINE, "COLMAP output closed", e);
+        }
+    }
+
+    /** Progress carried by one output line, or {@code null}. */
+    static ColmapProgress parse(String stage, String line) {
+        Matcher m = PROCESSED_FILE.matcher(line);
+        if (m.find()) {
+            return new ColmapProgress(stage, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), -1);
+        }
+        m = MATCHING_BLOCK.matcher(line);
+        if (m.find()) {
+            if (m.group(3) == null) {
+                return new ColmapProgress(stage, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), -1);
+            }
+            // блоки exhaustive_matcher нумеруются по строкам и столбцам
+            int rows = Integer.parseInt(m.group(2)), cols = Integer.parseInt(m.group(4));
+            int done = (Integer.parseInt(m.group(1)) - 1) * cols + Integer.parseInt(m.group(3));
+            return new ColmapProgress(stage, done, rows * cols, -1);
+        }
+        m = REGISTERING.matcher(line);
+        if (m.find()) {
+            return new ColmapProgress(stage, 0, 0, Integer.parseInt(m.group(1)));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,27 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Событие прогресса внешнего процесса COLMAP, разобранное из его вывода.
+ */
+@Getter
+@AllArgsConstructor
+public class ColmapProgress {
+    /** COLMAP command, e.g. {@code feature_extractor} or {@code mapper}. */
+    private final String stage;
+    /** Items (images or matching blocks) processed so far and in total; total is 0 if unknown. */
+    private final int done;
+    private final int total;
+    /** Mapper: images registered so far, otherwise -1. */
+    private final int registeredImages;
+
+    @Override
+    public String toString() {
+        if (registeredImages >= 0) {
+            return String.format("%s: %d images registered", stage, registeredImages);
+        }
+        return total > 0 ? String.format("%s: %d/%d", stage, done, total) : String.format("%s: %d", stage, done);
+    }
+}
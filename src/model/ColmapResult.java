@@ -0,0 +1,21 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Результат COLMAP-пайплайна: все модели, которые удалось совместить, в одном облаке, и
+ * отдельные облака компонент, не связанных с ним ни общими изображениями, ни общими точками.
+ */
+@Getter
+@AllArgsConstructor
+public class ColmapResult {
+    /** Points of the largest model and of every model aligned to it, in its frame. */
+    private final List<Point3D> cloud;
+    /** Models merged into {@link #cloud}. */
+    private final int mergedModels;
+    /** One cloud per model that could not be aligned, each in its own frame. */
+    private final List<List<Point3D>> unaligned;
+}
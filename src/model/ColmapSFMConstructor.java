@@ -4,7 +4,10 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.logging.*;
 
 public class ColmapSFMConstructor {
@@ -21,13 +24,63 @@ public class ColmapSFMConstructor {
 
     /**
      * Запускает внешний COLMAP-пайплайн на всех текущих изображениях из ImageProcessor
-     * и возвращает список 3D-точек в виде List<Point3D>.
+     * во временной папке и возвращает список 3D-точек в виде List<Point3D>.
      */
     public static List<Point3D> reconstructAll(ImageProcessor proc) throws ColmapException {
+        return reconstructAll(proc, null);
+    }
+
+    /**
+     * Same as {@link #reconstructAll(ImageProcessor)}, but keeps the COLMAP database, staged
+     * images and sparse model in {@code workspaceDir} between runs. Only images that are new
+     * or whose content changed since the last successful run get features extracted and are
+     * matched (against all images), and the previous model is continued by the mapper unless
+     * an image was removed or replaced.
+     *
+     * @param workspaceDir persistent workspace of the project; {@code null} uses a temporary
+     *                     one that is deleted afterwards
+     */
+    public static List<Point3D> reconstructAll(ImageProcessor proc, Path workspaceDir) throws ColmapException {
+        return reconstructAll(proc, workspaceDir, new ColmapMatchingOptions());
+    }
+
+    /**
+     * Same as {@link #reconstructAll(ImageProcessor, Path)} with explicit thresholds for the
+     * choice of image pairs to match (see {@link ColmapMatchingPlan}).
+     */
+    public static List<Point3D> reconstructAll(ImageProcessor proc, Path workspaceDir,
+                                               ColmapMatchingOptions matching) throws ColmapException {
+        ColmapOptions options = new ColmapOptions();
+        options.setMatching(matching);
+        return reconstructAll(proc, workspaceDir, options, null);
+    }
+
+    /**
+     * Full form of {@link #reconstructAll(ImageProcessor, Path)}. COLMAP runs as a child
+     * process whose output is read on its own thread; interrupting the calling thread kills
+     * the process tree and ends the run with a {@link CancellationException}, as does
+     * exceeding a stage timeout with a {@link ColmapException}.
+     *
+     * @param progress receives progress parsed from the COLMAP output, on the output thread;
+     *                 may be {@code null}
+     */
+    public static List<Point3D> reconstructAll(ImageProcessor proc, Path workspaceDir, ColmapOptions options,
+                                               Consumer<ColmapProgress> progress) throws ColmapException {
+        return reconstruct(proc, workspaceDir, options, progress).getCloud();
+    }
+
+    /**
+     * Runs the pipeline like {@link #reconstructAll(ImageProcessor, Path, ColmapOptions, Consumer)}
+     * and reads every model the mapper produced ({@code sparse/0}, {@code sparse/1}, ...) in
+     * parallel. Models tied by shared images or points are aligned into one cloud; the others
+     * are returned as separate clouds.
+     */
+    public static ColmapResult reconstruct(ImageProcessor proc, Path workspaceDir, ColmapOptions options,
+                                           Consumer<ColmapProgress> progress) throws ColmapException {
         Path workspace = null;
         try {
             // Проверяем доступность COLMAP
-            checkColmapAvailability();
+            checkColmapAvailability(options.getExecutable(), options.getVersionTimeout());
 
             // 1) Собираем пути к изображениям
             Enumeration<?> elements = proc.getImagesModel().elements();
@@ -44,65 +97,138 @@ public class ColmapSFMConstructor {
                 throw new ColmapException("No images to reconstruct", null);
             }
 
-            // 2) Создаём временную рабочую папку
-            workspace = Files.createTempDirectory("colmap_sfm_");
-            Path imagesDir = workspace.resolve("images");
-            Files.createDirectory(imagesDir);
+            // 2) Рабочая папка: постоянная папка проекта или временная
+            workspace = workspaceDir != null ? workspaceDir : Files.createTempDirectory("colmap_sfm_");
+            ColmapWorkspace ws = ColmapWorkspace.open(workspace);
+            Path imagesDir = ws.images();
+            Path databasePath = ws.database();
 
-            // 3) Копируем туда все картинки, проверяя существование
+            // 3) Хэши содержимого: новые и изменённые изображения получают новые имена
             for (String imgPath : imagePaths) {
                 Path src = Paths.get(imgPath);
                 if (!Files.exists(src) || !Files.isRegularFile(src)) {
                     throw new ColmapException("Image file does not exist or is not a regular file: " + src, null);
                 }
-                Path dst = imagesDir.resolve(src.getFileName());
-                Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING);
-            }
-
-            // Пути для базы данных и результатов
-            Path databasePath = workspace.resolve("database.db");
-            Path sparseDir = workspace.resolve("sparse");
-            Files.createDirectory(sparseDir);
-
-            // 4) Запускаем COLMAP feature_extractor
-            runCommand(Arrays.asList(
-                    "colmap", "feature_extractor",
-                    "--database_path", databasePath.toString(),
-                    "--image_path",    imagesDir.toString()
-            ), workspace);
-
-            // 5) Запускаем COLMAP exhaustive_matcher с min_num_inliers=5
-            runCommand(Arrays.asList(
-                    "colmap", "exhaustive_matcher",
-                    "--database_path", databasePath.toString(),
-                    "--TwoViewGeometry.min_num_inliers", "5"
-            ), workspace);
-
-            // 6) Запускаем COLMAP mapper (incremental SfM)
-            runCommand(Arrays.asList(
-                    "colmap", "mapper",
-                    "--database_path", databasePath.toString(),
-                    "--image_path",    imagesDir.toString(),
-                    "--output_path",   sparseDir.toString()
-            ), workspace);
-
-            // 7) Конвертируем полученную модель в текстовый формат
-            Path model0   = sparseDir.resolve("0");
-            Path outputTxt = workspace.resolve("points3D.txt");
-            runCommand(Arrays.asList(
-                    "colmap", "model_converter",
-                    "--input_path",  model0.toString(),
-                    "--output_path", outputTxt.toString(),
-                    "--output_type", "TXT"
-            ), workspace);
-
-            // 8) Парсим точки из TXT и возвращаем
-            return parseColmapPoints(outputTxt);
-
-        } catch (IOException | InterruptedException e) {
+            }
+            Map<String, String> staged = ws.stagedNames(imagePaths);
+            Set<String> added = ws.added();
+            boolean removed = ws.anyRemoved();
+            // прежние файлы удаляются только после успешного запуска; недостающие ставятся заново
+            Map<Path, String> toStage = new LinkedHashMap<>();
+            for (String imgPath : imagePaths) {
+                String name = staged.get(imgPath);
+                if (added.contains(name) || !Files.exists(imagesDir.resolve(name))) {
+                    toStage.put(Paths.get(imgPath), name);
+                }
+            }
+            ColmapStaging.Report staging = ColmapStaging.stage(toStage, imagesDir);
+            LOGGER.info(added.size() + " new or changed of " + imagePaths.size() + " images"
+                    + (removed ? ", some removed or replaced" : "") + "; staged: " + staging);
+
+            Path previousModel = ws.previousModel();
+            if (added.isEmpty() && !removed && !ws.models().isEmpty()) {
+                LOGGER.info("Images unchanged since the last run, reusing its models");
+                return ColmapModelMerger.merge(readModels(ws.models()));
+            }
+
+            if (!added.isEmpty()) {
+                // 4) Признаки только для новых изображений
+                Path newImages = workspace.resolve("new_images.txt");
+                Files.write(newImages, added, StandardCharsets.UTF_8);
+                runCommand(Arrays.asList(
+                        options.getExecutable(), "feature_extractor",
+                        "--database_path",   databasePath.toString(),
+                        "--image_path",      imagesDir.toString(),
+                        "--image_list_path", newImages.toString()
+                ), workspace, options.getFeatureTimeout(), progress);
+
+                // 5) Сопоставляем только пары, в которых есть новое изображение
+                Set<String> addedPaths = new LinkedHashSet<>();
+                for (String imgPath : imagePaths) {
+                    if (added.contains(staged.get(imgPath))) {
+                        addedPaths.add(imgPath);
+                    }
+                }
+                ColmapMatchingPlan plan = ColmapMatchingPlan.plan(proc, imagePaths, addedPaths, ws,
+                        options.getMatching());
+                LOGGER.info("Matching plan: " + plan);
+                Set<String> lines = new LinkedHashSet<>();
+                for (String[] pair : plan.getPairs()) {
+                    String a = staged.get(pair[0]), b = staged.get(pair[1]);
+                    if (!a.equals(b) && (added.contains(a) || added.contains(b))) {
+                        lines.add(a + " " + b);
+                    }
+                }
+                Path matchList = workspace.resolve("match_list.txt");
+                Files.write(matchList, lines, StandardCharsets.UTF_8);
+                LOGGER.info("Matching " + lines.size() + " new image pairs");
+                runCommand(Arrays.asList(
+                        options.getExecutable(), "matches_importer",
+                        "--database_path", databasePath.toString(),
+                        "--match_list_path", matchList.toString(),
+                        "--match_type", "pairs",
+                        "--TwoViewGeometry.min_num_inliers", "5"
+                ), workspace, options.getMatchingTimeout(), progress);
+            }
+
+            // 6) Запускаем COLMAP mapper только по текущим изображениям; прежняя модель —
+            //    отправная точка, если из неё ничего не удалено
+            Path imageList = workspace.resolve("image_list.txt");
+            Files.write(imageList, new LinkedHashSet<>(staged.values()), StandardCharsets.UTF_8);
+            Path sparseDir = ws.sparse();
+            Path output = workspace.resolve("sparse_next");
+            if (Files.exists(output)) {
+                deleteDirectoryRecursively(output);
+            }
+            Files.createDirectories(output);
+            List<String> mapper = new ArrayList<>(Arrays.asList(
+                    options.getExecutable(), "mapper",
+                    "--database_path",   databasePath.toString(),
+                    "--image_path",      imagesDir.toString(),
+                    "--image_list_path", imageList.toString(),
+                    "--output_path",     output.toString()
+            ));
+            boolean resume = previousModel != null && !removed;
+            if (resume) {
+                mapper.addAll(Arrays.asList("--input_path", previousModel.toString()));
+            }
+            runCommand(mapper, workspace, options.getMapperTimeout(), progress);
+
+            // продолженная модель пишется прямо в output, новые — в output/0, output/1, ...
+            if (Files.exists(sparseDir)) {
+                deleteDirectoryRecursively(sparseDir);
+            }
+            Files.createDirectories(sparseDir);
+            if (resume) {
+                if (!Files.exists(output.resolve("points3D.bin"))) {
+                    throw new ColmapException("COLMAP mapper did not produce a model", null);
+                }
+                Files.move(output, sparseDir.resolve("0"));
+            } else {
+                try (var dirs = Files.list(output)) {
+                    for (Path dir : (Iterable<Path>) dirs::iterator) {
+                        Files.move(dir, sparseDir.resolve(dir.getFileName()));
+                    }
+                }
+                deleteDirectoryRecursively(output);
+            }
+            ws.commit();
+            ws.pruneImages();
+            List<Path> models = ws.models();
+            if (models.isEmpty()) {
+                throw new ColmapException("COLMAP mapper did not produce a model", null);
+            }
+
+            // 7) Читаем все бинарные модели и совмещаем их
+            return ColmapModelMerger.merge(readModels(models));
+
+        } catch (IOException e) {
             throw new ColmapException("COLMAP pipeline error: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("COLMAP reconstruction cancelled");
         } finally {
-            if (workspace != null) {
+            if (workspace != null && workspaceDir == null) {
                 try {
                     deleteDirectoryRecursively(workspace);
                 } catch (IOException e) {
@@ -113,75 +239,68 @@ public class ColmapSFMConstructor {
     }
 
     /**
-     * Проверяем доступность команды COLMAP, выполняя `colmap --version`.
+     * Читает модели sparse/N параллельно; ключ — номер модели.
      */
-    private static void checkColmapAvailability() throws IOException, InterruptedException, ColmapException {
-        ProcessBuilder pb = new ProcessBuilder("colmap", "--version");
-        Process proc = pb.start();
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                LOGGER.fine("[COLMAP Version] " + line);
+    private static Map<Integer, ColmapModel> readModels(List<Path> dirs) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(dirs.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            Map<Integer, Future<ColmapModel>> futures = new TreeMap<>();
+            for (Path dir : dirs) {
+                futures.put(Integer.parseInt(dir.getFileName().toString()), pool.submit(() -> ColmapModel.read(dir)));
             }
-        }
-        int exit = proc.waitFor();
-        if (exit != 0) {
-            throw new ColmapException("COLMAP not found or returned exit code " + exit, null);
+            Map<Integer, ColmapModel> models = new TreeMap<>();
+            for (Map.Entry<Integer, Future<ColmapModel>> e : futures.entrySet()) {
+                models.put(e.getKey(), e.getValue().get());
+            }
+            return models;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Reading COLMAP models failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
     }
 
     /**
-     * Запускает одну команду в subprocess и кидает исключение, если exitCode != 0.
+     * Проверяем доступность команды COLMAP, выполняя `colmap --version`.
      */
-    private static void runCommand(List<String> command, Path workingDir)
-            throws IOException, InterruptedException, ColmapException {
-        ProcessBuilder pb = new ProcessBuilder(command);
-        pb.directory(workingDir.toFile());
-        pb.redirectErrorStream(true);
-        Process proc = pb.start();
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                LOGGER.info("[COLMAP] " + line);
-            }
-        }
-        int exit = proc.waitFor();
-        if (exit != 0) {
-            throw new ColmapException(
-                    "Command failed (exit " + exit + "): " + String.join(" ", command), null
-            );
+    private static void checkColmapAvailability(String executable, Duration timeout)
+            throws InterruptedException, ColmapException {
+        try {
+            runCommand(Arrays.asList(executable, "--version"), Paths.get("."), timeout, null);
+        } catch (IOException | ColmapException e) {
+            throw new ColmapException("COLMAP not found or not working: " + e.getMessage(), e);
         }
     }
 
     /**
-     * Читает текстовый файл points3D.txt, сгенерированный COLMAP,
-     * и возвращает список Point3D (id, x, y, z).
+     * Запускает одну команду COLMAP и ждёт её завершения; кидает исключение, если
+     * exitCode != 0 или истёк таймаут. Прерывание потока убивает процесс вместе с потомками.
      */
-    private static List<Point3D> parseColmapPoints(Path txtFile) throws IOException {
-        List<Point3D> points = new ArrayList<>();
-        try (BufferedReader br = Files.newBufferedReader(txtFile, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("#")) continue;
-                String[] tok = line.split("\\s+");
-                if (tok.length < 4) {
-                    throw new IOException("Invalid COLMAP points file format at line: " + line);
-                }
-                String   id = tok[0];
-                double   x  = Double.parseDouble(tok[1]);
-                double   y  = Double.parseDouble(tok[2]);
-                double   z  = Double.parseDouble(tok[3]);
-                points.add(new Point3D(id, x, y, z));
-            }
+    static void runCommand(List<String> command, Path workingDir, Duration timeout,
+                                   Consumer<ColmapProgress> progress)
+            throws IOException, InterruptedException, ColmapException {
+        ColmapProcess process = ColmapProcess.start(command, workingDir, progress);
+        long start = System.currentTimeMillis();
+        int exit;
+        try {
+            exit = process.waitFor(timeout);
+        } catch (TimeoutException e) {
+            throw new ColmapException(e.getMessage() + ": " + process.getCommandLine(), e);
+        }
+        LOGGER.info("COLMAP " + process.getStage() + " finished in " + (System.currentTimeMillis() - start) + " ms");
+        if (exit != 0) {
+            throw new ColmapException("Command failed (exit " + exit + "): " + process.getCommandLine()
+                    + "\n" + process.outputTail(), null);
         }
-        return points;
     }
 
     /**
-     * Рекурсивно удаляет директорию и все её содержимое.
+     * Рекурсивно удаляет директорию и все её содержимое. Ссылки не разыменовываются,
+     * поэтому удаляются сами ссылки, а не исходные изображения.
      */
     private static void deleteDirectoryRecursively(Path path) throws IOException {
         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
@@ -0,0 +1,90 @@
+package model;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Размещение исходных изображений в папке images рабочего пространства COLMAP без копирования:
+ * жёсткая ссылка, если источник и рабочая папка на одной файловой системе, иначе символическая
+ * ссылка, и копия только если не удалось ни то, ни другое.
+ * <p>
+ * COLMAP only reads the images, so a link is as good as a copy; deleting the workspace
+ * removes the links and leaves the originals alone.
+ */
+final class ColmapStaging {
+
+    enum Strategy {
+        HARD_LINK, SYMBOLIC_LINK, COPY
+    }
+
+    /** How the images were staged: files per strategy and bytes that were not copied. */
+    @Getter
+    static final class Report {
+        private final Map<Strategy, Integer> files = new EnumMap<>(Strategy.class);
+        private long bytesSaved;
+        private long bytesCopied;
+
+        @Override
+        public String toString() {
+            return String.format("%d hard links, %d symbolic links, %d copies; %.1f MB not copied, %.1f MB copied",
+                    files.getOrDefault(Strategy.HARD_LINK, 0), files.getOrDefault(Strategy.SYMBOLIC_LINK, 0),
+                    files.getOrDefault(Strategy.COPY, 0), bytesSaved / 1e6, bytesCopied / 1e6);
+        }
+    }
+
+    private ColmapStaging() {
+    }
+
+    /**
+     * Places every source file into {@code imagesDir} under the given name, replacing an
+     * existing entry of the same name.
+     */
+    static Report stage(Map<Path, String> sources, Path imagesDir) throws IOException {
+        Report report = new Report();
+        // стратегия, которая уже не сработала для файловой системы источника, больше не пробуется
+        Map<FileStore, Strategy> firstToTry = new HashMap<>();
+        for (Map.Entry<Path, String> e : sources.entrySet()) {
+            Path src = e.getKey();
+            FileStore store = Files.getFileStore(src);
+            Path dst = imagesDir.resolve(e.getValue());
+            Files.deleteIfExists(dst);
+            Strategy used = place(src, dst, firstToTry.getOrDefault(store, Strategy.HARD_LINK));
+            firstToTry.put(store, used);
+
+            long size = Files.size(src);
+            report.files.merge(used, 1, Integer::sum);
+            if (used == Strategy.COPY) {
+                report.bytesCopied += size;
+            } else {
+                report.bytesSaved += size;
+            }
+        }
+        return report;
+    }
+
+    private static Strategy place(Path src, Path dst, Strategy first) throws IOException {
+        if (first == Strategy.HARD_LINK) {
+            try {
+                Files.createLink(dst, src);
+                return Strategy.HARD_LINK;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // другой том или файловая система без жёстких ссылок
+            }
+        }
+        if (first != Strategy.COPY) {
+            try {
+                Files.createSymbolicLink(dst, src.toAbsolutePath());
+                return Strategy.SYMBOLIC_LINK;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // например, Windows без прав на создание символических ссылок
+            }
+        }
+        Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING);
+        return Strategy.COPY;
+    }
+}
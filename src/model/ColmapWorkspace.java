@@ -0,0 +1,198 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Постоянное рабочее пространство COLMAP проекта: database.db, images, sparse и манифест
+ * изображений последнего успешного запуска.
+ * <p>
+ * Every image is staged under a content-addressed name ({@code <hash prefix>_<file name>}),
+ * so an edited photo shows up to COLMAP as a new image instead of silently reusing the
+ * features of the old content stored under the same name. The manifest keeps the hash of
+ * each source together with its size and modification time, so unchanged files are not
+ * re-read to be hashed.
+ */
+final class ColmapWorkspace {
+
+    private static final String MANIFEST = "manifest.tsv";
+    private static final int NAME_HASH_CHARS = 16;
+
+    private final Path root;
+    /** Source path -> {hash, size, mtime} as of the last successful run. */
+    private final Map<String, String[]> manifest = new LinkedHashMap<>();
+    /** Source path -> staged name for the current run, filled by {@link #stagedNames}. */
+    private final Map<String, String> current = new LinkedHashMap<>();
+    private final Map<String, String[]> currentEntries = new LinkedHashMap<>();
+
+    private ColmapWorkspace(Path root) {
+        this.root = root;
+    }
+
+    static ColmapWorkspace open(Path root) throws IOException {
+        ColmapWorkspace ws = new ColmapWorkspace(root);
+        Files.createDirectories(ws.images());
+        Path file = root.resolve(MANIFEST);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] tok = line.split("\t", 4);
+                if (tok.length == 4) {
+                    ws.manifest.put(tok[3], new String[]{tok[0], tok[1], tok[2]});
+                }
+            }
+        }
+        return ws;
+    }
+
+    Path root() {
+        return root;
+    }
+
+    Path images() {
+        return root.resolve("images");
+    }
+
+    Path database() {
+        return root.resolve("database.db");
+    }
+
+    Path sparse() {
+        return root.resolve("sparse");
+    }
+
+    /** Features for image retrieval, one file per image content. */
+    Path retrievalFeatures() {
+        return root.resolve("retrieval_features");
+    }
+
+    /** Numbered model directories ({@code sparse/N}) of the last successful run, by number. */
+    List<Path> models() throws IOException {
+        List<Path> models = new ArrayList<>();
+        if (manifest.isEmpty() || !Files.isDirectory(sparse())) {
+            return models;
+        }
+        try (var dirs = Files.list(sparse())) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                if (dir.getFileName().toString().matches("\\d+") && Files.exists(dir.resolve("points3D.bin"))) {
+                    models.add(dir);
+                }
+            }
+        }
+        models.sort(Comparator.comparingInt(dir -> Integer.parseInt(dir.getFileName().toString())));
+        return models;
+    }
+
+    /**
+     * Model the mapper can continue from: the only model of the last successful run, or
+     * {@code null}. A scene split into several models is mapped again from scratch.
+     */
+    Path previousModel() throws IOException {
+        List<Path> models = models();
+        return models.size() == 1 ? models.get(0) : null;
+    }
+
+    /**
+     * Staged name of every source image, hashing only files whose size or modification
+     * time differ from the manifest.
+     */
+    Map<String, String> stagedNames(List<String> imagePaths) throws IOException {
+        current.clear();
+        currentEntries.clear();
+        for (String imgPath : imagePaths) {
+            Path src = Path.of(imgPath);
+            String size = String.valueOf(Files.size(src));
+            String mtime = String.valueOf(Files.getLastModifiedTime(src).toMillis());
+            String[] known = manifest.get(imgPath);
+            String hash = known != null && known[1].equals(size) && known[2].equals(mtime)
+                    ? known[0] : hash(src);
+            currentEntries.put(imgPath, new String[]{hash, size, mtime});
+            current.put(imgPath, stagedName(hash, src));
+        }
+        return current;
+    }
+
+    /** SHA-256 of the content of a source image of the current run, see {@link #stagedNames}. */
+    String contentHash(String imgPath) {
+        return currentEntries.get(imgPath)[0];
+    }
+
+    /** Staged names of the current run that the last successful run did not have. */
+    Set<String> added() {
+        Set<String> previous = previousNames();
+        Set<String> added = new LinkedHashSet<>();
+        for (String name : current.values()) {
+            if (!previous.contains(name)) {
+                added.add(name);
+            }
+        }
+        return added;
+    }
+
+    /** Whether an image of the last successful run was removed or its content changed. */
+    boolean anyRemoved() {
+        return !new HashSet<>(current.values()).containsAll(previousNames());
+    }
+
+    /** Deletes staged files that are not part of the current run. */
+    void pruneImages() throws IOException {
+        Set<String> keep = new HashSet<>(current.values());
+        try (var files = Files.list(images())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!keep.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /** Records the current images as the state of the model in {@link #sparse()}. */
+    void commit() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String[]> e : currentEntries.entrySet()) {
+            String[] v = e.getValue();
+            lines.add(v[0] + "\t" + v[1] + "\t" + v[2] + "\t" + e.getKey());
+        }
+        Path tmp = root.resolve(MANIFEST + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, root.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        manifest.clear();
+        manifest.putAll(currentEntries);
+    }
+
+    private Set<String> previousNames() {
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, String[]> e : manifest.entrySet()) {
+            names.add(stagedName(e.getValue()[0], Path.of(e.getKey())));
+        }
+        return names;
+    }
+
+    private static String stagedName(String hash, Path src) {
+        return hash.substring(0, NAME_HASH_CHARS) + "_" + src.getFileName();
+    }
+
+    private static String hash(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[1 << 16];
+            for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+                sha.update(buf, 0, n);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+}
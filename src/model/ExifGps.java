@@ -0,0 +1,131 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Минимальный разбор EXIF GPS из JPEG: только широта, долгота и высота, без внешних библиотек.
+ */
+final class ExifGps {
+
+    private static final int GPS_IFD_POINTER = 0x8825;
+    private static final int LATITUDE_REF = 1, LATITUDE = 2, LONGITUDE_REF = 3, LONGITUDE = 4;
+    private static final int ALTITUDE_REF = 5, ALTITUDE = 6;
+    /** APP1 is at the start of the file and at most 64 KB long. */
+    private static final int HEADER_BYTES = 1 << 17;
+
+    private ExifGps() {
+    }
+
+    /**
+     * {latitude, longitude, altitude} in degrees and metres (altitude 0 if absent), or
+     * {@code null} if the file is not a JPEG or has no GPS position.
+     */
+    static double[] read(Path file) {
+        byte[] head;
+        try (InputStream in = Files.newInputStream(file)) {
+            head = in.readNBytes(HEADER_BYTES);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            ByteBuffer tiff = findExif(ByteBuffer.wrap(head));
+            return tiff == null ? null : readGps(tiff);
+        } catch (RuntimeException e) {
+            // повреждённый или обрезанный EXIF — считаем, что координат нет
+            return null;
+        }
+    }
+
+    /** TIFF block of the Exif APP1 segment, positioned at 0, or {@code null}. */
+    private static ByteBuffer findExif(ByteBuffer jpeg) {
+        jpeg.order(ByteOrder.BIG_ENDIAN);
+        if (jpeg.getShort(0) != (short) 0xFFD8) {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.limit() && (jpeg.get(pos) & 0xFF) == 0xFF) {
+            int marker = jpeg.get(pos + 1) & 0xFF;
+            int length = jpeg.getShort(pos + 2) & 0xFFFF;
+            if (marker == 0xDA) {
+                // начались данные изображения
+                return null;
+            }
+            if (marker == 0xE1 && length >= 8 && jpeg.getInt(pos + 4) == 0x45786966 && jpeg.getShort(pos + 8) == 0) {
+                ByteBuffer tiff = jpeg.duplicate();
+                tiff.position(pos + 10).limit(Math.min(jpeg.limit(), pos + 2 + length));
+                tiff = tiff.slice();
+                tiff.order(tiff.getShort(0) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                return tiff;
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    private static double[] readGps(ByteBuffer tiff) {
+        int ifd0 = tiff.getInt(4);
+        int gps = -1;
+        int count = tiff.getShort(ifd0) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd0 + 2 + 12 * i;
+            if ((tiff.getShort(entry) & 0xFFFF) == GPS_IFD_POINTER) {
+                gps = tiff.getInt(entry + 8);
+            }
+        }
+        if (gps < 0) {
+            return null;
+        }
+
+        double lat = Double.NaN, lon = Double.NaN, alt = 0;
+        char latRef = 'N', lonRef = 'E';
+        boolean belowSea = false;
+        count = tiff.getShort(gps) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = gps + 2 + 12 * i;
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            int value = entry + 8;
+            switch (tag) {
+                case LATITUDE_REF:
+                    latRef = (char) tiff.get(value);
+                    break;
+                case LONGITUDE_REF:
+                    lonRef = (char) tiff.get(value);
+                    break;
+                case ALTITUDE_REF:
+                    belowSea = tiff.get(value) == 1;
+                    break;
+                case LATITUDE:
+                    lat = degrees(tiff, tiff.getInt(value));
+                    break;
+                case LONGITUDE:
+                    lon = degrees(tiff, tiff.getInt(value));
+                    break;
+                case ALTITUDE:
+                    alt = rational(tiff, tiff.getInt(value));
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return null;
+        }
+        return new double[]{latRef == 'S' ? -lat : lat, lonRef == 'W' ? -lon : lon, belowSea ? -alt : alt};
+    }
+
+    /** Degrees, minutes, seconds as three rationals. */
+    private static double degrees(ByteBuffer tiff, int offset) {
+        return rational(tiff, offset) + rational(tiff, offset + 8) / 60 + rational(tiff, offset + 16) / 3600;
+    }
+
+    private static double rational(ByteBuffer tiff, int offset) {
+        long num = tiff.getInt(offset) & 0xFFFFFFFFL;
+        long den = tiff.getInt(offset + 4) & 0xFFFFFFFFL;
+        return den == 0 ? 0 : (double) num / den;
+    }
+}
@@ -0,0 +1,414 @@
+package model;
+
+import model.ReconstructionProgress.Stage;
+import org.apache.commons.math3.linear.*;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Global SfM: relative poses of all image pairs are estimated in parallel, camera rotations
+ * come from robust rotation averaging over the view graph, camera centres from translation
+ * averaging of the pairwise directions, and all tracks are triangulated in one pass before
+ * a single bundle adjustment.
+ */
+class GlobalSFMConstructor {
+    private static final int ROTATION_ITERATIONS = 50;
+    private static final int TRANSLATION_ITERATIONS = 30;
+    private static final double ROTATION_SIGMA = Math.toRadians(5.0); // Cauchy scale for rotation residuals
+    private static final double DIRECTION_SIGMA = 0.1; // Cauchy scale for translation direction residuals
+
+    private GlobalSFMConstructor() {
+    }
+
+    /** Relative pose x_j = R * x_i + t of one verified pair, t of unit length. */
+    private static class RelativePose {
+        final int i, j;
+        final double[][] R;
+        final double[] t;
+        final int inliers;
+
+        RelativePose(int i, int j, double[][] R, double[] t, int inliers) {
+            this.i = i;
+            this.j = j;
+            this.R = R;
+            this.t = t;
+            this.inliers = inliers;
+        }
+    }
+
+    static Reconstruction reconstruct(List<String> allImages,
+                                      Map<String, Map<String, Point2D>> pointsByImage,
+                                      Function<String, Mat> intrinsics,
+                                      ReconstructionOptions options,
+                                      ReconstructionReporter reporter) {
+        int n = allImages.size();
+        List<Mat> Ks = new ArrayList<>(n);
+        for (String image : allImages) {
+            Ks.add(intrinsics.apply(image));
+        }
+
+        // 1) Относительные позы всех пар — параллельно, каждое изображение со своей K
+        List<RelativePose> edges = estimateRelativePoses(allImages, pointsByImage, Ks, options.getThreads());
+        reporter.progress(new ReconstructionProgress(Stage.RELATIVE_POSES, 0, n, 0, Double.NaN));
+
+        // 2) Работаем с самой большой связной компонентой графа видов
+        List<Integer> component = largestComponent(n, edges);
+        if (component.size() < 2) {
+            throw new RuntimeException("No image pair with a valid relative pose found");
+        }
+        Set<Integer> inComponent = new HashSet<>(component);
+        edges.removeIf(e -> !inComponent.contains(e.i) || !inComponent.contains(e.j));
+        // K модели — по изображению из компоненты, а не по первому в списке
+        Mat K = Ks.get(component.get(0));
+
+        // 3) Усреднение поворотов, затем центров камер
+        OpenCVSFMConstructor.checkCancelled();
+        double[][][] rotations = averageRotations(n, component, edges);
+        OpenCVSFMConstructor.checkCancelled();
+        double[][] centers = averageTranslations(n, component, edges, rotations);
+        reporter.progress(new ReconstructionProgress(Stage.MOTION_AVERAGING, component.size(), n, 0, Double.NaN));
+
+        Reconstruction recon = new Reconstruction(K);
+        Set<String> cameras = new LinkedHashSet<>();
+        for (int i : component) {
+            Mat R = new Mat(3, 3, CvType.CV_64F);
+            Mat t = new Mat(3, 1, CvType.CV_64F);
+            for (int r = 0; r < 3; r++) {
+                R.put(r, 0, rotations[i][r]);
+                // t = -R * c
+                t.put(r, 0, -(rotations[i][r][0] * centers[i][0]
+                        + rotations[i][r][1] * centers[i][1]
+                        + rotations[i][r][2] * centers[i][2]));
+            }
+            recon.addCamera(allImages.get(i), R, t);
+            cameras.add(allImages.get(i));
+        }
+
+        // 4) Все треки одним проходом и один финальный BA
+        OpenCVSFMConstructor.checkCancelled();
+        OpenCVSFMConstructor.triangulateGlobalUninitialized(recon, pointsByImage, cameras);
+        reporter.report(Stage.TRIANGULATION, recon, cameras);
+
+        OpenCVSFMConstructor.checkCancelled();
+        OpenCVSFMConstructor.performBundleAdjustment(recon, cameras);
+        reporter.report(Stage.FINISHED, recon, cameras);
+        return recon;
+    }
+
+    private static List<RelativePose> estimateRelativePoses(List<String> images,
+                                                            Map<String, Map<String, Point2D>> pointsByImage,
+                                                            List<Mat> Ks, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<RelativePose>> futures = new ArrayList<>();
+            for (int i = 0; i < images.size() - 1; i++) {
+                for (int j = i + 1; j < images.size(); j++) {
+                    Map<String, Point2D> a = pointsByImage.get(images.get(i));
+                    Map<String, Point2D> b = pointsByImage.get(images.get(j));
+                    List<String> common = new ArrayList<>(a.keySet());
+                    common.retainAll(b.keySet());
+                    if (common.size() < OpenCVSFMConstructor.MIN_COMMON_POINTS) continue;
+
+                    int fi = i, fj = j;
+                    futures.add(pool.submit(() -> relativePose(fi, fj, common, a, b, Ks.get(fi), Ks.get(fj))));
+                }
+            }
+            List<RelativePose> edges = new ArrayList<>();
+            for (Future<RelativePose> f : futures) {
+                RelativePose pose = f.get();
+                if (pose != null) edges.add(pose);
+            }
+            return edges;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Reconstruction cancelled");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Relative pose estimation failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Relative pose from the shared points. The images may have different K, so the points
+     * are normalised by their own K and E is estimated with an identity camera; the RANSAC
+     * threshold of one pixel is converted with the mean focal length.
+     */
+    private static RelativePose relativePose(int i, int j, List<String> common,
+                                             Map<String, Point2D> a, Map<String, Point2D> b, Mat Ka, Mat Kb) {
+        List<Point2D> pa = new ArrayList<>();
+        List<Point2D> pb = new ArrayList<>();
+        for (String name : common) {
+            pa.add(normalized(a.get(name), Ka));
+            pb.add(normalized(b.get(name), Kb));
+        }
+        MatOfPoint2f m1 = OpenCVSFMConstructor.mat2f(pa);
+        MatOfPoint2f m2 = OpenCVSFMConstructor.mat2f(pb);
+        Mat identity = Mat.eye(3, 3, CvType.CV_64F);
+        double focal = 0.25 * (Ka.get(0, 0)[0] + Ka.get(1, 1)[0] + Kb.get(0, 0)[0] + Kb.get(1, 1)[0]);
+        Mat mask = new Mat();
+        Mat E = Calib3d.findEssentialMat(m1, m2, identity, Calib3d.RANSAC, 0.999, 1.0 / focal, 1000, mask);
+        if (E.empty() || E.rows() != 3) return null;
+
+        Mat R = new Mat(), t = new Mat();
+        int inliers = Calib3d.recoverPose(E, m1, m2, identity, R, t, mask);
+        if (inliers < OpenCVSFMConstructor.MIN_COMMON_POINTS) return null;
+
+        double[][] r = new double[3][3];
+        double[] tv = new double[3];
+        for (int row = 0; row < 3; row++) {
+            R.get(row, 0, r[row]);
+            tv[row] = t.get(row, 0)[0];
+        }
+        return new RelativePose(i, j, r, normalize(tv), inliers);
+    }
+
+    /** Pixel coordinates to normalised image coordinates of a camera with intrinsics K. */
+    private static Point2D normalized(Point2D p, Mat K) {
+        return new Point2D(p.getName(), (p.getX() - K.get(0, 2)[0]) / K.get(0, 0)[0],
+                (p.getY() - K.get(1, 2)[0]) / K.get(1, 1)[0]);
+    }
+
+    private static List<Integer> largestComponent(int n, List<RelativePose> edges) {
+        List<List<Integer>> adj = adjacency(n, edges);
+        boolean[] seen = new boolean[n];
+        List<Integer> best = new ArrayList<>();
+        for (int s = 0; s < n; s++) {
+            if (seen[s]) continue;
+            List<Integer> comp = new ArrayList<>();
+            Deque<Integer> queue = new ArrayDeque<>(List.of(s));
+            seen[s] = true;
+            while (!queue.isEmpty()) {
+                int v = queue.poll();
+                comp.add(v);
+                for (int w : adj.get(v)) {
+                    if (!seen[w]) {
+                        seen[w] = true;
+                        queue.add(w);
+                    }
+                }
+            }
+            if (comp.size() > best.size()) best = comp;
+        }
+        return best;
+    }
+
+    /**
+     * Robust rotation averaging. Rotations start from a maximum spanning tree of the view
+     * graph (weighted by inliers) and are refined by iteratively reweighted chordal averaging:
+     * every camera moves to the weighted mean of the rotations its neighbours predict for it,
+     * with Cauchy weights that suppress inconsistent pairs. The first camera stays fixed.
+     */
+    private static double[][][] averageRotations(int n, List<Integer> component, List<RelativePose> edges) {
+        double[][][] R = new double[n][][];
+        int root = component.get(0);
+
+        // максимальное остовное дерево (Прим) по числу инлаеров
+        R[root] = identity();
+        PriorityQueue<RelativePose> frontier =
+                new PriorityQueue<>((x, y) -> Integer.compare(y.inliers, x.inliers));
+        List<List<RelativePose>> incident = incidentEdges(n, edges);
+        frontier.addAll(incident.get(root));
+        while (!frontier.isEmpty()) {
+            RelativePose e = frontier.poll();
+            if (R[e.i] != null && R[e.j] != null) continue;
+            int next = R[e.i] == null ? e.i : e.j;
+            R[next] = predict(e, next, R);
+            frontier.addAll(incident.get(next));
+        }
+
+        for (int iter = 0; iter < ROTATION_ITERATIONS; iter++) {
+            double maxChange = 0;
+            for (int v : component) {
+                if (v == root) continue;
+                double[][] sum = new double[3][3];
+                for (RelativePose e : incident.get(v)) {
+                    double[][] pred = predict(e, v, R);
+                    double w = e.inliers / (1 + sq(angle(pred, R[v]) / ROTATION_SIGMA));
+                    for (int r = 0; r < 3; r++) {
+                        for (int c = 0; c < 3; c++) {
+                            sum[r][c] += w * pred[r][c];
+                        }
+                    }
+                }
+                double[][] updated = projectToRotation(sum);
+                maxChange = Math.max(maxChange, angle(updated, R[v]));
+                R[v] = updated;
+            }
+            if (maxChange < 1e-7) break;
+        }
+        return R;
+    }
+
+    /**
+     * Translation averaging with known rotations. Each pair gives the direction
+     * {@code d = -R_j^T t_ij} of {@code c_j - c_i}; we minimise
+     * {@code sum w * |c_j - c_i - s * d|^2} alternating between the centres (a Laplacian
+     * system with the first camera at the origin) and the per-pair scales {@code s},
+     * with Cauchy weights on the angular residuals and the mean scale fixed to one.
+     */
+    private static double[][] averageTranslations(int n, List<Integer> component,
+                                                  List<RelativePose> edges, double[][][] R) {
+        int m = edges.size();
+        double[][] dirs = new double[m][];
+        for (int k = 0; k < m; k++) {
+            RelativePose e = edges.get(k);
+            double[] d = new double[3];
+            for (int r = 0; r < 3; r++) {
+                // -R_j^T * t_ij
+                d[r] = -(R[e.j][0][r] * e.t[0] + R[e.j][1][r] * e.t[1] + R[e.j][2][r] * e.t[2]);
+            }
+            dirs[k] = normalize(d);
+        }
+
+        int root = component.get(0);
+        Map<Integer, Integer> index = new HashMap<>();
+        for (int v : component) {
+            if (v != root) index.put(v, index.size());
+        }
+        int u = index.size();
+
+        double[] scale = new double[m];
+        double[] weight = new double[m];
+        Arrays.fill(scale, 1.0);
+        for (int k = 0; k < m; k++) {
+            weight[k] = edges.get(k).inliers;
+        }
+        double[][] C = new double[n][3];
+
+        for (int iter = 0; iter < TRANSLATION_ITERATIONS; iter++) {
+            // центры при фиксированных масштабах
+            double[][] L = new double[u][u];
+            double[][] b = new double[3][u];
+            for (int k = 0; k < m; k++) {
+                RelativePose e = edges.get(k);
+                Integer a = index.get(e.i), c = index.get(e.j);
+                double w = weight[k];
+                if (a != null) L[a][a] += w;
+                if (c != null) L[c][c] += w;
+                if (a != null && c != null) {
+                    L[a][c] -= w;
+                    L[c][a] -= w;
+                }
+                for (int r = 0; r < 3; r++) {
+                    double rhs = w * scale[k] * dirs[k][r];
+                    if (c != null) b[r][c] += rhs;
+                    if (a != null) b[r][a] -= rhs;
+                }
+            }
+            DecompositionSolver solver = new LUDecomposition(new Array2DRowRealMatrix(L, false)).getSolver();
+            for (int r = 0; r < 3; r++) {
+                double[] x = solver.solve(new ArrayRealVector(b[r], false)).toArray();
+                for (Map.Entry<Integer, Integer> e : index.entrySet()) {
+                    C[e.getKey()][r] = x[e.getValue()];
+                }
+            }
+
+            // масштабы и робастные веса при фиксированных центрах
+            double scaleSum = 0;
+            for (int k = 0; k < m; k++) {
+                RelativePose e = edges.get(k);
+                double[] diff = sub(C[e.j], C[e.i]);
+                scale[k] = Math.max(dot(diff, dirs[k]), 1e-3);
+                scaleSum += scale[k];
+                double cos = dot(normalize(diff), dirs[k]);
+                double residual = Math.sqrt(Math.max(0, 2 - 2 * cos));
+                weight[k] = edges.get(k).inliers / (1 + sq(residual / DIRECTION_SIGMA));
+            }
+            double mean = scaleSum / m;
+            for (int k = 0; k < m; k++) {
+                scale[k] /= mean;
+            }
+        }
+        return C;
+    }
+
+    /** Rotation of camera {@code v} implied by the edge and the other camera's rotation. */
+    private static double[][] predict(RelativePose e, int v, double[][][] R) {
+        // R_j = R_ij * R_i  =>  R_i = R_ij^T * R_j
+        return v == e.j ? mul(e.R, R[e.i]) : mul(transpose(e.R), R[e.j]);
+    }
+
+    private static double[][] projectToRotation(double[][] M) {
+        SingularValueDecomposition svd = new SingularValueDecomposition(new Array2DRowRealMatrix(M));
+        RealMatrix U = svd.getU(), V = svd.getV();
+        double det = new LUDecomposition(U.multiply(V.transpose())).getDeterminant();
+        RealMatrix S = MatrixUtils.createRealDiagonalMatrix(new double[]{1, 1, det < 0 ? -1 : 1});
+        return U.multiply(S).multiply(V.transpose()).getData();
+    }
+
+    private static double angle(double[][] A, double[][] B) {
+        double trace = 0;
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                trace += A[r][c] * B[r][c];
+            }
+        }
+        return Math.acos(Math.max(-1, Math.min(1, (trace - 1) / 2)));
+    }
+
+    private static List<List<Integer>> adjacency(int n, List<RelativePose> edges) {
+        List<List<Integer>> adj = new ArrayList<>();
+        for (int i = 0; i < n; i++) adj.add(new ArrayList<>());
+        for (RelativePose e : edges) {
+            adj.get(e.i).add(e.j);
+            adj.get(e.j).add(e.i);
+        }
+        return adj;
+    }
+
+    private static List<List<RelativePose>> incidentEdges(int n, List<RelativePose> edges) {
+        List<List<RelativePose>> inc = new ArrayList<>();
+        for (int i = 0; i < n; i++) inc.add(new ArrayList<>());
+        for (RelativePose e : edges) {
+            inc.get(e.i).add(e);
+            inc.get(e.j).add(e);
+        }
+        return inc;
+    }
+
+    private static double[][] identity() {
+        return new double[][]{{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+    }
+
+    private static double[][] mul(double[][] A, double[][] B) {
+        double[][] C = new double[3][3];
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                C[r][c] = A[r][0] * B[0][c] + A[r][1] * B[1][c] + A[r][2] * B[2][c];
+            }
+        }
+        return C;
+    }
+
+    private static double[][] transpose(double[][] A) {
+        double[][] T = new double[3][3];
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                T[r][c] = A[c][r];
+            }
+        }
+        return T;
+    }
+
+    private static double[] sub(double[] a, double[] b) {
+        return new double[]{a[0] - b[0], a[1] - b[1], a[2] - b[2]};
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double[] normalize(double[] v) {
+        double norm = Math.sqrt(dot(v, v));
+        return norm < 1e-12 ? v : new double[]{v[0] / norm, v[1] / norm, v[2] / norm};
+    }
+
+    private static double sq(double x) {
+        return x * x;
+    }
+}
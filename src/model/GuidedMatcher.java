@@ -0,0 +1,427 @@
+package model;
+
+import model.ReconstructionProgress.Stage;
+import model.features.FeatureOptions;
+import model.features.FeatureTracks;
+import model.features.ImageFeatures;
+import model.features.PairMatches;
+import model.features.Track;
+import model.features.TrackBuilder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Guided matching once the cameras are registered: the known poses restrict the search
+ * for more correspondences to a small window, which is much cheaper than matching whole
+ * images again.
+ * <ol>
+ *     <li>existing points are reprojected into cameras that do not observe them yet and
+ *     matched to unused keypoints near the reprojection;</li>
+ *     <li>unused keypoints of co-visible cameras are matched along epipolar lines, chained
+ *     into tracks and triangulated with the fixed poses.</li>
+ * </ol>
+ * Only keypoints that are not part of any track yet take part, so existing observations
+ * never change.
+ */
+final class GuidedMatcher {
+
+    /** Keypoints closer than this to a track observation count as already used. */
+    private static final double SAME_KEYPOINT = 0.5;
+
+    private GuidedMatcher() {
+    }
+
+    /** Keypoints and pose of one registered camera. */
+    private static final class View {
+        final String name;
+        final ImageFeatures features;
+        final List<float[]> descriptors;
+        final KeypointGrid grid;
+        final boolean[] used;
+        final Mat P;
+
+        View(String name, ImageFeatures features, Mat P, double cellSize) {
+            this.name = name;
+            this.features = features;
+            this.descriptors = features.descriptorVectors();
+            this.grid = new KeypointGrid(features, cellSize);
+            this.used = new boolean[features.size()];
+            this.P = P;
+        }
+    }
+
+    /**
+     * Runs both passes over the registered cameras that have features and adds the new
+     * observations and points to {@code recon}, reporting the cloud after each pass.
+     */
+    static void densify(Reconstruction recon, FeatureTracks tracks, FeatureOptions options,
+                        ReconstructionReporter reporter) {
+        double cellSize = Math.max(8, Math.max(options.getReprojectionRadius(), options.getEpipolarThreshold()));
+        Map<String, View> views = new LinkedHashMap<>();
+        for (String cam : recon.getCameraNames()) {
+            ImageFeatures f = tracks.getFeatures().get(cam);
+            if (f == null) {
+                continue;
+            }
+            Mat P = OpenCVSFMConstructor.buildProjection(recon.getK(),
+                    recon.getCameraRotation(cam), recon.getCameraTranslation(cam));
+            View view = new View(cam, f, P, cellSize);
+            for (Point2D p : tracks.getPoints().getOrDefault(cam, Collections.emptyMap()).values()) {
+                for (int k : view.grid.near(p.getX(), p.getY(), SAME_KEYPOINT)) {
+                    view.used[k] = true;
+                }
+            }
+            views.put(cam, view);
+        }
+        if (views.size() < 2) {
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, options.getThreads()));
+        try {
+            extendTracks(recon, views, options, pool);
+            reporter.report(Stage.GUIDED_MATCHING, recon, recon.getCameraNames());
+            OpenCVSFMConstructor.checkCancelled();
+            addEpipolarTracks(recon, views, options, pool);
+            reporter.report(Stage.GUIDED_MATCHING, recon, recon.getCameraNames());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Pass 1: every point is reprojected into the cameras that do not see it yet and
+     * matched against unused keypoints within {@link FeatureOptions#getReprojectionRadius()}.
+     * The point's descriptor is taken from one of its existing observations.
+     */
+    private static int extendTracks(Reconstruction recon, Map<String, View> views,
+                                    FeatureOptions options, ForkJoinPool pool) {
+        // 1) Дескриптор каждой точки — по одному из её наблюдений
+        Map<String, float[]> descriptors = new HashMap<>();
+        for (String pointName : recon.getPointCloud().keySet()) {
+            for (String cam : recon.getObservingCameras(pointName)) {
+                View view = views.get(cam);
+                if (view == null) {
+                    continue;
+                }
+                Point2D obs = recon.getObservation(pointName, cam);
+                List<Integer> near = view.grid.near(obs.getX(), obs.getY(), SAME_KEYPOINT);
+                if (!near.isEmpty()) {
+                    descriptors.put(pointName, view.descriptors.get(near.get(0)));
+                    break;
+                }
+            }
+        }
+
+        // 2) Параллельно по изображениям: точка -> ключевая точка рядом с её проекцией
+        Map<String, Future<Map<Integer, String>>> claims = new LinkedHashMap<>();
+        for (View view : views.values()) {
+            claims.put(view.name, pool.submit(() -> claimKeypoints(recon, view, descriptors, options)));
+        }
+        int added = 0;
+        for (Map.Entry<String, Future<Map<Integer, String>>> e : claims.entrySet()) {
+            View view = views.get(e.getKey());
+            for (Map.Entry<Integer, String> claim : await(e.getValue()).entrySet()) {
+                int k = claim.getKey();
+                String pointName = claim.getValue();
+                recon.addObservation(pointName, view.name,
+                        new Point2D(pointName, view.features.x(k), view.features.y(k)));
+                view.used[k] = true;
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private static Map<Integer, String> claimKeypoints(Reconstruction recon, View view,
+                                                       Map<String, float[]> descriptors,
+                                                       FeatureOptions options) {
+        double[] p = new double[12];
+        view.P.get(0, 0, p);
+        Map<Integer, String> claimed = new HashMap<>();
+        Map<Integer, Double> claimedDistance = new HashMap<>();
+        double ratio2 = options.getRatio() * options.getRatio();
+        for (Map.Entry<String, Point3D> e : recon.getPointCloud().entrySet()) {
+            float[] descriptor = descriptors.get(e.getKey());
+            if (descriptor == null || recon.hasObservation(e.getKey(), view.name)) {
+                continue;
+            }
+            Point3D X = e.getValue();
+            double z = p[8] * X.getX() + p[9] * X.getY() + p[10] * X.getZ() + p[11];
+            if (z <= 0) {
+                continue;
+            }
+            double u = (p[0] * X.getX() + p[1] * X.getY() + p[2] * X.getZ() + p[3]) / z;
+            double v = (p[4] * X.getX() + p[5] * X.getY() + p[6] * X.getZ() + p[7]) / z;
+
+            int best = -1;
+            double bestDist = Double.MAX_VALUE, secondDist = Double.MAX_VALUE;
+            for (int k : view.grid.near(u, v, options.getReprojectionRadius())) {
+                if (view.used[k]) {
+                    continue;
+                }
+                double d = distance2(descriptor, view.descriptors.get(k));
+                if (d < bestDist) {
+                    secondDist = bestDist;
+                    bestDist = d;
+                    best = k;
+                } else if (d < secondDist) {
+                    secondDist = d;
+                }
+            }
+            if (best < 0 || bestDist >= ratio2 * secondDist) {
+                continue;
+            }
+            // ключевую точку получает ближайшая по дескриптору 3D-точка
+            Double previous = claimedDistance.get(best);
+            if (previous == null || bestDist < previous) {
+                claimed.put(best, e.getKey());
+                claimedDistance.put(best, bestDist);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Pass 2: unused keypoints of every co-visible camera pair are matched along the
+     * epipolar lines of the known relative pose, chained into tracks and triangulated.
+     */
+    private static void addEpipolarTracks(Reconstruction recon, Map<String, View> views,
+                                          FeatureOptions options, ForkJoinPool pool) {
+        // 1) Пары камер с общими точками
+        Map<String, Integer> shared = new HashMap<>();
+        for (String pointName : recon.getPointCloud().keySet()) {
+            List<String> cams = new ArrayList<>(recon.getObservingCameras(pointName));
+            cams.retainAll(views.keySet());
+            Collections.sort(cams);
+            for (int i = 0; i < cams.size(); i++) {
+                for (int j = i + 1; j < cams.size(); j++) {
+                    shared.merge(cams.get(i) + '\n' + cams.get(j), 1, Integer::sum);
+                }
+            }
+        }
+
+        // 2) Параллельное сопоставление пар; найденное сразу уходит в построитель треков
+        List<ImageFeatures> features = new ArrayList<>();
+        for (View view : views.values()) {
+            features.add(view.features);
+        }
+        TrackBuilder builder = new TrackBuilder(features);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : shared.entrySet()) {
+            if (e.getValue() < OpenCVSFMConstructor.MIN_COMMON_POINTS) {
+                continue;
+            }
+            String[] pair = e.getKey().split("\n");
+            View a = views.get(pair[0]), b = views.get(pair[1]);
+            tasks.add(pool.submit(() -> {
+                PairMatches matches = matchEpipolar(recon, a, b, options);
+                if (matches.size() > 0) {
+                    builder.add(matches);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            await(task);
+        }
+
+        // 3) Треки -> наблюдения -> триангуляция при известных позах
+        Map<String, Map<String, Point2D>> guided = new HashMap<>();
+        for (String cam : views.keySet()) {
+            guided.put(cam, new HashMap<>());
+        }
+        for (Track track : builder.build()) {
+            if (recon.hasPoint(track.getName())) {
+                continue;
+            }
+            for (int i = 0; i < track.length(); i++) {
+                ImageFeatures f = views.get(track.getImages()[i]).features;
+                int k = track.getKeypoints()[i];
+                guided.get(track.getImages()[i]).put(track.getName(), new Point2D(track.getName(), f.x(k), f.y(k)));
+            }
+        }
+        OpenCVSFMConstructor.triangulateGlobalUninitialized(recon, guided, views.keySet());
+    }
+
+    private static PairMatches matchEpipolar(Reconstruction recon, View a, View b, FeatureOptions options) {
+        double[] f = new double[9];
+        fundamental(recon, a.name, b.name).get(0, 0, f);
+        double ratio2 = options.getRatio() * options.getRatio();
+        double threshold = options.getEpipolarThreshold();
+
+        int[] bestForB = new int[b.features.size()];
+        double[] bestDistForB = new double[b.features.size()];
+        Arrays.fill(bestForB, -1);
+        for (int i = 0; i < a.features.size(); i++) {
+            if (a.used[i]) {
+                continue;
+            }
+            double x = a.features.x(i), y = a.features.y(i);
+            // эпиполярная прямая l = F * x в изображении b
+            double l0 = f[0] * x + f[1] * y + f[2];
+            double l1 = f[3] * x + f[4] * y + f[5];
+            double l2 = f[6] * x + f[7] * y + f[8];
+            double norm = Math.hypot(l0, l1);
+            if (norm == 0) {
+                continue;
+            }
+            int best = -1;
+            double bestDist = Double.MAX_VALUE, secondDist = Double.MAX_VALUE;
+            for (int j : b.grid.nearLine(l0, l1, l2, threshold)) {
+                if (b.used[j]) {
+                    continue;
+                }
+                double d = distance2(a.descriptors.get(i), b.descriptors.get(j));
+                if (d < bestDist) {
+                    secondDist = bestDist;
+                    bestDist = d;
+                    best = j;
+                } else if (d < secondDist) {
+                    secondDist = d;
+                }
+            }
+            if (best < 0 || bestDist >= ratio2 * secondDist) {
+                continue;
+            }
+            if (bestForB[best] < 0 || bestDist < bestDistForB[best]) {
+                bestForB[best] = i;
+                bestDistForB[best] = bestDist;
+            }
+        }
+
+        int[] indices = new int[2 * b.features.size()];
+        int n = 0;
+        for (int j = 0; j < bestForB.length; j++) {
+            if (bestForB[j] >= 0) {
+                indices[n++] = bestForB[j];
+                indices[n++] = j;
+            }
+        }
+        return new PairMatches(a.name, b.name, Arrays.copyOf(indices, n));
+    }
+
+    /** F = K^-T [t]x R K^-1 of the relative pose from camera a to camera b. */
+    private static Mat fundamental(Reconstruction recon, String a, String b) {
+        Mat Ra = recon.getCameraRotation(a), ta = recon.getCameraTranslation(a);
+        Mat Rb = recon.getCameraRotation(b), tb = recon.getCameraTranslation(b);
+        Mat R = new Mat();
+        Core.gemm(Rb, Ra, 1.0, new Mat(), 0.0, R, Core.GEMM_2_T);
+        Mat t = new Mat();
+        Core.gemm(R, ta, -1.0, tb, 1.0, t);
+
+        double tx = t.get(0, 0)[0], ty = t.get(1, 0)[0], tz = t.get(2, 0)[0];
+        Mat skew = new Mat(3, 3, CvType.CV_64F);
+        skew.put(0, 0, 0, -tz, ty, tz, 0, -tx, -ty, tx, 0);
+        Mat E = new Mat();
+        Core.gemm(skew, R, 1.0, new Mat(), 0.0, E);
+
+        Mat Kinv = recon.getK().inv();
+        Mat tmp = new Mat(), F = new Mat();
+        Core.gemm(Kinv, E, 1.0, new Mat(), 0.0, tmp, Core.GEMM_1_T);
+        Core.gemm(tmp, Kinv, 1.0, new Mat(), 0.0, F);
+        return F;
+    }
+
+    private static double distance2(float[] a, float[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            s += d * d;
+        }
+        return s;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Reconstruction cancelled");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Guided matching failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** Uniform grid over the keypoints of one image for radius queries. */
+    private static final class KeypointGrid {
+        private final double cellSize;
+        private final Map<Long, List<Integer>> cells = new HashMap<>();
+        private final ImageFeatures features;
+        // границы занятых ячеек: дальше них прямую не прослеживаем
+        private long minCx = Long.MAX_VALUE, maxCx = Long.MIN_VALUE, minCy = Long.MAX_VALUE, maxCy = Long.MIN_VALUE;
+
+        KeypointGrid(ImageFeatures features, double cellSize) {
+            this.features = features;
+            this.cellSize = cellSize;
+            for (int k = 0; k < features.size(); k++) {
+                long cx = (long) Math.floor(features.x(k) / cellSize), cy = (long) Math.floor(features.y(k) / cellSize);
+                cells.computeIfAbsent(key(cx, cy), c -> new ArrayList<>()).add(k);
+                minCx = Math.min(minCx, cx);
+                maxCx = Math.max(maxCx, cx);
+                minCy = Math.min(minCy, cy);
+                maxCy = Math.max(maxCy, cy);
+            }
+        }
+
+        /**
+         * Keypoints within {@code distance} of the line {@code l0 x + l1 y + l2 = 0}. Only the
+         * cells the band around the line crosses are visited: the line is followed along its
+         * longer axis, one column (or row) of cells at a time.
+         */
+        List<Integer> nearLine(double l0, double l1, double l2, double distance) {
+            List<Integer> result = new ArrayList<>();
+            double norm = Math.hypot(l0, l1);
+            if (norm == 0 || cells.isEmpty()) {
+                return result;
+            }
+            boolean alongX = Math.abs(l1) >= Math.abs(l0);
+            // вдоль оси a прямая задаёт b = -(la * a + l2) / lb; полоса шире на distance * norm / |lb|
+            double la = alongX ? l0 : l1, lb = alongX ? l1 : l0;
+            double halfWidth = distance * norm / Math.abs(lb);
+            long a0 = alongX ? minCx : minCy, a1 = alongX ? maxCx : maxCy;
+            long b0 = alongX ? minCy : minCx, b1 = alongX ? maxCy : maxCx;
+            for (long ca = a0; ca <= a1; ca++) {
+                double u = -(la * ca * cellSize + l2) / lb, v = -(la * (ca + 1) * cellSize + l2) / lb;
+                long cb0 = Math.max(b0, (long) Math.floor((Math.min(u, v) - halfWidth) / cellSize));
+                long cb1 = Math.min(b1, (long) Math.floor((Math.max(u, v) + halfWidth) / cellSize));
+                for (long cb = cb0; cb <= cb1; cb++) {
+                    List<Integer> cell = cells.get(alongX ? key(ca, cb) : key(cb, ca));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int k : cell) {
+                        if (Math.abs(l0 * features.x(k) + l1 * features.y(k) + l2) <= distance * norm) {
+                            result.add(k);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        List<Integer> near(double x, double y, double radius) {
+            List<Integer> result = new ArrayList<>();
+            long cx0 = (long) Math.floor((x - radius) / cellSize), cx1 = (long) Math.floor((x + radius) / cellSize);
+            long cy0 = (long) Math.floor((y - radius) / cellSize), cy1 = (long) Math.floor((y + radius) / cellSize);
+            for (long cx = cx0; cx <= cx1; cx++) {
+                for (long cy = cy0; cy <= cy1; cy++) {
+                    for (int k : cells.getOrDefault(key(cx, cy), Collections.emptyList())) {
+                        double dx = features.x(k) - x, dy = features.y(k) - y;
+                        if (dx * dx + dy * dy <= radius * radius) {
+                            result.add(k);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static long key(long cx, long cy) {
+            return (cx << 32) ^ (cy & 0xFFFFFFFFL);
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package model;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 
@@ -15,13 +26,283 @@ public class Image implements Serializable {
     private String imagePath;
     private final List<Point2D> points = new ArrayList<>();
 
+    @Getter(AccessLevel.NONE)
     private transient BufferedImage bufferedImage;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ImageBlob blob; // original encoded bytes: source photo or project file
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ImagePyramid pyramid; // built on first use, reset with the image
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient String contentHash; // computed on first use, reset with the image
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient Dimension dimensions; // read on first use, reset with the image
 
     public Image(String imagePath, BufferedImage bufferedImage) {
         this.imagePath = imagePath;
         this.bufferedImage = bufferedImage;
     }
 
+    /**
+     * Image added from a photo on disk: the file's bytes are kept as they are when the
+     * project is saved, instead of re-encoding the decoded pixels.
+     */
+    public Image(String imagePath, BufferedImage bufferedImage, Path source) throws IOException {
+        this.imagePath = imagePath;
+        this.bufferedImage = bufferedImage;
+        this.blob = ImageBlob.ofFile(source);
+    }
+
+    /**
+     * Image loaded from a project file: pixels are decoded from the blob on first access.
+     */
+    Image(String imagePath, ImageBlob blob) {
+        this.imagePath = imagePath;
+        this.blob = blob;
+    }
+
+    public synchronized void setBufferedImage(BufferedImage bufferedImage) {
+        this.bufferedImage = bufferedImage;
+        this.blob = null;
+        this.pyramid = null;
+        this.contentHash = null;
+        this.dimensions = null;
+    }
+
+    /**
+     * Pixels of the image, decoded from the project file the first time they are needed.
+     */
+    public BufferedImage getBufferedImage() {
+        while (true) {
+            ImageBlob source;
+            synchronized (this) {
+                if (bufferedImage != null || blob == null) {
+                    return bufferedImage;
+                }
+                source = blob;
+            }
+            // декодируем без блокировки изображения: файл проекта может в это время переписываться
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(source.read())) {
+                BufferedImage decoded = ImageIO.read(bais);
+                synchronized (this) {
+                    if (bufferedImage == null) {
+                        bufferedImage = decoded;
+                    }
+                    return bufferedImage;
+                }
+            } catch (ImageBlob.StaleBlobException e) {
+                // файл проекта переписан, ссылка уже обновлена — читаем из нового
+                if (!relocatedFrom(source)) {
+                    throw new RuntimeException("Cannot read image \"" + imagePath + "\" from project", e);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read image \"" + imagePath + "\" from project", e);
+            }
+        }
+    }
+
+    /**
+     * Original encoded bytes to be saved verbatim, or {@code null} if the image has to be
+     * encoded because its pixels were replaced or its source photo changed on disk.
+     */
+    synchronized ImageBlob storedBlob() {
+        return blob != null && blob.isAvailable() ? blob : null;
+    }
+
+    /**
+     * Encoded image: the original bytes if they are still available, otherwise PNG.
+     * Empty if there is no image.
+     */
+    byte[] encoded() throws IOException {
+        while (true) {
+            ImageBlob stored = storedBlob();
+            if (stored == null) {
+                BufferedImage pixels = getBufferedImage();
+                return pixels == null ? new byte[0] : encodePng(pixels);
+            }
+            try {
+                return stored.read();
+            } catch (ImageBlob.StaleBlobException e) {
+                if (!relocatedFrom(stored)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    static byte[] encodePng(BufferedImage pixels) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(pixels, "png", baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Points the image at a new copy of its bytes, unless it changed since they were taken:
+     * {@code from} is the blob that was copied, or {@code null} if {@code pixels} were encoded.
+     */
+    synchronized void relocateBlob(ImageBlob from, BufferedImage pixels, ImageBlob to) {
+        if (from != null ? blob == from : blob == null && bufferedImage == pixels) {
+            blob = to;
+        }
+    }
+
+    /** Decoded pixels if they are in memory; never reads the file. */
+    synchronized BufferedImage loadedPixels() {
+        return bufferedImage;
+    }
+
+    private synchronized boolean relocatedFrom(ImageBlob source) {
+        return blob != source;
+    }
+
+    /**
+     * Reduced-resolution versions of the image for processing stages; {@code null} if the
+     * image is not loaded. Coordinates found on a pyramid level are mapped back to
+     * full-resolution pixels with {@link ImagePyramid#toFull}.
+     */
+    public ImagePyramid getPyramid() {
+        getBufferedImage();
+        synchronized (this) {
+            if (pyramid == null && bufferedImage != null) {
+                pyramid = new ImagePyramid(bufferedImage);
+            }
+            return pyramid;
+        }
+    }
+
+    /**
+     * Pyramid of the image that is not kept on it. If the pixels are already in memory this is
+     * {@link #getPyramid()}; otherwise the encoded bytes are decoded into a pyramid that only
+     * the caller holds, so it is freed as soon as the caller drops it. {@code null} if there
+     * is no image.
+     */
+    public ImagePyramid decodePyramid() {
+        while (true) {
+            ImageBlob source;
+            synchronized (this) {
+                source = bufferedImage != null ? null : blob;
+            }
+            if (source == null) {
+                return getPyramid();
+            }
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(source.read())) {
+                BufferedImage decoded = ImageIO.read(bais);
+                return decoded == null ? null : new ImagePyramid(decoded);
+            } catch (ImageBlob.StaleBlobException e) {
+                if (!relocatedFrom(source)) {
+                    throw new RuntimeException("Cannot read image \"" + imagePath + "\" from project", e);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read image \"" + imagePath + "\" from project", e);
+            }
+        }
+    }
+
+    /**
+     * SHA-256 of the image as hex: of its original encoded bytes while they are available,
+     * so the image is not decoded, otherwise of its pixels. Moving the bytes to another
+     * file keeps the hash.
+     */
+    public String contentHash() {
+        while (true) {
+            ImageBlob stored;
+            synchronized (this) {
+                if (contentHash != null) {
+                    return contentHash;
+                }
+                stored = storedBlob();
+            }
+            try {
+                MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                if (stored != null) {
+                    sha.update(stored.read());
+                } else {
+                    BufferedImage pixels = getBufferedImage();
+                    if (pixels != null) {
+                        updateWithPixels(sha, pixels);
+                    }
+                }
+                StringBuilder hex = new StringBuilder();
+                for (byte b : sha.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                synchronized (this) {
+                    // пиксели могли замениться, пока считался хеш
+                    if (stored == null || blob == stored) {
+                        contentHash = hex.toString();
+                    }
+                    return hex.toString();
+                }
+            } catch (ImageBlob.StaleBlobException e) {
+                if (!relocatedFrom(stored)) {
+                    throw new RuntimeException("Cannot read image \"" + imagePath + "\" from project", e);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read image \"" + imagePath + "\"", e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 is not available", e);
+            }
+        }
+    }
+
+    private static void updateWithPixels(MessageDigest sha, BufferedImage pixels) {
+        int w = pixels.getWidth(), h = pixels.getHeight();
+        ByteBuffer row = ByteBuffer.allocate(4 * w);
+        int[] argb = new int[w];
+        sha.update(ByteBuffer.allocate(8).putInt(w).putInt(h).array());
+        for (int y = 0; y < h; y++) {
+            pixels.getRGB(0, y, w, 1, argb, 0, w);
+            row.clear();
+            row.asIntBuffer().put(argb);
+            sha.update(row.array());
+        }
+    }
+
+    /**
+     * Width and height of the image. Read from the header of the encoded bytes if the
+     * pixels are not decoded yet, so estimating intrinsics does not decode the image.
+     */
+    public Dimension dimensions() {
+        ImageBlob stored;
+        synchronized (this) {
+            if (dimensions != null) {
+                return dimensions;
+            }
+            if (bufferedImage != null) {
+                dimensions = new Dimension(bufferedImage.getWidth(), bufferedImage.getHeight());
+                return dimensions;
+            }
+            stored = storedBlob();
+        }
+        if (stored != null) {
+            try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(stored.read()))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(in, true, true);
+                        Dimension read = new Dimension(reader.getWidth(0), reader.getHeight(0));
+                        synchronized (this) {
+                            if (blob == stored) {
+                                dimensions = read;
+                            }
+                        }
+                        return read;
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            } catch (IOException e) {
+                // заголовок не прочитан — узнаем размер, декодировав изображение
+            }
+        }
+        BufferedImage pixels = getBufferedImage();
+        return pixels == null ? null : new Dimension(pixels.getWidth(), pixels.getHeight());
+    }
+
     public boolean addPoint(Point2D newPoint) {
         // если точка с таким именем уже есть — обновляем координаты
         for (Point2D point : points) {
@@ -39,15 +320,9 @@ public class Image implements Serializable {
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.defaultWriteObject();
 
-        if (bufferedImage != null) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(bufferedImage, "png", baos);
-            byte[] bytes = baos.toByteArray();
-            out.writeInt(bytes.length);
-            out.write(bytes);
-        } else {
-            out.writeInt(0);
-        }
+        byte[] bytes = encoded();
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
     @Serial
@@ -0,0 +1,150 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Закодированное изображение в файле: весь исходный снимок или его копия внутри файла
+ * проекта. Байты читаются только по запросу.
+ */
+final class ImageBlob {
+
+    /**
+     * A project file whose blobs may be read while it is being rewritten. Readers hold the
+     * read lock; a rewrite replaces the file and bumps the generation under the write lock,
+     * so a blob of an older generation is never read at offsets of the new file.
+     */
+    static final class Store {
+        private final Path path;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int generation;
+
+        Store(Path path) {
+            this.path = path;
+        }
+
+        Path path() {
+            return path;
+        }
+
+        ReentrantReadWriteLock lock() {
+            return lock;
+        }
+
+        /** Called with the write lock held once the new file is in place. */
+        void replaced() {
+            generation++;
+        }
+
+        ImageBlob blob(long offset, int length) {
+            return new ImageBlob(path, this, generation, offset, length, null);
+        }
+    }
+
+    /** The project file was rewritten since the blob was taken; its owner holds a newer one. */
+    static final class StaleBlobException extends IOException {
+        StaleBlobException(Path file) {
+            super("Project file was rewritten: " + file);
+        }
+    }
+
+    private final Path file;
+    private final Store store;
+    private final int generation;
+    private final long offset;
+    private final int length;
+    /** Modification time of a source photo when it was added; {@code null} for project files. */
+    private final FileTime modified;
+
+    private ImageBlob(Path file, Store store, int generation, long offset, int length, FileTime modified) {
+        this.file = file;
+        this.store = store;
+        this.generation = generation;
+        this.offset = offset;
+        this.length = length;
+        this.modified = modified;
+    }
+
+    /** The whole file as it is now, e.g. the photo an image was added from. */
+    static ImageBlob ofFile(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Image file too large: " + file);
+        }
+        return new ImageBlob(file, null, 0, 0, (int) size, Files.getLastModifiedTime(file));
+    }
+
+    int length() {
+        return length;
+    }
+
+    /** Whether the bytes are still there: a source photo may have been edited or deleted. */
+    boolean isAvailable() {
+        if (modified == null) {
+            return true;
+        }
+        try {
+            return Files.size(file) == length && Files.getLastModifiedTime(file).equals(modified);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    byte[] read() throws IOException {
+        lock();
+        try {
+            byte[] bytes = new byte[length];
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, offset + buf.position()) < 0) {
+                        throw new IOException("File truncated: " + file);
+                    }
+                }
+            }
+            return bytes;
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Copies the bytes to the current position of {@code target} without decoding them. */
+    void copyTo(WritableByteChannel target) throws IOException {
+        lock();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long done = 0;
+            while (done < length) {
+                long n = ch.transferTo(offset + done, length - done, target);
+                if (n <= 0) {
+                    throw new IOException("File truncated: " + file);
+                }
+                done += n;
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    private void lock() throws StaleBlobException {
+        if (store != null) {
+            store.lock.readLock().lock();
+            if (store.generation != generation) {
+                store.lock.readLock().unlock();
+                throw new StaleBlobException(file);
+            }
+        }
+    }
+
+    private void unlock() {
+        if (store != null) {
+            store.lock.readLock().unlock();
+        }
+    }
+}
@@ -4,7 +4,9 @@ import lombok.Getter;
 import javax.swing.DefaultListModel;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Collections;
 import java.util.Map;
@@ -23,6 +25,16 @@ public class ImageProcessor implements Serializable {
     private String activeImage = null;
     private String activePointName = null;
 
+    // правки с момента последней реконструкции
+    private transient ChangeSet pendingChanges = new ChangeSet();
+
+    // файл проекта, к которому дописываются сохранения
+    private transient ProjectJournal journal;
+    // счётчик правок, сохранённая правка и номер открытого проекта (меняется при replaceWith)
+    private transient volatile long revision;
+    private transient long savedRevision;
+    private transient long project;
+
     public ImageProcessor() {
         imagesModel = new DefaultListModel<>();
         pointsModel = new DefaultListModel<>();
@@ -31,6 +43,21 @@ public class ImageProcessor implements Serializable {
     public void addImage(String key, BufferedImage bufferedImage) {
         if (images.containsKey(key)) return;
         images.put(key, new Image(key, bufferedImage));
+        pendingChanges.structureChanged();
+        revision++;
+        imagesModel.addElement(key);
+        setActiveImage(key);
+    }
+
+    /**
+     * Adds an image read from {@code source}; the project keeps the file's original bytes
+     * rather than re-encoding the pixels on save.
+     */
+    public void addImage(String key, BufferedImage bufferedImage, Path source) throws IOException {
+        if (images.containsKey(key)) return;
+        images.put(key, new Image(key, bufferedImage, source));
+        pendingChanges.structureChanged();
+        revision++;
         imagesModel.addElement(key);
         setActiveImage(key);
     }
@@ -85,6 +112,31 @@ public class ImageProcessor implements Serializable {
             pointsModel.addElement(newPoint.getName());
         }
         activePointName = newPoint.getName();
+        pendingChanges.pointChanged(newPoint.getName());
+        revision++;
+    }
+
+    /**
+     * Перемещает активную точку активного изображения и запоминает правку.
+     */
+    public void moveActivePoint(double x, double y) {
+        Point2D point = getActivePoint();
+        if (point == null) {
+            throw new IllegalStateException("No active point selected");
+        }
+        point.setX(x);
+        point.setY(y);
+        pendingChanges.pointChanged(point.getName());
+        revision++;
+    }
+
+    /**
+     * Возвращает накопленные правки и начинает новый набор.
+     */
+    public ChangeSet drainChanges() {
+        ChangeSet changes = pendingChanges;
+        pendingChanges = new ChangeSet();
+        return changes;
     }
 
     public Point2D getActivePoint() {
@@ -112,21 +164,97 @@ public class ImageProcessor implements Serializable {
         throw new IllegalArgumentException("Point \"" + pointName + "\" not found");
     }
 
+    /**
+     * Saves the project in the chunked {@link ProjectFile} format. The first save to a file
+     * writes everything; later saves to the same file append only the edits made since.
+     */
     public void save(String saveFilePath) throws IOException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(saveFilePath))) {
-            oos.writeObject(this);
+        save(snapshot(), Path.of(saveFilePath));
+    }
+
+    /**
+     * Copies what a save needs: the points, the selection and where each image's bytes are.
+     * Cheap enough for the event thread; encoding and writing happen in {@link #save(ProjectSnapshot, Path)}.
+     */
+    public ProjectSnapshot snapshot() {
+        Map<String, ProjectSnapshot.ImageState> states = new LinkedHashMap<>();
+        for (Map.Entry<String, Image> e : images.entrySet()) {
+            Image image = e.getValue();
+            Map<String, double[]> points = new LinkedHashMap<>();
+            for (Point2D p : image.getPoints()) {
+                points.put(p.getName(), new double[]{p.getX(), p.getY()});
+            }
+            ImageBlob stored = image.storedBlob();
+            states.put(e.getKey(), new ProjectSnapshot.ImageState(
+                    image, stored, stored == null ? image.loadedPixels() : null, points));
+        }
+        long currentProject;
+        synchronized (this) {
+            currentProject = project;
+        }
+        return new ProjectSnapshot(states, activeImage, activePointName, revision, currentProject);
+    }
+
+    /**
+     * Writes a snapshot taken earlier; may be called from a background thread. If another
+     * project was opened since the snapshot, it is still written to {@code path}, but the
+     * current project does not take that file over.
+     */
+    public void save(ProjectSnapshot snapshot, Path path) throws IOException {
+        ProjectJournal current;
+        synchronized (this) {
+            current = snapshot.project == project ? journal : null;
+        }
+        if (current != null && current.isFor(path)) {
+            current.save(snapshot);
+        } else {
+            ProjectJournal created = ProjectJournal.create(snapshot, path);
+            ProjectJournal unused;
+            synchronized (this) {
+                if (snapshot.project == project && journal == current) {
+                    unused = journal;
+                    journal = created;
+                } else {
+                    unused = created;
+                }
+            }
+            if (unused != null) {
+                unused.close();
+            }
+        }
+        synchronized (this) {
+            if (snapshot.project == project) {
+                savedRevision = Math.max(savedRevision, snapshot.revision);
+            }
         }
     }
 
+    /** Whether there are edits that no finished save has written yet. */
+    public synchronized boolean isModified() {
+        return revision != savedRevision;
+    }
+
+    /**
+     * Opens a project. Only the index and the points are read; images are decoded when they
+     * are first shown or processed. Projects saved by older versions as a serialized
+     * {@code ImageProcessor} are still read, all at once.
+     */
     public static ImageProcessor load(String saveFilePath)
             throws IOException, ClassNotFoundException {
+        Path path = Path.of(saveFilePath);
+        if (ProjectFile.isProjectFile(path)) {
+            return ProjectJournal.open(path);
+        }
         try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(saveFilePath))) {
+                new BufferedInputStream(new FileInputStream(saveFilePath)))) {
             return (ImageProcessor) ois.readObject();
         }
     }
 
+    void setJournal(ProjectJournal journal) {
+        this.journal = journal;
+    }
+
     @Serial
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.defaultWriteObject();
@@ -138,16 +266,8 @@ public class ImageProcessor implements Serializable {
         in.defaultReadObject();
 
         imagesModel = new DefaultListModel<>();
-        for (String key : images.keySet()) {
-            imagesModel.addElement(key);
-        }
-
         pointsModel = new DefaultListModel<>();
-        if (activeImage != null) {
-            for (Point2D p : images.get(activeImage).getPoints()) {
-                pointsModel.addElement(p.getName());
-            }
-        }
+        restoreState();
     }
 
     public void replaceWith(ImageProcessor other) {
@@ -158,8 +278,49 @@ public class ImageProcessor implements Serializable {
         // 2) скопировать текущий выбор
         this.activeImage = other.activeImage;
         this.activePointName = other.activePointName;
+        ProjectJournal previous;
+        synchronized (this) {
+            previous = this.journal;
+            this.journal = other.journal;
+            project++;
+            // загруженный проект совпадает со своим файлом
+            savedRevision = ++revision;
+        }
+        if (previous != null && previous != other.journal) {
+            previous.close();
+        }
 
         // 3) восстановить модели списков
+        restoreState();
+    }
+
+    /**
+     * Sets the selection after the images were filled in by a loader and rebuilds the
+     * list models.
+     */
+    void restoreSelection(String activeImage, String activePointName) {
+        this.activeImage = activeImage != null && images.containsKey(activeImage) ? activeImage : null;
+        this.activePointName = this.activeImage != null ? activePointName : null;
+        restoreState();
+    }
+
+    /** Active image and point names, {@code null} if nothing is selected. */
+    String getActiveImageName() {
+        return activeImage;
+    }
+
+    String getActivePointName() {
+        return activePointName;
+    }
+
+    /**
+     * Rebuilds the list models from the images and marks everything as changed, since the
+     * next reconstruction has nothing to be incremental against.
+     */
+    private void restoreState() {
+        pendingChanges = new ChangeSet();
+        pendingChanges.structureChanged();
+
         imagesModel.clear();
         for (String key : images.keySet()) {
             imagesModel.addElement(key);
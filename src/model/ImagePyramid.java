@@ -0,0 +1,126 @@
+package model;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+
+/**
+ * Пирамида изображения: уровень 0 — оригинал, каждый следующий вдвое меньше по обеим осям.
+ * Уровни строятся лениво при первом запросе и держатся по мягким ссылкам, так что под
+ * нехваткой памяти GC может их выбросить, а следующий запрос построит заново.
+ * <p>
+ * Level {@code L} pixel {@code (x, y)} is the mean of the {@code 2^L x 2^L} block of the
+ * original starting at {@code (x * 2^L, y * 2^L)}; an odd last row or column is dropped, so
+ * the mapping back to full resolution is exact: see {@link #toFull}.
+ */
+public final class ImagePyramid {
+
+    /** Levels stop before the longer side drops below this. */
+    private static final int MIN_SIZE = 64;
+
+    private final BufferedImage base;
+    private final SoftReference<BufferedImage>[] levels;
+
+    @SuppressWarnings("unchecked")
+    public ImagePyramid(BufferedImage base) {
+        this.base = base;
+        this.levels = new SoftReference[levelCount(base.getWidth(), base.getHeight())];
+    }
+
+    /** Number of levels of a pyramid over an image of the given size. */
+    public static int levelCount(int width, int height) {
+        int count = 1;
+        for (int w = width, h = height; Math.max(w, h) / 2 >= MIN_SIZE; w /= 2, h /= 2) {
+            count++;
+        }
+        return count;
+    }
+
+    public int getWidth() {
+        return base.getWidth();
+    }
+
+    public int getHeight() {
+        return base.getHeight();
+    }
+
+    public int levelCount() {
+        return levels.length;
+    }
+
+    /**
+     * The finest level whose longer side is at most {@code maxSize} pixels, or the coarsest
+     * level if none is; {@code maxSize <= 0} means full resolution.
+     */
+    public int levelFor(int maxSize) {
+        return levelFor(base.getWidth(), base.getHeight(), maxSize);
+    }
+
+    /**
+     * Same as {@link #levelFor(int)} for a pyramid over an image of the given size, without
+     * building it.
+     */
+    public static int levelFor(int width, int height, int maxSize) {
+        if (maxSize <= 0) {
+            return 0;
+        }
+        int count = levelCount(width, height);
+        int level = 0;
+        int size = Math.max(width, height);
+        while (size > maxSize && level + 1 < count) {
+            size /= 2;
+            level++;
+        }
+        return level;
+    }
+
+    /** Image of the given level, building it (and any missing finer levels) on demand. */
+    public synchronized BufferedImage level(int level) {
+        if (level < 0 || level >= levels.length) {
+            throw new IllegalArgumentException("Pyramid level " + level + " out of range 0.." + (levels.length - 1));
+        }
+        if (level == 0) {
+            return base;
+        }
+        BufferedImage cached = levels[level] == null ? null : levels[level].get();
+        if (cached == null) {
+            cached = halve(level(level - 1));
+            levels[level] = new SoftReference<>(cached);
+        }
+        return cached;
+    }
+
+    /** Pixels of the original per pixel of the level. */
+    public static int scale(int level) {
+        return 1 << level;
+    }
+
+    /** Level pixel coordinate (x or y) to full-resolution pixel coordinate. */
+    public static double toFull(int level, double coordinate) {
+        return (coordinate + 0.5) * scale(level) - 0.5;
+    }
+
+    /** Full-resolution pixel coordinate to level pixel coordinate. */
+    public static double fromFull(int level, double coordinate) {
+        return (coordinate + 0.5) / scale(level) - 0.5;
+    }
+
+    /** 2x2 box filter and decimation. */
+    private static BufferedImage halve(BufferedImage src) {
+        int w = src.getWidth() / 2, h = src.getHeight() / 2;
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] top = new int[2 * w], bottom = new int[2 * w], out = new int[w];
+        for (int y = 0; y < h; y++) {
+            src.getRGB(0, 2 * y, 2 * w, 1, top, 0, 2 * w);
+            src.getRGB(0, 2 * y + 1, 2 * w, 1, bottom, 0, 2 * w);
+            for (int x = 0; x < w; x++) {
+                int a = top[2 * x], b = top[2 * x + 1], c = bottom[2 * x], d = bottom[2 * x + 1];
+                int r = (((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + ((c >> 16) & 0xFF) + ((d >> 16) & 0xFF) + 2) >> 2;
+                int g = (((a >> 8) & 0xFF) + ((b >> 8) & 0xFF) + ((c >> 8) & 0xFF) + ((d >> 8) & 0xFF) + 2) >> 2;
+                int bl = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >> 2;
+                out[x] = (r << 16) | (g << 8) | bl;
+            }
+            dst.setRGB(0, y, w, 1, out, 0, w);
+        }
+        return dst;
+    }
+}
@@ -7,6 +7,8 @@ import java.util.Objects;
  * Базовый класс точки с единственным общим полем — именем.
  */
 public abstract class NamedPoint implements Serializable {
+    private static final long serialVersionUID = 4708523524685909291L;
+
     private final String name;
 
     public NamedPoint(String name) {
@@ -2,14 +2,27 @@ package model;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
-import lombok.Getter;
 import lombok.NoArgsConstructor;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.*;
 
-import java.awt.image.BufferedImage;
+import model.ReconstructionProgress.Stage;
+import model.dense.DenseReconstructor;
+import model.features.FeatureCache;
+import model.features.FeatureMatchingPipeline;
+import model.features.FeatureOptions;
+import model.features.FeatureTracks;
+import model.features.ImageFeatures;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -33,7 +46,7 @@ public class OpenCVSFMConstructor {
     private static final boolean ENABLE_GLOBAL_BA = true; // Enable global bundle adjustment after adding each camera
     private static final int MIN_POINTS_FOR_RESECTION = 4; // Minimum 3D-2D correspondences for PnP
     private static final int MIN_INLIERS_FOR_CAMERA = 6; // Minimum inliers to accept a camera
-    private static final int MIN_COMMON_POINTS = 5; // Minimum points to consider connecting two cameras
+    static final int MIN_COMMON_POINTS = 5; // Minimum points to consider connecting two cameras
     private static final double PNP_REPROJECTION_THRESH  = 10.0;
 
     /**
@@ -55,87 +68,420 @@ public class OpenCVSFMConstructor {
      * adding cameras one by one while minimizing reprojection error.
      */
     public static List<Point3D> reconstructAll(ImageProcessor proc) {
-        // 1) Собираем все имена изображений
-        List<String> allImages = Collections.list(proc.getImagesModel().elements());
+        return reconstructAll(proc, ReconstructionListener.NONE);
+    }
+
+    /**
+     * Same as {@link #reconstructAll(ImageProcessor)}, reporting progress to the listener.
+     * The run can be cancelled by interrupting the calling thread; in that case a
+     * {@link CancellationException} is thrown at the next stage boundary.
+     */
+    public static List<Point3D> reconstructAll(ImageProcessor proc, ReconstructionListener listener) {
+        return exportCloud(reconstruct(proc, listener));
+    }
+
+    /**
+     * Runs the full incremental reconstruction and returns its state, which can later be
+     * refined with {@link #applyChanges} instead of rebuilding from scratch.
+     */
+    public static Reconstruction reconstruct(ImageProcessor proc, ReconstructionListener listener) {
+        return reconstruct(proc, new ReconstructionOptions(), listener);
+    }
+
+    /**
+     * Same as {@link #reconstruct(ImageProcessor, ReconstructionListener)} with checkpointing:
+     * the state is saved every {@link ReconstructionOptions#getCheckpointInterval()} registered
+     * cameras and on cancellation, and with {@link ReconstructionOptions#isResume()} an existing
+     * checkpoint is loaded and registration continues with the next unregistered image.
+     */
+    public static Reconstruction reconstruct(ImageProcessor proc, ReconstructionOptions options,
+                                             ReconstructionListener listener) {
+        return reconstruct(new HashMap<>(proc.getImages()), collectPoints(proc), options, listener);
+    }
+
+    /**
+     * Same as {@link #reconstruct(ImageProcessor, ReconstructionOptions, ReconstructionListener)}
+     * over a copy of the image map and points taken with {@link #collectPoints(ImageProcessor)}
+     * on the EDT, so a run in a background thread never reads the image map, the image list
+     * or the points while they are edited.
+     */
+    public static Reconstruction reconstruct(Map<String, Image> images, Map<String, Map<String, Point2D>> pointsByImage,
+                                             ReconstructionOptions options, ReconstructionListener listener) {
+        // 1) Имена изображений в порядке списка
+        List<String> allImages = new ArrayList<>(pointsByImage.keySet());
         if (allImages.size() < 2) {
             throw new RuntimeException("At least 2 images are required for reconstruction");
         }
-
-        // 2) Собираем 2D-точки по каждому изображению
-        Map<String, Map<String, Point2D>> pointsByImage = new HashMap<>();
-        for (String imageName : allImages) {
-            proc.setActiveImage(imageName);
-            List<Point2D> points = proc.getActiveImagePoints();
-            Map<String, Point2D> pointMap = points.stream()
-                    .collect(Collectors.toMap(Point2D::getName, Function.identity()));
-            pointsByImage.put(imageName, pointMap);
+        ReconstructionReporter reporter = new ReconstructionReporter(listener, allImages.size());
+        reporter.started();
+
+        Function<String, Mat> intrinsics =
+                imageName -> estimateCameraMatrix(images.get(imageName).dimensions());
+        // без автоматических признаков все пары считаются одинаково надёжными
+        ToDoubleBiFunction<String, String> pairWeight = (a, b) -> FeatureTracks.UNVERIFIED_WEIGHT;
+        FeatureTracks tracks = null;
+        if (options.getFeatures() != null) {
+            reporter.progress(new ReconstructionProgress(Stage.FEATURES, 0, allImages.size(), 0, Double.NaN));
+            tracks = matchFeatures(images, allImages, pointsByImage, intrinsics, options.getFeatures());
+            pointsByImage = tracks.getPoints();
+            pairWeight = tracks::inlierRatio;
         }
 
-        // 3) Находим лучшую первичную пару
-        ImagePair bestPair = findBestPair(allImages, pointsByImage);
-        System.out.println("Best pair: " + bestPair.getImage1() + " <-> " + bestPair.getImage2() +
-                " with " + bestPair.getCor() + " correspondences");
+        Reconstruction recon;
+        if (options.getMode() == ReconstructionOptions.Mode.PARTITIONED) {
+            recon = PartitionedSFMConstructor.reconstruct(allImages, pointsByImage, intrinsics, pairWeight,
+                    options, reporter);
+        } else if (options.getMode() == ReconstructionOptions.Mode.GLOBAL) {
+            recon = GlobalSFMConstructor.reconstruct(allImages, pointsByImage, intrinsics, options, reporter);
+        } else {
+            Reconstruction resumed = null;
+            Path checkpoint = options.getCheckpointPath();
+            if (options.isResume() && checkpoint != null && Files.exists(checkpoint)) {
+                resumed = validateCheckpoint(readCheckpoint(checkpoint), allImages, pointsByImage);
+                if (resumed == null) {
+                    System.out.println("Checkpoint does not match the current images, starting from scratch");
+                } else {
+                    System.out.println("Resumed from checkpoint with " + resumed.getCameraNames().size() + " cameras");
+                }
+            }
+            recon = reconstructIncremental(allImages, pointsByImage, intrinsics, pairWeight, resumed,
+                    checkpoint, options.getCheckpointInterval(), reporter);
+        }
 
-        // 4) Оцениваем K по первому изображению
-        BufferedImage img0 = proc.getImage(bestPair.getImage1()).getBufferedImage();
-        Mat K = estimateCameraMatrix(img0);
+        // Уплотнение по известным позам: поиск только вблизи проекций и эпиполярных линий
+        if (tracks != null && options.getFeatures().isGuidedMatching()) {
+            checkCancelled();
+            GuidedMatcher.densify(recon, tracks, options.getFeatures(), reporter);
+            reporter.report(Stage.FINISHED, recon, recon.getCameraNames());
+        }
 
-        // 5) Инициализируем реконструкцию по этой паре
-        Reconstruction recon = new Reconstruction(K);
-        initializeFromPair(recon, bestPair, pointsByImage, proc);
+        // Плотное облако по готовым позам; разреженная модель при этом не меняется
+        if (options.getDense() != null) {
+            int points = recon.getPointCloud().size();
+            // пиксели декодируются заново при загрузке вида и не остаются на изображении
+            recon.setDenseCloud(DenseReconstructor.reconstruct(recon,
+                    imageName -> images.get(imageName).dimensions(),
+                    imageName -> images.get(imageName).decodePyramid(), options.getDense(),
+                    (done, total) -> {
+                        checkCancelled();
+                        reporter.progress(new ReconstructionProgress(Stage.DENSE, done, total, points, Double.NaN));
+                    }));
+            reporter.report(Stage.FINISHED, recon, recon.getCameraNames());
+        }
+        return recon;
+    }
 
-        // 6) Готовим множества добавленных и оставшихся изображений
+    /**
+     * Incremental SfM over the given images: initialise from the best pair (or continue the
+     * resumed state), register the remaining images one by one, then triangulate what is left
+     * and run a final global BA. Also used for the submodels of the partitioned mode.
+     *
+     * @param intrinsics estimates K from the first image of the initial pair
+     * @param pairWeight reliability of the automatic matches of an image pair in [0, 1], scales
+     *                   their share of its score as initial pair; manual points count in full
+     * @param resumed    state loaded from a checkpoint, or {@code null} to start from scratch
+     * @param checkpoint where to write checkpoints, or {@code null} to disable them
+     */
+    static Reconstruction reconstructIncremental(List<String> allImages,
+                                                 Map<String, Map<String, Point2D>> pointsByImage,
+                                                 Function<String, Mat> intrinsics,
+                                                 ToDoubleBiFunction<String, String> pairWeight,
+                                                 Reconstruction resumed,
+                                                 Path checkpoint,
+                                                 int checkpointInterval,
+                                                 ReconstructionReporter reporter) {
+        Reconstruction recon;
         Set<String> reconstructedImages = new HashSet<>();
-        reconstructedImages.add(bestPair.getImage1());
-        reconstructedImages.add(bestPair.getImage2());
+        if (resumed != null) {
+            // 3-5) Продолжаем с чекпоинта вместо инициализации по лучшей паре
+            recon = resumed;
+            reconstructedImages.addAll(recon.getCameraNames());
+        } else {
+            // 3) Находим лучшую первичную пару
+            ImagePair bestPair = findBestPair(allImages, pointsByImage, pairWeight);
+            System.out.println("Best pair: " + bestPair.getImage1() + " <-> " + bestPair.getImage2() +
+                    " with " + bestPair.getCor() + " correspondences");
+
+            // 4) Оцениваем K по первому изображению
+            Mat K = intrinsics.apply(bestPair.getImage1());
+
+            // 5) Инициализируем реконструкцию по этой паре
+            recon = new Reconstruction(K);
+            initializeFromPair(recon, bestPair, pointsByImage);
+            reconstructedImages.add(bestPair.getImage1());
+            reconstructedImages.add(bestPair.getImage2());
+        }
+
+        // 6) Готовим множество оставшихся изображений
+        reporter.report(Stage.INITIAL_PAIR, recon, reconstructedImages);
 
         List<String> remainingImages = new ArrayList<>(allImages);
         remainingImages.removeAll(reconstructedImages);
 
         // 7) Инкрементальное добавление камер
-        while (!remainingImages.isEmpty()) {
-            ImageScore bestNext = findBestImageToAdd(remainingImages, pointsByImage, recon);
-            if (bestNext == null || bestNext.getNumMatches() < MIN_POINTS_FOR_RESECTION) {
-                System.out.println("No more images with sufficient matches to the reconstruction");
-                break;
-            }
-
-            String nextImage = bestNext.getImageName();
-            System.out.println("Adding image: " + nextImage + " with " + bestNext.getNumMatches() + " matches");
+        int sinceCheckpoint = 0;
+        try {
+            while (!remainingImages.isEmpty()) {
+                checkCancelled();
+                ImageScore bestNext = findBestImageToAdd(remainingImages, pointsByImage, recon);
+                if (bestNext == null || bestNext.getNumMatches() < MIN_POINTS_FOR_RESECTION) {
+                    System.out.println("No more images with sufficient matches to the reconstruction");
+                    break;
+                }
 
-            boolean success = registerNewImage(recon, nextImage, pointsByImage.get(nextImage));
-            if (success) {
-                reconstructedImages.add(nextImage);
-                triangulateNewPoints(recon, nextImage, pointsByImage, reconstructedImages);
-                if (ENABLE_GLOBAL_BA) {
-                    performGlobalBA(recon, pointsByImage, reconstructedImages);
+                String nextImage = bestNext.getImageName();
+                System.out.println("Adding image: " + nextImage + " with " + bestNext.getNumMatches() + " matches");
+
+                boolean success = registerNewImage(recon, nextImage, pointsByImage.get(nextImage));
+                if (success) {
+                    reconstructedImages.add(nextImage);
+                    triangulateNewPoints(recon, nextImage, pointsByImage, reconstructedImages);
+                    reporter.report(Stage.REGISTERING, recon, reconstructedImages);
+                    if (ENABLE_GLOBAL_BA) {
+                        checkCancelled();
+                        performGlobalBA(recon, pointsByImage, reconstructedImages);
+                        reporter.report(Stage.BUNDLE_ADJUSTMENT, recon, reconstructedImages);
+                    }
+                    if (++sinceCheckpoint >= checkpointInterval) {
+                        writeCheckpoint(recon, checkpoint);
+                        sinceCheckpoint = 0;
+                    }
+                } else {
+                    System.out.println("Failed to register image: " + nextImage);
                 }
-            } else {
-                System.out.println("Failed to register image: " + nextImage);
-            }
 
-            remainingImages.remove(nextImage);
+                remainingImages.remove(nextImage);
+            }
+        } catch (CancellationException e) {
+            // BA обновляет состояние только после успешной оптимизации, так что оно согласовано
+            writeCheckpoint(recon, checkpoint);
+            throw e;
         }
 
         // 8) Триангулируем глобально все оставшиеся точки, видимые в ≥2 камерах
+        checkCancelled();
         triangulateGlobalUninitialized(recon, pointsByImage, reconstructedImages);
+        reporter.report(Stage.TRIANGULATION, recon, reconstructedImages);
 
         // 9) Финальный глобальный Bundle Adjustment
+        checkCancelled();
         performGlobalBA(recon, pointsByImage, reconstructedImages);
+        reporter.report(Stage.FINISHED, recon, reconstructedImages);
+        return recon;
+    }
 
-        // 10) Применяем глобальный поворот/сдвиг и возвращаем облако
-        Map<String, Point3D> finalCloud = recon.getPointCloud();
+    private static Reconstruction readCheckpoint(Path checkpoint) {
+        try {
+            return ReconstructionCheckpoint.read(checkpoint);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read checkpoint " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Keeps the part of a checkpoint that still matches the project: cameras of images that
+     * are still there and observations whose 2D points have not moved. A camera that lost
+     * too many observations is dropped so it is registered again, a point needs two
+     * observing cameras.
+     *
+     * @return the matching state, or {@code null} if fewer than two cameras are left
+     */
+    static Reconstruction validateCheckpoint(Reconstruction checkpoint, List<String> allImages,
+                                             Map<String, Map<String, Point2D>> pointsByImage) {
+        Map<String, Integer> observed = new HashMap<>();
+        Map<String, List<String>> observers = new LinkedHashMap<>();
+        for (String pointName : checkpoint.getPointCloud().keySet()) {
+            List<String> cams = new ArrayList<>();
+            for (String cam : checkpoint.getObservingCameras(pointName)) {
+                Map<String, Point2D> points = allImages.contains(cam) ? pointsByImage.get(cam) : null;
+                Point2D now = points == null ? null : points.get(pointName);
+                Point2D then = checkpoint.getObservation(pointName, cam);
+                // наблюдения хранятся через MatOfPoint2f, то есть с точностью float
+                if (now != null && Math.abs(now.getX() - then.getX()) < 1e-2 && Math.abs(now.getY() - then.getY()) < 1e-2) {
+                    cams.add(cam);
+                    observed.merge(cam, 1, Integer::sum);
+                }
+            }
+            observers.put(pointName, cams);
+        }
+
+        Reconstruction recon = new Reconstruction(checkpoint.getK());
+        for (String cam : checkpoint.getCameraNames()) {
+            if (observed.getOrDefault(cam, 0) >= MIN_POINTS_FOR_RESECTION) {
+                recon.addCamera(cam, checkpoint.getCameraRotation(cam), checkpoint.getCameraTranslation(cam));
+            }
+        }
+        if (recon.getCameraNames().size() < 2) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> e : observers.entrySet()) {
+            List<String> cams = e.getValue();
+            cams.retainAll(recon.getCameraNames());
+            if (cams.size() < 2) continue;
+            recon.addPoint(e.getKey(), checkpoint.getPoint(e.getKey()));
+            for (String cam : cams) {
+                recon.addObservation(e.getKey(), cam, checkpoint.getObservation(e.getKey(), cam));
+            }
+        }
+        int dropped = checkpoint.getCameraNames().size() - recon.getCameraNames().size();
+        if (dropped > 0 || recon.getPointCloud().size() < checkpoint.getPointCloud().size()) {
+            System.out.println("Checkpoint: dropped " + dropped + " cameras and "
+                    + (checkpoint.getPointCloud().size() - recon.getPointCloud().size()) + " points that no longer match");
+        }
+        return recon;
+    }
+
+    /**
+     * Saves a checkpoint if checkpoints are enabled. A failed write is reported but does not
+     * abort the reconstruction.
+     */
+    private static void writeCheckpoint(Reconstruction recon, Path checkpoint) {
+        if (checkpoint == null) return;
+        try {
+            ReconstructionCheckpoint.write(recon, checkpoint);
+        } catch (IOException e) {
+            System.err.println("Failed to write checkpoint " + checkpoint + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Re-triangulates only the tracks touched by the change set and runs a local BA over
+     * the cameras that see them. Cameras are not re-registered, so the change set must not
+     * {@linkplain ChangeSet#requiresFullRebuild() require a full rebuild}.
+     * The reconstruction is updated in place.
+     */
+    public static Reconstruction applyChanges(Reconstruction recon, ImageProcessor proc,
+                                              ChangeSet changes, ReconstructionListener listener) {
+        return applyChanges(recon, collectPoints(proc), changes, listener);
+    }
+
+    /**
+     * Same as {@link #applyChanges(Reconstruction, ImageProcessor, ChangeSet, ReconstructionListener)}
+     * over points taken with {@link #collectPoints(ImageProcessor)} on the EDT.
+     */
+    public static Reconstruction applyChanges(Reconstruction recon, Map<String, Map<String, Point2D>> points,
+                                              ChangeSet changes, ReconstructionListener listener) {
+        if (changes.requiresFullRebuild()) {
+            throw new IllegalArgumentException("Change set requires a full reconstruction");
+        }
+        Set<String> cameras = new HashSet<>(recon.getCameraNames());
+        ReconstructionReporter reporter = new ReconstructionReporter(listener, cameras.size());
+        reporter.started();
+
+        Map<String, Map<String, Point2D>> pointsByImage = new HashMap<>();
+        for (String cam : cameras) {
+            pointsByImage.put(cam, points.getOrDefault(cam, Collections.emptyMap()));
+        }
+
+        // 1) Сбрасываем затронутые треки и триангулируем их заново
+        Set<String> tracks = changes.getPointNames();
+        for (String pointName : tracks) {
+            recon.removePoint(pointName);
+        }
+        triangulateTracks(recon, pointsByImage, cameras, tracks);
+        reporter.report(Stage.TRIANGULATION, recon, cameras);
+
+        // 2) Локальный BA по камерам, которые видят эти точки
+        Set<String> localCameras = new HashSet<>();
+        for (String pointName : tracks) {
+            localCameras.addAll(recon.getObservingCameras(pointName));
+        }
+        if (!localCameras.isEmpty()) {
+            checkCancelled();
+            performBundleAdjustment(recon, localCameras);
+        }
+        // плотное облако построено по старым позам
+        recon.setDenseCloud(Collections.emptyList());
+        reporter.report(Stage.FINISHED, recon, cameras);
+        return recon;
+    }
+
+    /**
+     * Returns a copy of the reconstructed points, followed by the dense points if they were
+     * computed, with the global rotation and translation applied; the reconstruction itself
+     * is left untouched.
+     */
+    public static List<Point3D> exportCloud(Reconstruction recon) {
+        Map<String, Point3D> finalCloud = new LinkedHashMap<>(recon.getPointCloud());
+        for (Point3D p : recon.getDenseCloud()) {
+            finalCloud.put(p.getName(), p);
+        }
         applyGlobalTransform(finalCloud);
         return new ArrayList<>(finalCloud.values());
     }
 
+    /**
+     * Copies the 2D points of every image, in the order of the image list, so the
+     * reconstruction does not see edits made on the EDT while it is running, and does not
+     * touch the active-image state. Call on the EDT, where the points are edited.
+     */
+    public static Map<String, Map<String, Point2D>> collectPoints(ImageProcessor proc) {
+        Map<String, Map<String, Point2D>> pointsByImage = new LinkedHashMap<>();
+        List<String> images = Collections.list(proc.getImagesModel().elements());
+        for (String imageName : images) {
+            Map<String, Point2D> pointMap = new HashMap<>();
+            for (Point2D p : proc.getImage(imageName).getPoints()) {
+                pointMap.put(p.getName(), new Point2D(p.getName(), p.getX(), p.getY()));
+            }
+            pointsByImage.put(imageName, pointMap);
+        }
+        return pointsByImage;
+    }
+
+    /**
+     * Adds automatically detected, matched and verified tracks to the manual points; manual
+     * points take priority where both cover the same spot. The inlier ratios of the
+     * verification are kept for pair selection.
+     */
+    private static FeatureTracks matchFeatures(Map<String, Image> imageMap, List<String> images,
+                                               Map<String, Map<String, Point2D>> manual,
+                                               Function<String, Mat> intrinsics,
+                                               FeatureOptions featureOptions) {
+        FeatureTracks auto;
+        Path cache = featureOptions.getCacheDirectory();
+        if (cache != null) {
+            // ключ кэша — хеш закодированных байтов, так что при попадании изображение не декодируется
+            Map<String, String> keys = new LinkedHashMap<>();
+            for (String imageName : images) {
+                keys.put(imageName, FeatureCache.key(imageMap.get(imageName).contentHash(), featureOptions));
+            }
+            Map<String, ImageFeatures> features = FeatureCache.load(cache, keys,
+                    imageName -> imageMap.get(imageName).getPyramid(), featureOptions);
+            auto = FeatureMatchingPipeline.matchTracks(features, intrinsics, featureOptions);
+        } else {
+            Map<String, ImagePyramid> pyramids = new LinkedHashMap<>();
+            for (String imageName : images) {
+                pyramids.put(imageName, imageMap.get(imageName).getPyramid());
+            }
+            auto = FeatureMatchingPipeline.buildTracks(pyramids, intrinsics, featureOptions);
+        }
+        checkCancelled();
+        return new FeatureTracks(
+                FeatureMatchingPipeline.mergeWithManual(manual, auto.getPoints(), featureOptions.getManualRadius()),
+                auto.getInlierRatios(), auto.getFeatures());
+    }
+
+    /**
+     * Does nothing; calling it runs the static initialiser that loads the OpenCV JNI library,
+     * for code that uses OpenCV without going through this class.
+     */
+    static void ensureNativeLoaded() {
+    }
+
+    /**
+     * Throws {@link CancellationException} if the reconstructing thread was interrupted.
+     */
+    static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Reconstruction cancelled");
+        }
+    }
 
     /**
      * Initialize the reconstruction from a pair of images.
      */
     private static void initializeFromPair(Reconstruction recon, ImagePair pair,
-                                           Map<String, Map<String, Point2D>> pointsByImage,
-                                           ImageProcessor proc) {
+                                           Map<String, Map<String, Point2D>> pointsByImage) {
         String img1 = pair.getImage1();
         String img2 = pair.getImage2();
 
@@ -162,7 +508,6 @@ public class OpenCVSFMConstructor {
         }
 
         // Estimate Essential matrix and recover pose
-        BufferedImage imgA = proc.getImage(img1).getBufferedImage();
         double f = recon.getK().get(0, 0)[0];
         Point pp = new Point(recon.getK().get(0, 2)[0], recon.getK().get(1, 2)[0]);
 
@@ -282,10 +627,12 @@ public class OpenCVSFMConstructor {
         // 1) Собираем 3D→2D
         List<Point3D> pts3D = new ArrayList<>();
         List<Point2D> pts2D = new ArrayList<>();
+        List<String> names = new ArrayList<>();
         for (var e : imagePoints.entrySet()) {
             if (!recon.hasPoint(e.getKey())) continue;
             pts3D .add(recon.getPoint(e.getKey()));
             pts2D .add(e.getValue());
+            names .add(e.getKey());
         }
         System.out.printf("Trying PnP for %s: %d correspondences\n",
                 imageName, pts3D.size());
@@ -341,9 +688,7 @@ public class OpenCVSFMConstructor {
         }
         for (int i = 0; i < pts2D.size(); i++) {
             if (inlSet.contains(i)) {
-                recon.addObservation(imagePoints.keySet().toArray(new String[0])[i],
-                        imageName,
-                        pts2D.get(i));
+                recon.addObservation(names.get(i), imageName, pts2D.get(i));
             }
         }
 
@@ -555,32 +900,60 @@ public class OpenCVSFMConstructor {
     private static void performGlobalBA(Reconstruction recon,
                                         Map<String, Map<String, Point2D>> pointsByImage,
                                         Set<String> reconstructedImages) {
-        // Get all camera rotations and translations
+        performBundleAdjustment(recon, reconstructedImages);
+    }
+
+    /**
+     * Bundle adjustment over the given cameras and every point they observe.
+     * For a subset of cameras this is a local BA: the other cameras that see those points
+     * take part with their observations but keep their poses, and points seen only by
+     * other cameras are left untouched.
+     */
+    static void performBundleAdjustment(Reconstruction recon, Collection<String> cameras) {
+        // Свободные камеры идут первыми, за ними фиксированные
+        List<String> cameraNames = new ArrayList<>(new LinkedHashSet<>(cameras));
+        int freeCameras = cameraNames.size();
+
+        // Точки, которые видят свободные камеры, оптимизируются
+        Map<String, Point3D> points = new LinkedHashMap<>();
+        for (Map.Entry<String, Point3D> entry : recon.getPointCloud().entrySet()) {
+            for (String imageName : cameraNames) {
+                if (recon.hasObservation(entry.getKey(), imageName)) {
+                    points.put(entry.getKey(), entry.getValue());
+                    break;
+                }
+            }
+        }
+        if (points.isEmpty()) return;
+
+        // Остальные камеры, видящие эти точки, держат масштаб и систему координат
+        Set<String> fixed = new LinkedHashSet<>();
+        for (String pointName : points.keySet()) {
+            fixed.addAll(recon.getObservingCameras(pointName));
+        }
+        cameraNames.forEach(fixed::remove);
+        fixed.retainAll(recon.getCameraNames());
+        cameraNames.addAll(fixed);
+
         List<Mat> rotations = new ArrayList<>();
         List<Mat> translations = new ArrayList<>();
-        List<String> cameraNames = new ArrayList<>();
-
-        for (String imageName : reconstructedImages) {
+        for (String imageName : cameraNames) {
             rotations.add(recon.getCameraRotation(imageName));
             translations.add(recon.getCameraTranslation(imageName));
-            cameraNames.add(imageName);
         }
 
         // Prepare observations for bundle adjustment
         List<List<Point2D>> observations = new ArrayList<>();
         List<List<String>> observationNames = new ArrayList<>();
 
-        for (String imageName : reconstructedImages) {
+        for (String imageName : cameraNames) {
             List<Point2D> imageObservations = new ArrayList<>();
             List<String> imageObservationNames = new ArrayList<>();
 
-            for (Map.Entry<String, Point3D> entry : recon.getPointCloud().entrySet()) {
-                String pointName = entry.getKey();
-
+            for (String pointName : points.keySet()) {
                 // If this point is observed in this image
                 if (recon.hasObservation(pointName, imageName)) {
-                    Point2D observation = recon.getObservation(pointName, imageName);
-                    imageObservations.add(observation);
+                    imageObservations.add(recon.getObservation(pointName, imageName));
                     imageObservationNames.add(pointName);
                 }
             }
@@ -591,23 +964,26 @@ public class OpenCVSFMConstructor {
 
         // Run bundle adjustment
         BundleAdjuster ba = new BundleAdjuster(
-                recon.getPointCloud(),
+                points,
                 rotations,
                 translations,
                 observations,
                 observationNames,
                 recon.getK(),
                 200,
-                200
+                200,
+                freeCameras
         );
 
         ba.optimize();
 
         // Update reconstruction with optimized values
-        ba.updateCloudMap(recon.getPointCloud());
+        ba.updateCloudMap(points);
+        recon.getPointCloud().putAll(points);
 
-        // Update camera poses
-        for (int i = 0; i < cameraNames.size(); i++) {
+        // Update camera poses (only the free ones)
+        ba.updateCameras(rotations, translations);
+        for (int i = 0; i < freeCameras; i++) {
             recon.updateCamera(cameraNames.get(i), rotations.get(i), translations.get(i));
         }
     }
@@ -615,7 +991,7 @@ public class OpenCVSFMConstructor {
     /**
      * Compute reprojection error for a 3D point and its 2D observation.
      */
-    private static double computeReprojectionError(Point3D point3D, Point2D point2D, Mat P) {
+    static double computeReprojectionError(Point3D point3D, Point2D point2D, Mat P) {
         // Create homogeneous 3D point
         Mat X = new Mat(4, 1, CvType.CV_64F);
         X.put(0, 0, point3D.getX(), point3D.getY(), point3D.getZ(), 1.0);
@@ -654,8 +1030,8 @@ public class OpenCVSFMConstructor {
 
     // Helper methods:
 
-    private static Mat estimateCameraMatrix(BufferedImage img) {
-        int w = img.getWidth(), h = img.getHeight();
+    private static Mat estimateCameraMatrix(Dimension size) {
+        int w = size.width, h = size.height;
         double f = 1.2 * Math.max(w, h);
         Mat K = Mat.eye(3, 3, CvType.CV_64F);
         K.put(0, 0, f);
@@ -665,7 +1041,7 @@ public class OpenCVSFMConstructor {
         return K;
     }
 
-    private static MatOfPoint2f mat2f(List<Point2D> list) {
+    static MatOfPoint2f mat2f(List<Point2D> list) {
         Point[] arr = new Point[list.size()];
         for (int i = 0; i < list.size(); i++) {
             Point2D p = list.get(i);
@@ -674,7 +1050,7 @@ public class OpenCVSFMConstructor {
         return new MatOfPoint2f(arr);
     }
 
-    private static Mat buildProjection(Mat K, Mat R, Mat t) {
+    static Mat buildProjection(Mat K, Mat R, Mat t) {
         Mat Rt = Mat.zeros(3, 4, CvType.CV_64F);
         R.copyTo(Rt.colRange(0, 3));
         t.copyTo(Rt.col(3));
@@ -684,32 +1060,50 @@ public class OpenCVSFMConstructor {
     }
 
     private static ImagePair findBestPair(List<String> images,
-                                          Map<String, Map<String, Point2D>> pointsByImage) {
+                                          Map<String, Map<String, Point2D>> pointsByImage,
+                                          ToDoubleBiFunction<String, String> pairWeight) {
         ImagePair best = new ImagePair();
-        int max = 0;
-
-        for (int i = 0; i < images.size() - 1; i++) {
-            String img1 = images.get(i);
-            Set<String> A = pointsByImage.get(img1).keySet();
-
-            for (int j = i + 1; j < images.size(); j++) {
-                String img2 = images.get(j);
-                Set<String> B = pointsByImage.get(img2).keySet();
-
-                // Count common points
-                Set<String> common = new HashSet<>(A);
-                common.retainAll(B);
-                int cnt = common.size();
-
-                if (cnt > max && cnt >= MIN_COMMON_POINTS) {
-                    max = cnt;
-                    best.setImage1(img1);
-                    best.setImage2(img2);
-                    best.setCor(cnt);
+        double max = 0;
+
+        // Общие точки считаем через обратный индекс точка -> изображения: перебираются только
+        // пары, у которых действительно есть общие треки, а не все n^2 пар
+        Map<String, List<Integer>> imagesByPoint = new HashMap<>();
+        for (int i = 0; i < images.size(); i++) {
+            for (String pointName : pointsByImage.get(images.get(i)).keySet()) {
+                imagesByPoint.computeIfAbsent(pointName, k -> new ArrayList<>()).add(i);
+            }
+        }
+        // общие точки пары: [ручные, автоматические]
+        Map<Long, int[]> common = new TreeMap<>();
+        for (Map.Entry<String, List<Integer>> e : imagesByPoint.entrySet()) {
+            int kind = e.getKey().startsWith(FeatureMatchingPipeline.AUTO_PREFIX) ? 1 : 0;
+            List<Integer> observers = e.getValue();
+            for (int a = 0; a < observers.size(); a++) {
+                for (int b = a + 1; b < observers.size(); b++) {
+                    common.computeIfAbsent((long) observers.get(a) * images.size() + observers.get(b),
+                            k -> new int[2])[kind]++;
                 }
             }
         }
 
+        // ключи идут в порядке (i, j), как и прежний полный перебор
+        for (Map.Entry<Long, int[]> e : common.entrySet()) {
+            String img1 = images.get((int) (e.getKey() / images.size()));
+            String img2 = images.get((int) (e.getKey() % images.size()));
+            int manual = e.getValue()[0], auto = e.getValue()[1];
+            int cnt = manual + auto;
+
+            // доля инлаеров говорит только о надёжности автоматических соответствий,
+            // ручные точки учитываются полностью
+            double score = manual + auto * pairWeight.applyAsDouble(img1, img2);
+            if (score > max && cnt >= MIN_COMMON_POINTS) {
+                max = score;
+                best.setImage1(img1);
+                best.setImage2(img2);
+                best.setCor(cnt);
+            }
+        }
+
         if (max == 0) {
             throw new RuntimeException("No image pair with sufficient correspondences found");
         }
@@ -717,14 +1111,27 @@ public class OpenCVSFMConstructor {
         return best;
     }
 
-    private static void triangulateGlobalUninitialized(
+    static void triangulateGlobalUninitialized(
             Reconstruction recon,
             Map<String, Map<String, Point2D>> pointsByImage,
             Set<String> cameras) {
 
-        for (String pointName : pointsByImage.values().stream()
+        triangulateTracks(recon, pointsByImage, cameras, pointsByImage.values().stream()
                 .flatMap(m -> m.keySet().stream())
-                .collect(Collectors.toSet())) {
+                .collect(Collectors.toSet()));
+    }
+
+    /**
+     * Triangulates the named tracks that are not yet in the reconstruction,
+     * using the best-conditioned pair among the given cameras.
+     */
+    private static void triangulateTracks(
+            Reconstruction recon,
+            Map<String, Map<String, Point2D>> pointsByImage,
+            Set<String> cameras,
+            Collection<String> pointNames) {
+
+        for (String pointName : pointNames) {
 
             if (recon.hasPoint(pointName)) continue;
 
@@ -821,78 +1228,6 @@ class ImageScore {
     private int numMatches;
 }
 
-/**
- * Represents the current state of the reconstruction
- */
-class Reconstruction {
-    @Getter
-    private final Mat K; // Camera intrinsic matrix
-    private final Map<String, Mat> cameraRotations; // R for each camera
-    private final Map<String, Mat> cameraTranslations; // t for each camera
-    @Getter
-    private final Map<String, Point3D> pointCloud; // 3D points in the reconstruction
-    private final Map<String, Map<String, Point2D>> observations; // point -> camera -> observation
-
-    public Reconstruction(Mat K) {
-        this.K = K.clone();
-        this.cameraRotations = new HashMap<>();
-        this.cameraTranslations = new HashMap<>();
-        this.pointCloud = new LinkedHashMap<>();
-        this.observations = new HashMap<>();
-    }
-
-    public void addCamera(String cameraName, Mat R, Mat t) {
-        cameraRotations.put(cameraName, R.clone());
-        cameraTranslations.put(cameraName, t.clone());
-    }
-
-    public void updateCamera(String cameraName, Mat R, Mat t) {
-        cameraRotations.put(cameraName, R.clone());
-        cameraTranslations.put(cameraName, t.clone());
-    }
-
-    public Mat getCameraRotation(String cameraName) {
-        return cameraRotations.get(cameraName);
-    }
-
-    public Mat getCameraTranslation(String cameraName) {
-        return cameraTranslations.get(cameraName);
-    }
-
-    public void addPoint(String pointName, Point3D point) {
-        pointCloud.put(pointName, point);
-        observations.put(pointName, new HashMap<>());
-    }
-
-    public boolean hasPoint(String pointName) {
-        return pointCloud.containsKey(pointName);
-    }
-
-    public Point3D getPoint(String pointName) {
-        return pointCloud.get(pointName);
-    }
-
-    public void addObservation(String pointName, String cameraName, Point2D observation) {
-        if (!observations.containsKey(pointName)) {
-            observations.put(pointName, new HashMap<>());
-        }
-        observations.get(pointName).put(cameraName, observation);
-    }
-
-    public boolean hasObservation(String pointName, String cameraName) {
-        return observations.containsKey(pointName) &&
-                observations.get(pointName).containsKey(cameraName);
-    }
-
-    public Point2D getObservation(String pointName, String cameraName) {
-        return observations.get(pointName).get(cameraName);
-    }
-
-    public Set<String> getCameraNames() {
-        return cameraRotations.keySet();
-    }
-}
-
 @Data @AllArgsConstructor @NoArgsConstructor
 class ImagePair {
     private String image1;
@@ -0,0 +1,334 @@
+package model;
+
+import model.ReconstructionProgress.Stage;
+import org.opencv.core.Mat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
+
+/**
+ * Divide-and-conquer SfM: images are clustered by the number of named points they share,
+ * every cluster is reconstructed incrementally on its own thread, the submodels are merged
+ * through a Sim(3) estimated from their common 3D points, and one global BA finishes the job.
+ * <p>
+ * K is estimated per cluster, from the first image of its initial pair. The merged model
+ * keeps the K of the largest submodel, and the final triangulation and BA use that K for
+ * every camera, so images of different sizes are only as consistent as one shared K allows.
+ */
+class PartitionedSFMConstructor {
+    private static final int MIN_CLUSTER_SIZE = 3;
+    private static final int MIN_SHARED_POINTS = 3;
+    private static final double SIM3_OUTLIER_FACTOR = 3.0;
+
+    private PartitionedSFMConstructor() {
+    }
+
+    static Reconstruction reconstruct(List<String> allImages,
+                                      Map<String, Map<String, Point2D>> pointsByImage,
+                                      Function<String, Mat> intrinsics,
+                                      ToDoubleBiFunction<String, String> pairWeight,
+                                      ReconstructionOptions options,
+                                      ReconstructionReporter reporter) {
+        List<List<String>> clusters = cluster(allImages, pointsByImage,
+                options.getMaxClusterSize(), options.getClusterOverlap());
+        // изображения без общих точек с остальными реконструировать не из чего
+        clusters.removeIf(c -> c.size() < 2);
+        System.out.println("Partitioned reconstruction: " + clusters.size() + " clusters");
+        if (clusters.size() < 2) {
+            return OpenCVSFMConstructor.reconstructIncremental(
+                    allImages, pointsByImage, intrinsics, pairWeight, null, null, 0, reporter);
+        }
+
+        // 1) Реконструируем кластеры параллельно
+        List<Reconstruction> submodels = reconstructClusters(
+                clusters, pointsByImage, intrinsics, pairWeight, options.getThreads(), reporter, allImages.size());
+        if (submodels.isEmpty()) {
+            throw new RuntimeException("No cluster could be reconstructed");
+        }
+
+        // 2) Сливаем подмодели в систему координат самой большой
+        OpenCVSFMConstructor.checkCancelled();
+        Reconstruction merged = merge(submodels);
+        Set<String> cameras = new HashSet<>(merged.getCameraNames());
+        reporter.report(Stage.REGISTERING, merged, cameras);
+
+        // 3) Добираем точки, видимые только между кластерами, и финальный глобальный BA
+        OpenCVSFMConstructor.checkCancelled();
+        OpenCVSFMConstructor.triangulateGlobalUninitialized(merged, pointsByImage, cameras);
+        reporter.report(Stage.TRIANGULATION, merged, cameras);
+
+        OpenCVSFMConstructor.checkCancelled();
+        OpenCVSFMConstructor.performBundleAdjustment(merged, cameras);
+        reporter.report(Stage.FINISHED, merged, cameras);
+        return merged;
+    }
+
+    /**
+     * Groups images so that strongly connected images end up together: edges of the
+     * shared-point graph are taken heaviest first and their clusters joined while the result
+     * stays within {@code maxSize}. Clusters too small to reconstruct are folded into their
+     * best-connected neighbour, then each cluster borrows its {@code overlap} best-connected
+     * outside images so that neighbouring submodels share 3D points for merging.
+     */
+    static List<List<String>> cluster(List<String> images,
+                                      Map<String, Map<String, Point2D>> pointsByImage,
+                                      int maxSize, int overlap) {
+        int n = images.size();
+        int[][] weight = sharedPointCounts(images, pointsByImage);
+
+        List<int[]> edges = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (weight[i][j] > 0) edges.add(new int[]{i, j});
+            }
+        }
+        edges.sort((a, b) -> Integer.compare(weight[b[0]][b[1]], weight[a[0]][a[1]]));
+
+        int[] parent = new int[n];
+        int[] size = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+        for (int[] e : edges) {
+            int a = find(parent, e[0]), b = find(parent, e[1]);
+            if (a != b && size[a] + size[b] <= maxSize) {
+                parent[b] = a;
+                size[a] += size[b];
+            }
+        }
+
+        // Маленькие кластеры приклеиваем к самому связанному соседу, даже сверх лимита
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < n; i++) {
+                int root = find(parent, i);
+                if (root != i || size[root] >= MIN_CLUSTER_SIZE) continue;
+                int best = -1;
+                long bestWeight = 0;
+                Map<Integer, Long> toRoots = new HashMap<>();
+                for (int a = 0; a < n; a++) {
+                    if (find(parent, a) != root) continue;
+                    for (int b = 0; b < n; b++) {
+                        int rb = find(parent, b);
+                        if (rb != root && weight[a][b] > 0) toRoots.merge(rb, (long) weight[a][b], Long::sum);
+                    }
+                }
+                for (Map.Entry<Integer, Long> e : toRoots.entrySet()) {
+                    if (e.getValue() > bestWeight) {
+                        bestWeight = e.getValue();
+                        best = e.getKey();
+                    }
+                }
+                if (best >= 0) {
+                    parent[root] = best;
+                    size[best] += size[root];
+                    changed = true;
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> members = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            members.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(i);
+        }
+
+        List<List<String>> clusters = new ArrayList<>();
+        for (List<Integer> core : members.values()) {
+            Set<Integer> inCluster = new HashSet<>(core);
+            long[] link = new long[n];
+            for (int a : core) {
+                for (int b = 0; b < n; b++) {
+                    if (!inCluster.contains(b)) link[b] += weight[a][b];
+                }
+            }
+            List<Integer> outside = new ArrayList<>();
+            for (int b = 0; b < n; b++) {
+                if (link[b] > 0) outside.add(b);
+            }
+            outside.sort((a, b) -> Long.compare(link[b], link[a]));
+
+            List<String> cluster = new ArrayList<>();
+            core.forEach(i -> cluster.add(images.get(i)));
+            outside.stream().limit(overlap).forEach(i -> cluster.add(images.get(i)));
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+
+    private static List<Reconstruction> reconstructClusters(List<List<String>> clusters,
+                                                            Map<String, Map<String, Point2D>> pointsByImage,
+                                                            Function<String, Mat> intrinsics,
+                                                            ToDoubleBiFunction<String, String> pairWeight,
+                                                            int threads,
+                                                            ReconstructionReporter reporter,
+                                                            int totalCameras) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, clusters.size())));
+        ClusterProgress progress = new ClusterProgress(reporter, clusters.size(), totalCameras);
+        try {
+            List<Future<Reconstruction>> futures = new ArrayList<>();
+            for (int c = 0; c < clusters.size(); c++) {
+                List<String> images = clusters.get(c);
+                ReconstructionReporter clusterReporter =
+                        new ReconstructionReporter(progress.forCluster(c), images.size());
+                futures.add(pool.submit(() -> OpenCVSFMConstructor.reconstructIncremental(
+                        images, pointsByImage, intrinsics, pairWeight, null, null, 0, clusterReporter)));
+            }
+
+            List<Reconstruction> submodels = new ArrayList<>();
+            for (int c = 0; c < futures.size(); c++) {
+                try {
+                    submodels.add(futures.get(c).get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        throw (CancellationException) e.getCause();
+                    }
+                    // кластер без хорошей начальной пары просто пропускаем
+                    System.out.println("Cluster " + c + " failed: " + e.getCause().getMessage());
+                }
+            }
+            return submodels;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Reconstruction cancelled");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Merges the submodels into the frame of the largest one. At each step the submodel
+     * sharing the most points with the merged model is aligned next; submodels that share
+     * fewer than {@link #MIN_SHARED_POINTS} points with it are dropped. The result has the
+     * K of the largest submodel; the K of the others is discarded.
+     */
+    static Reconstruction merge(List<Reconstruction> submodels) {
+        List<Reconstruction> pending = new ArrayList<>(submodels);
+        pending.sort((a, b) -> Integer.compare(b.getCameraNames().size(), a.getCameraNames().size()));
+        Reconstruction merged = pending.remove(0);
+
+        while (!pending.isEmpty()) {
+            Reconstruction next = null;
+            int bestShared = -1;
+            for (Reconstruction sub : pending) {
+                int shared = sharedPoints(merged, sub).size();
+                if (shared > bestShared) {
+                    bestShared = shared;
+                    next = sub;
+                }
+            }
+            pending.remove(next);
+            if (bestShared < MIN_SHARED_POINTS) {
+                System.out.println("Dropping submodel with " + next.getCameraNames().size()
+                        + " cameras: only " + bestShared + " shared points");
+                continue;
+            }
+
+            List<double[]> src = new ArrayList<>();
+            List<double[]> dst = new ArrayList<>();
+            for (String name : sharedPoints(merged, next)) {
+                Point3D a = next.getPoint(name), b = merged.getPoint(name);
+                src.add(new double[]{a.getX(), a.getY(), a.getZ()});
+                dst.add(new double[]{b.getX(), b.getY(), b.getZ()});
+            }
+            Sim3 sim = Sim3.estimateRobust(src, dst, SIM3_OUTLIER_FACTOR);
+            absorb(merged, next, sim);
+        }
+        return merged;
+    }
+
+    /**
+     * Adds the cameras, points and observations of {@code sub} to {@code target}, mapping
+     * them through {@code sim}. Cameras and points already in the target keep their pose.
+     */
+    private static void absorb(Reconstruction target, Reconstruction sub, Sim3 sim) {
+        for (String cam : sub.getCameraNames()) {
+            if (target.getCameraRotation(cam) != null) continue;
+            Mat R = sim.transformRotation(sub.getCameraRotation(cam));
+            Mat t = sim.transformTranslation(sub.getCameraTranslation(cam), R);
+            target.addCamera(cam, R, t);
+        }
+        for (Point3D p : sub.getPointCloud().values()) {
+            if (!target.hasPoint(p.getName())) {
+                target.addPoint(p.getName(), sim.apply(p));
+            }
+            for (String cam : sub.getObservingCameras(p.getName())) {
+                if (!target.hasObservation(p.getName(), cam)) {
+                    target.addObservation(p.getName(), cam, sub.getObservation(p.getName(), cam));
+                }
+            }
+        }
+    }
+
+    private static List<String> sharedPoints(Reconstruction a, Reconstruction b) {
+        List<String> shared = new ArrayList<>();
+        for (String name : b.getPointCloud().keySet()) {
+            if (a.hasPoint(name)) shared.add(name);
+        }
+        return shared;
+    }
+
+    private static int[][] sharedPointCounts(List<String> images,
+                                             Map<String, Map<String, Point2D>> pointsByImage) {
+        int n = images.size();
+        // инвертированный индекс: имя точки -> изображения, где она есть
+        Map<String, List<Integer>> byPoint = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            for (String name : pointsByImage.get(images.get(i)).keySet()) {
+                byPoint.computeIfAbsent(name, k -> new ArrayList<>()).add(i);
+            }
+        }
+        int[][] weight = new int[n][n];
+        for (List<Integer> seen : byPoint.values()) {
+            for (int a = 0; a < seen.size(); a++) {
+                for (int b = a + 1; b < seen.size(); b++) {
+                    weight[seen.get(a)][seen.get(b)]++;
+                    weight[seen.get(b)][seen.get(a)]++;
+                }
+            }
+        }
+        return weight;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Sums the progress of the clusters into one event stream for the whole run.
+     * Cloud deltas of the submodels are not forwarded: they live in different frames.
+     */
+    private static class ClusterProgress {
+        private final ReconstructionReporter reporter;
+        private final int[] cameras;
+        private final int[] points;
+        private final int totalCameras;
+
+        ClusterProgress(ReconstructionReporter reporter, int clusters, int totalCameras) {
+            this.reporter = reporter;
+            this.cameras = new int[clusters];
+            this.points = new int[clusters];
+            this.totalCameras = totalCameras;
+        }
+
+        ReconstructionListener forCluster(int index) {
+            return progress -> {
+                synchronized (this) {
+                    cameras[index] = progress.getCamerasRegistered();
+                    points[index] = progress.getPoints();
+                    reporter.progress(new ReconstructionProgress(
+                            progress.getStage() == Stage.FINISHED ? Stage.REGISTERING : progress.getStage(),
+                            Math.min(Arrays.stream(cameras).sum(), totalCameras), totalCameras,
+                            Arrays.stream(points).sum(), Double.NaN));
+                }
+            };
+        }
+    }
+}
@@ -4,6 +4,9 @@ package model;
  * Двумерная точка с именем и координатами x, y.
  */
 public class Point2D extends NamedPoint {
+    // зафиксирован по прежнему вычисленному значению: иначе старые сериализованные проекты не читаются
+    private static final long serialVersionUID = 4058901507781246541L;
+
     private double x;
     private double y;
 
@@ -13,6 +16,12 @@ public class Point2D extends NamedPoint {
         this.y = y;
     }
 
+    public Point2D(String name, double x, double y) {
+        super(name);
+        this.x = x;
+        this.y = y;
+    }
+
     public double getX() { return x; }
     public double getY() { return y; }
     public void setX(double x){this.x = x;}
@@ -0,0 +1,431 @@
+package model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Chunked project container ({@code .mdlr}).
+ * <p>
+ * Layout: a fixed header (magic, version, offset of the index), then chunks of
+ * {@code tag, payload length, payload}: one {@code IMAG} chunk per image with its original
+ * encoded bytes (PNG only for images whose pixels were replaced), an {@code OBSV} table
+ * with the points of every image, a {@code STAT} chunk with the selection, and the
+ * {@code INDX} chunk listing where every other chunk lies. This snapshot is followed by a
+ * journal of edits appended on later saves: records of {@code tag, length, payload, CRC32}
+ * for a new or moved point, a changed selection, or an image whose {@code IMAG} chunk was
+ * appended just before the record. Reading stops at the first incomplete or damaged record,
+ * so a save interrupted by a crash loses only itself.
+ */
+final class ProjectFile {
+    private static final int MAGIC = 0x4D444C52; // "MDLR"
+    private static final int VERSION = 2;        // 1: snapshot only, 2: snapshot and journal
+    private static final int HEADER_BYTES = 16;
+    private static final int CHUNK_HEADER_BYTES = 12;
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private static final int IMAGE = 0x494D4147;        // "IMAG"
+    private static final int OBSERVATIONS = 0x4F425356; // "OBSV"
+    private static final int STATE = 0x53544154;        // "STAT"
+    private static final int INDEX = 0x494E4458;        // "INDX"
+
+    private static final int JOURNAL_POINT = 0x4A504E54; // "JPNT"
+    private static final int JOURNAL_IMAGE = 0x4A494D47; // "JIMG"
+    private static final int JOURNAL_STATE = 0x4A535441; // "JSTA"
+
+    /**
+     * What a project file holds after its journal is replayed: image chunk locations
+     * ({offset, length} of the encoded bytes, in image order), points per image and the
+     * selection.
+     */
+    static final class Contents {
+        final Map<String, long[]> images = new LinkedHashMap<>();
+        final Map<String, Map<String, double[]>> points = new LinkedHashMap<>();
+        String activeImage;
+        String activePoint;
+        /** End of the snapshot, where the journal starts. */
+        long snapshotEnd;
+        /** End of the last complete journal record; anything after it is discarded. */
+        long end;
+    }
+
+    private ProjectFile() {
+    }
+
+    /** Whether the file starts with the container magic (older projects are Java serialization). */
+    static boolean isProjectFile(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the images listed in {@code points}. Each image is given either
+     * as a blob to copy byte for byte or, in {@code encoded}, as bytes to write; images with
+     * neither are written empty.
+     *
+     * @return the written contents with the new image locations
+     */
+    static Contents writeSnapshot(Path path, Map<String, ImageBlob> blobs, Map<String, byte[]> encoded,
+                                  Map<String, Map<String, double[]>> points,
+                                  String activeImage, String activePoint) throws IOException {
+        Contents written = new Contents();
+        List<Object[]> index = new ArrayList<>(); // {tag, key, payload offset, length}
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            out.write(new byte[HEADER_BYTES]); // заполняется в конце
+            long pos = HEADER_BYTES;
+
+            for (String name : points.keySet()) {
+                long length = writeImageChunk(out, ch, blobs.get(name), encoded.get(name));
+                written.images.put(name, new long[]{pos + CHUNK_HEADER_BYTES, length});
+                index.add(new Object[]{IMAGE, name, pos + CHUNK_HEADER_BYTES, length});
+                pos += CHUNK_HEADER_BYTES + length;
+            }
+
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream t = new DataOutputStream(table);
+            t.writeInt(points.size());
+            for (Map.Entry<String, Map<String, double[]>> image : points.entrySet()) {
+                t.writeUTF(image.getKey());
+                t.writeInt(image.getValue().size());
+                for (Map.Entry<String, double[]> p : image.getValue().entrySet()) {
+                    t.writeUTF(p.getKey());
+                    t.writeDouble(p.getValue()[0]);
+                    t.writeDouble(p.getValue()[1]);
+                }
+                written.points.put(image.getKey(), copy(image.getValue()));
+            }
+            index.add(new Object[]{OBSERVATIONS, "", pos + CHUNK_HEADER_BYTES, (long) table.size()});
+            pos += writeChunk(out, OBSERVATIONS, table.toByteArray());
+
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            DataOutputStream s = new DataOutputStream(state);
+            writeNullable(s, activeImage);
+            writeNullable(s, activePoint);
+            index.add(new Object[]{STATE, "", pos + CHUNK_HEADER_BYTES, (long) state.size()});
+            pos += writeChunk(out, STATE, state.toByteArray());
+            written.activeImage = activeImage;
+            written.activePoint = activePoint;
+
+            long indexOffset = pos;
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream e = new DataOutputStream(entries);
+            e.writeInt(index.size());
+            for (Object[] entry : index) {
+                e.writeInt((Integer) entry[0]);
+                e.writeUTF((String) entry[1]);
+                e.writeLong((Long) entry[2]);
+                e.writeLong((Long) entry[3]);
+            }
+            pos += writeChunk(out, INDEX, entries.toByteArray());
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(indexOffset).flip();
+            ch.write(header, 0);
+            ch.force(true);
+            written.snapshotEnd = pos;
+            written.end = pos;
+        }
+        return written;
+    }
+
+    /**
+     * Reads the snapshot and replays the journal after it. Image pixels are not read.
+     */
+    static Contents read(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            DataInputStream head = new DataInputStream(Channels.newInputStream(ch.position(0)));
+            if (ch.size() < HEADER_BYTES || head.readInt() != MAGIC) {
+                throw new IOException("Not a project file: " + path);
+            }
+            int version = head.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported project version " + version);
+            }
+            long indexOffset = head.readLong();
+
+            Contents contents = new Contents();
+            DataInputStream in = chunk(ch, indexOffset, INDEX);
+            long[] observations = null, state = null;
+            Map<String, long[]> blobs = new HashMap<>();
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                int tag = in.readInt();
+                String key = in.readUTF();
+                long[] location = {in.readLong(), in.readLong()};
+                switch (tag) {
+                    case IMAGE:
+                        blobs.put(key, location);
+                        break;
+                    case OBSERVATIONS:
+                        observations = location;
+                        break;
+                    case STATE:
+                        state = location;
+                        break;
+                    default:
+                        // неизвестные блоки более новых версий пропускаем
+                        break;
+                }
+            }
+            if (observations == null) {
+                throw new IOException("Project file has no observation table: " + path);
+            }
+
+            in = chunk(ch, observations[0] - CHUNK_HEADER_BYTES, OBSERVATIONS);
+            int nImages = in.readInt();
+            for (int i = 0; i < nImages; i++) {
+                String name = in.readUTF();
+                Map<String, double[]> points = new LinkedHashMap<>();
+                int nPoints = in.readInt();
+                for (int k = 0; k < nPoints; k++) {
+                    points.put(in.readUTF(), new double[]{in.readDouble(), in.readDouble()});
+                }
+                contents.images.put(name, blobs.getOrDefault(name, new long[]{0, 0}));
+                contents.points.put(name, points);
+            }
+
+            if (state != null) {
+                in = chunk(ch, state[0] - CHUNK_HEADER_BYTES, STATE);
+                contents.activeImage = readNullable(in);
+                contents.activePoint = readNullable(in);
+            }
+
+            contents.snapshotEnd = indexOffset + CHUNK_HEADER_BYTES + readLongAt(ch, indexOffset + 4);
+            contents.end = replayJournal(ch, contents.snapshotEnd, contents);
+            return contents;
+        }
+    }
+
+    /**
+     * Appends journal records to a project file. The file is first cut back to the end of
+     * its last complete record; records become durable on {@link #finish}.
+     */
+    static final class Appender implements Closeable {
+        private final FileChannel ch;
+        private long pos;
+
+        Appender(Path path, long end) throws IOException {
+            ch = FileChannel.open(path, StandardOpenOption.WRITE);
+            ch.truncate(end);
+            ch.position(end);
+            pos = end;
+        }
+
+        /**
+         * Appends the image bytes and the record naming them. The bytes are forced to disk
+         * before the record is written.
+         *
+         * @return {offset, length} of the bytes in the file
+         */
+        long[] image(String name, ImageBlob blob, byte[] encoded) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            long length = writeImageChunk(out, ch, blob, encoded);
+            out.flush();
+            long[] location = {pos + CHUNK_HEADER_BYTES, length};
+            pos += CHUNK_HEADER_BYTES + length;
+            // байты изображения должны попасть на диск раньше записи о них: иначе после сбоя
+            // запись с верной CRC может указывать на недописанные байты
+            ch.force(false);
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream p = new DataOutputStream(payload);
+            p.writeUTF(name);
+            p.writeLong(location[0]);
+            p.writeLong(location[1]);
+            record(JOURNAL_IMAGE, payload.toByteArray());
+            return location;
+        }
+
+        void point(String image, String point, double x, double y) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream p = new DataOutputStream(payload);
+            p.writeUTF(image);
+            p.writeUTF(point);
+            p.writeDouble(x);
+            p.writeDouble(y);
+            record(JOURNAL_POINT, payload.toByteArray());
+        }
+
+        void state(String activeImage, String activePoint) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream p = new DataOutputStream(payload);
+            writeNullable(p, activeImage);
+            writeNullable(p, activePoint);
+            record(JOURNAL_STATE, payload.toByteArray());
+        }
+
+        /** Flushes the records to disk and returns the new end of the journal. */
+        long finish() throws IOException {
+            ch.force(false);
+            return pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+
+        private void record(int tag, byte[] payload) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length + 4);
+            buf.putInt(tag).putInt(payload.length).put(payload);
+            buf.putInt(crc(buf.array(), RECORD_HEADER_BYTES + payload.length));
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            pos += buf.limit();
+        }
+    }
+
+    /**
+     * Applies the journal records after {@code start} to {@code contents}.
+     *
+     * @return end of the last complete record
+     */
+    private static long replayJournal(FileChannel ch, long start, Contents contents) throws IOException {
+        long size = ch.size();
+        long pos = start, end = start;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (pos + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(ch, header, pos);
+            int tag = header.getInt(0);
+            if (tag == IMAGE) {
+                // байты изображения; действительны, только если за ними записан JIMG
+                if (pos + CHUNK_HEADER_BYTES > size) {
+                    break;
+                }
+                long length = readLongAt(ch, pos + 4);
+                if (length < 0 || pos + CHUNK_HEADER_BYTES + length > size) {
+                    break;
+                }
+                pos += CHUNK_HEADER_BYTES + length;
+                continue;
+            }
+            int length = header.getInt(4);
+            if (length < 0 || pos + RECORD_HEADER_BYTES + length + 4 > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length + 4);
+            readFully(ch, record, pos);
+            if (record.getInt(RECORD_HEADER_BYTES + length) != crc(record.array(), RECORD_HEADER_BYTES + length)) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(record.array(), RECORD_HEADER_BYTES, length));
+            switch (tag) {
+                case JOURNAL_POINT: {
+                    String image = in.readUTF();
+                    String point = in.readUTF();
+                    contents.points.computeIfAbsent(image, k -> new LinkedHashMap<>())
+                            .put(point, new double[]{in.readDouble(), in.readDouble()});
+                    break;
+                }
+                case JOURNAL_IMAGE: {
+                    String image = in.readUTF();
+                    long[] location = {in.readLong(), in.readLong()};
+                    if (location[0] < start || location[0] + location[1] > pos) {
+                        throw new IOException("Corrupted project journal at " + pos);
+                    }
+                    contents.images.put(image, location);
+                    contents.points.computeIfAbsent(image, k -> new LinkedHashMap<>());
+                    break;
+                }
+                case JOURNAL_STATE:
+                    contents.activeImage = readNullable(in);
+                    contents.activePoint = readNullable(in);
+                    break;
+                default:
+                    // запись неизвестного типа с верной CRC — из более новой версии
+                    break;
+            }
+            pos += record.limit();
+            end = pos;
+        }
+        return end;
+    }
+
+    /** Writes an {@code IMAG} chunk: a copy of {@code blob}, or {@code encoded}, or nothing. */
+    private static long writeImageChunk(DataOutputStream out, FileChannel ch, ImageBlob blob,
+                                        byte[] encoded) throws IOException {
+        if (blob != null) {
+            // исходные байты копируются как есть, без декодирования
+            out.writeInt(IMAGE);
+            out.writeLong(blob.length());
+            out.flush();
+            blob.copyTo(ch);
+            return blob.length();
+        }
+        byte[] bytes = encoded != null ? encoded : new byte[0];
+        writeChunk(out, IMAGE, bytes);
+        return bytes.length;
+    }
+
+    private static long writeChunk(DataOutputStream out, int tag, byte[] payload) throws IOException {
+        out.writeInt(tag);
+        out.writeLong(payload.length);
+        out.write(payload);
+        return CHUNK_HEADER_BYTES + (long) payload.length;
+    }
+
+    /** Stream over the payload of the chunk at {@code offset}, after checking its tag. */
+    private static DataInputStream chunk(FileChannel ch, long offset, int tag) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(ch.position(offset))));
+        if (in.readInt() != tag) {
+            throw new IOException("Corrupted project file: unexpected chunk at " + offset);
+        }
+        in.readLong();
+        return in;
+    }
+
+    private static long readLongAt(FileChannel ch, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        readFully(ch, buf, pos);
+        return buf.getLong(0);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    static Map<String, double[]> copy(Map<String, double[]> points) {
+        Map<String, double[]> copy = new LinkedHashMap<>();
+        points.forEach((name, xy) -> copy.put(name, xy.clone()));
+        return copy;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,286 @@
+package model;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Сохранение проекта в один {@link ProjectFile}: первая запись — полный снимок, дальше
+ * к файлу дописываются только правки с прошлого сохранения.
+ * <p>
+ * The journal remembers what the file holds, so a save compares the project with it and
+ * appends records for new images, new or moved points and a changed selection. Once the
+ * records and superseded image bytes grow too large, the file is compacted on a background
+ * thread: a fresh snapshot is written next to it and moved into place. Images whose bytes
+ * live in the file are pointed at the new copy under the write lock of the file's
+ * {@link ImageBlob.Store}, so a lazy decode never reads the wrong offsets.
+ */
+final class ProjectJournal {
+    private static final Logger LOGGER = Logger.getLogger(ProjectJournal.class.getName());
+
+    /**
+     * The file is compacted once its journal holds more than this many bytes besides the
+     * images still in use (records to replay, superseded image bytes)...
+     */
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+    /** ...and they make up this part of the file or exceed the limit below. */
+    private static final double COMPACT_RATIO = 0.25;
+    private static final long COMPACT_MAX_BYTES = 16 << 20;
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "project-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path path;
+    private final ImageBlob.Store store;
+    /** What the file holds. */
+    private ProjectFile.Contents saved;
+    /** Blob of each saved image and the live image it belongs to, to relocate after compaction. */
+    private final Map<String, ImageBlob> blobs = new HashMap<>();
+    private final Map<String, Image> images = new HashMap<>();
+    /**
+     * Where the bytes of a blob were copied to. A snapshot taken before a compaction still
+     * holds blobs of the old file; they are resolved to the copies instead of being treated
+     * as replaced pixels.
+     */
+    private final Map<ImageBlob, ImageBlob> relocated = new WeakHashMap<>();
+    private boolean compactionQueued;
+    private boolean closed;
+
+    private ProjectJournal(Path path) {
+        this.path = path.toAbsolutePath().normalize();
+        this.store = new ImageBlob.Store(this.path);
+    }
+
+    /** Saves the whole project to {@code path} and starts a journal on it. */
+    static ProjectJournal create(ProjectSnapshot snapshot, Path path) throws IOException {
+        ProjectJournal journal = new ProjectJournal(path);
+        synchronized (journal) {
+            journal.rewrite(snapshot);
+        }
+        return journal;
+    }
+
+    /**
+     * Opens a project: reads the snapshot and the journal; image pixels stay on disk.
+     */
+    static ImageProcessor open(Path path) throws IOException {
+        ProjectJournal journal = new ProjectJournal(path);
+        ProjectFile.Contents contents = ProjectFile.read(journal.path);
+        ImageProcessor proc = new ImageProcessor();
+        synchronized (journal) {
+            journal.saved = contents;
+            for (Map.Entry<String, long[]> e : contents.images.entrySet()) {
+                String name = e.getKey();
+                long[] location = e.getValue();
+                ImageBlob blob = location[1] == 0 ? null : journal.store.blob(location[0], (int) location[1]);
+                Image image = new Image(name, blob);
+                contents.points.get(name).forEach((point, xy) ->
+                        image.getPoints().add(new Point2D(point, xy[0], xy[1])));
+                proc.getImages().put(name, image);
+                journal.blobs.put(name, blob);
+                journal.images.put(name, image);
+            }
+        }
+        proc.restoreSelection(contents.activeImage, contents.activePoint);
+        proc.setJournal(journal);
+        if (contents.end - contents.snapshotEnd > 0) {
+            LOGGER.fine("Replayed " + (contents.end - contents.snapshotEnd) + " journal bytes of " + path);
+        }
+        return proc;
+    }
+
+    boolean isFor(Path other) {
+        return path.equals(other.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Appends the edits made since the last save. Falls back to a full rewrite if
+     * something was removed, which the journal cannot express.
+     */
+    synchronized void save(ProjectSnapshot snapshot) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Project journal is closed");
+        }
+        for (Map.Entry<String, Map<String, double[]>> e : saved.points.entrySet()) {
+            ProjectSnapshot.ImageState image = snapshot.images.get(e.getKey());
+            if (image == null || !image.points.keySet().containsAll(e.getValue().keySet())) {
+                rewrite(snapshot);
+                return;
+            }
+        }
+
+        long before = saved.end;
+        try (ProjectFile.Appender out = new ProjectFile.Appender(path, saved.end)) {
+            for (Map.Entry<String, ProjectSnapshot.ImageState> e : snapshot.images.entrySet()) {
+                String name = e.getKey();
+                ProjectSnapshot.ImageState image = e.getValue();
+                ImageBlob stored = current(image.stored);
+                if (!saved.images.containsKey(name) || stored != blobs.get(name)) {
+                    // новое изображение или заменённые пиксели
+                    byte[] encoded = stored == null && image.pixels != null ? Image.encodePng(image.pixels) : null;
+                    long[] location = out.image(name, stored, encoded);
+                    ImageBlob blob = location[1] == 0 ? null : store.blob(location[0], (int) location[1]);
+                    image.image.relocateBlob(stored, image.pixels, blob);
+                    if (stored != null && blob != null) {
+                        relocated.put(stored, blob);
+                    }
+                    saved.images.put(name, location);
+                    saved.points.computeIfAbsent(name, k -> new LinkedHashMap<>());
+                    blobs.put(name, blob);
+                }
+                images.put(name, image.image);
+
+                Map<String, double[]> savedPoints = saved.points.get(name);
+                for (Map.Entry<String, double[]> p : image.points.entrySet()) {
+                    double[] xy = savedPoints.get(p.getKey());
+                    if (xy == null || xy[0] != p.getValue()[0] || xy[1] != p.getValue()[1]) {
+                        out.point(name, p.getKey(), p.getValue()[0], p.getValue()[1]);
+                        savedPoints.put(p.getKey(), p.getValue().clone());
+                    }
+                }
+            }
+            String activeImage = snapshot.activeImage, activePoint = snapshot.activePoint;
+            if (!Objects.equals(activeImage, saved.activeImage) || !Objects.equals(activePoint, saved.activePoint)) {
+                out.state(activeImage, activePoint);
+                saved.activeImage = activeImage;
+                saved.activePoint = activePoint;
+            }
+            saved.end = out.finish();
+        } catch (IOException | RuntimeException e) {
+            // что-то уже дописано, но не подтверждено — состояние журнала неизвестно, перечитываем файл
+            reload();
+            throw e;
+        }
+        LOGGER.fine("Appended " + (saved.end - before) + " bytes to " + path);
+
+        long overhead = saved.end - saved.snapshotEnd;
+        for (long[] location : saved.images.values()) {
+            if (location[0] >= saved.snapshotEnd) {
+                overhead -= location[1];
+            }
+        }
+        if (!compactionQueued && overhead > COMPACT_MIN_BYTES
+                && (overhead > COMPACT_RATIO * saved.end || overhead > COMPACT_MAX_BYTES)) {
+            compactionQueued = true;
+            COMPACTOR.submit(this::compact);
+        }
+    }
+
+    /** Stops background compaction; waits for one that is running. */
+    synchronized void close() {
+        closed = true;
+    }
+
+    /** Rewrites the file from what it already holds, dropping superseded journal records. */
+    private synchronized void compact() {
+        compactionQueued = false;
+        if (closed) {
+            return;
+        }
+        try {
+            long before = saved.end;
+            replace(new HashMap<>(blobs), Collections.emptyMap(), saved.points,
+                    saved.activeImage, saved.activePoint, new HashMap<>(images), Collections.emptyMap());
+            LOGGER.info("Compacted " + path + ": " + before + " -> " + saved.end + " bytes");
+        } catch (IOException | RuntimeException e) {
+            // файл не тронут: новый снимок не был перемещён на место
+            LOGGER.log(Level.WARNING, "Project compaction failed: " + path, e);
+        }
+    }
+
+    /** Writes a full snapshot of the project. */
+    private void rewrite(ProjectSnapshot snapshot) throws IOException {
+        Map<String, ImageBlob> stored = new HashMap<>();
+        Map<String, byte[]> encoded = new HashMap<>();
+        Map<String, BufferedImage> pixels = new HashMap<>();
+        Map<String, Map<String, double[]>> points = new LinkedHashMap<>();
+        Map<String, Image> live = new HashMap<>();
+        for (Map.Entry<String, ProjectSnapshot.ImageState> e : snapshot.images.entrySet()) {
+            ProjectSnapshot.ImageState image = e.getValue();
+            ImageBlob blob = current(image.stored);
+            if (blob != null) {
+                stored.put(e.getKey(), blob);
+            } else if (image.pixels != null) {
+                pixels.put(e.getKey(), image.pixels);
+                encoded.put(e.getKey(), Image.encodePng(image.pixels));
+            }
+            points.put(e.getKey(), image.points);
+            live.put(e.getKey(), image.image);
+        }
+        replace(stored, encoded, points, snapshot.activeImage, snapshot.activePoint, live, pixels);
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, moves it over the project and points the
+     * images at their bytes in it. Only the move takes the write lock of the store: the old
+     * file stays valid while the new one is written, so lazy decodes are not held up.
+     */
+    private void replace(Map<String, ImageBlob> stored, Map<String, byte[]> encoded,
+                         Map<String, Map<String, double[]>> points, String activeImage, String activePoint,
+                         Map<String, Image> live, Map<String, BufferedImage> pixels) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            ProjectFile.Contents written = ProjectFile.writeSnapshot(
+                    tmp, stored, encoded, points, activeImage, activePoint);
+            store.lock().writeLock().lock();
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                store.replaced();
+
+                // старый файл заменён: изображения теперь читаются из нового
+                saved = written;
+                blobs.clear();
+                images.clear();
+                for (Map.Entry<String, long[]> e : written.images.entrySet()) {
+                    String name = e.getKey();
+                    long[] location = e.getValue();
+                    ImageBlob blob = location[1] == 0 ? null : store.blob(location[0], (int) location[1]);
+                    Image image = live.get(name);
+                    if (image != null) {
+                        image.relocateBlob(stored.get(name), pixels.get(name), blob);
+                        images.put(name, image);
+                    }
+                    if (stored.get(name) != null && blob != null) {
+                        relocated.put(stored.get(name), blob);
+                    }
+                    blobs.put(name, blob);
+                }
+            } finally {
+                store.lock().writeLock().unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** The blob holding the same bytes as {@code blob} now, following earlier copies. */
+    private ImageBlob current(ImageBlob blob) {
+        ImageBlob next;
+        while (blob != null && (next = relocated.get(blob)) != null) {
+            blob = next;
+        }
+        return blob;
+    }
+
+    /** Re-reads what the file holds after a failed append. */
+    private void reload() {
+        try {
+            ProjectFile.Contents contents = ProjectFile.read(path);
+            // изображения, чья запись не дошла до файла, при следующем сохранении будут записаны заново
+            blobs.keySet().retainAll(contents.images.keySet());
+            saved = contents;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot re-read project after a failed save: " + path, e);
+        }
+    }
+}
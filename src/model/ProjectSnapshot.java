@@ -0,0 +1,49 @@
+package model;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Неизменяемый снимок проекта для сохранения в фоновом потоке: точки скопированы, а для
+ * изображений запомнено, откуда брать их байты. Снимается в EDT и ничего не кодирует.
+ */
+public final class ProjectSnapshot {
+
+    /** One image: where its bytes are and a copy of its points. */
+    static final class ImageState {
+        final Image image;
+        /** Original bytes to copy, or {@code null} if {@link #pixels} have to be encoded. */
+        final ImageBlob stored;
+        final BufferedImage pixels;
+        final Map<String, double[]> points;
+
+        ImageState(Image image, ImageBlob stored, BufferedImage pixels, Map<String, double[]> points) {
+            this.image = image;
+            this.stored = stored;
+            this.pixels = pixels;
+            this.points = Collections.unmodifiableMap(points);
+        }
+    }
+
+    final Map<String, ImageState> images;
+    final String activeImage;
+    final String activePoint;
+    /** Revision of the project the snapshot was taken at, and of the project it belongs to. */
+    final long revision;
+    final long project;
+
+    ProjectSnapshot(Map<String, ImageState> images, String activeImage, String activePoint,
+                    long revision, long project) {
+        this.images = Collections.unmodifiableMap(new LinkedHashMap<>(images));
+        this.activeImage = activeImage;
+        this.activePoint = activePoint;
+        this.revision = revision;
+        this.project = project;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+}
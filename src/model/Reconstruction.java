@@ -0,0 +1,102 @@
+package model;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.opencv.core.Mat;
+
+import java.util.*;
+
+/**
+ * Represents the current state of the reconstruction.
+ * Kept alive between runs so that point edits can be applied incrementally.
+ */
+public class Reconstruction {
+    @Getter
+    private final Mat K; // Camera intrinsic matrix
+    private final Map<String, Mat> cameraRotations; // R for each camera, in registration order
+    private final Map<String, Mat> cameraTranslations; // t for each camera
+    @Getter
+    private final Map<String, Point3D> pointCloud; // 3D points in the reconstruction
+    private final Map<String, Map<String, Point2D>> observations; // point -> camera -> observation
+    @Getter
+    @Setter
+    private List<Point3D> denseCloud = Collections.emptyList(); // fused PatchMatch points, if computed
+
+    public Reconstruction(Mat K) {
+        this.K = K.clone();
+        this.cameraRotations = new LinkedHashMap<>();
+        this.cameraTranslations = new HashMap<>();
+        this.pointCloud = new LinkedHashMap<>();
+        this.observations = new HashMap<>();
+    }
+
+    public void addCamera(String cameraName, Mat R, Mat t) {
+        cameraRotations.put(cameraName, R.clone());
+        cameraTranslations.put(cameraName, t.clone());
+    }
+
+    public void updateCamera(String cameraName, Mat R, Mat t) {
+        cameraRotations.put(cameraName, R.clone());
+        cameraTranslations.put(cameraName, t.clone());
+    }
+
+    public Mat getCameraRotation(String cameraName) {
+        return cameraRotations.get(cameraName);
+    }
+
+    public Mat getCameraTranslation(String cameraName) {
+        return cameraTranslations.get(cameraName);
+    }
+
+    public void addPoint(String pointName, Point3D point) {
+        pointCloud.put(pointName, point);
+        observations.put(pointName, new HashMap<>());
+    }
+
+    /**
+     * Removes the point together with all of its observations.
+     */
+    public void removePoint(String pointName) {
+        pointCloud.remove(pointName);
+        observations.remove(pointName);
+    }
+
+    public boolean hasPoint(String pointName) {
+        return pointCloud.containsKey(pointName);
+    }
+
+    public Point3D getPoint(String pointName) {
+        return pointCloud.get(pointName);
+    }
+
+    public void addObservation(String pointName, String cameraName, Point2D observation) {
+        if (!observations.containsKey(pointName)) {
+            observations.put(pointName, new HashMap<>());
+        }
+        observations.get(pointName).put(cameraName, observation);
+    }
+
+    public boolean hasObservation(String pointName, String cameraName) {
+        return observations.containsKey(pointName) &&
+                observations.get(pointName).containsKey(cameraName);
+    }
+
+    public Point2D getObservation(String pointName, String cameraName) {
+        return observations.get(pointName).get(cameraName);
+    }
+
+    /**
+     * Cameras that currently observe the point, empty if the point is unknown.
+     */
+    public Set<String> getObservingCameras(String pointName) {
+        Map<String, Point2D> obs = observations.get(pointName);
+        return obs == null ? Collections.emptySet() : Collections.unmodifiableSet(obs.keySet());
+    }
+
+    /**
+     * Registered cameras in the order they were added.
+     */
+    public Set<String> getCameraNames() {
+        return cameraRotations.keySet();
+    }
+}
@@ -0,0 +1,124 @@
+package model;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Compact binary checkpoint of a {@link Reconstruction}: K, camera poses in registration
+ * order, points and their observation tracks. Observations reference cameras by their
+ * index in the camera table, so camera names are stored once.
+ */
+public final class ReconstructionCheckpoint {
+    private static final int MAGIC = 0x53464D43; // "SFMC"
+    private static final int VERSION = 1;
+
+    private ReconstructionCheckpoint() {
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file next to {@code path} and then moves it
+     * into place, so a crash while writing never destroys the previous checkpoint.
+     */
+    public static void write(Reconstruction recon, Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeMat(out, recon.getK(), 9);
+
+            List<String> cameras = new ArrayList<>(recon.getCameraNames());
+            Map<String, Integer> cameraIndex = new HashMap<>();
+            out.writeInt(cameras.size());
+            for (String cam : cameras) {
+                cameraIndex.put(cam, cameraIndex.size());
+                out.writeUTF(cam);
+                writeMat(out, recon.getCameraRotation(cam), 9);
+                writeMat(out, recon.getCameraTranslation(cam), 3);
+            }
+
+            out.writeInt(recon.getPointCloud().size());
+            for (Point3D p : recon.getPointCloud().values()) {
+                out.writeUTF(p.getName());
+                out.writeDouble(p.getX());
+                out.writeDouble(p.getY());
+                out.writeDouble(p.getZ());
+
+                List<String> observers = new ArrayList<>(recon.getObservingCameras(p.getName()));
+                observers.retainAll(cameraIndex.keySet());
+                out.writeInt(observers.size());
+                for (String cam : observers) {
+                    Point2D obs = recon.getObservation(p.getName(), cam);
+                    out.writeInt(cameraIndex.get(cam));
+                    out.writeDouble(obs.getX());
+                    out.writeDouble(obs.getY());
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Reconstruction read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a reconstruction checkpoint: " + path);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            Reconstruction recon = new Reconstruction(readMat(in, 3, 3));
+
+            int nCams = in.readInt();
+            String[] cameras = new String[nCams];
+            for (int i = 0; i < nCams; i++) {
+                cameras[i] = in.readUTF();
+                Mat R = readMat(in, 3, 3);
+                Mat t = readMat(in, 3, 1);
+                recon.addCamera(cameras[i], R, t);
+            }
+
+            int nPoints = in.readInt();
+            for (int i = 0; i < nPoints; i++) {
+                String name = in.readUTF();
+                recon.addPoint(name, new Point3D(name, in.readDouble(), in.readDouble(), in.readDouble()));
+                int nObs = in.readInt();
+                for (int j = 0; j < nObs; j++) {
+                    String cam = cameras[in.readInt()];
+                    recon.addObservation(name, cam, new Point2D(name, in.readDouble(), in.readDouble()));
+                }
+            }
+            return recon;
+        }
+    }
+
+    private static void writeMat(DataOutputStream out, Mat m, int count) throws IOException {
+        double[] data = new double[count];
+        Mat m64 = m;
+        if (m.type() != CvType.CV_64F) {
+            m64 = new Mat();
+            m.convertTo(m64, CvType.CV_64F);
+        }
+        m64.get(0, 0, data);
+        for (double v : data) {
+            out.writeDouble(v);
+        }
+    }
+
+    private static Mat readMat(DataInputStream in, int rows, int cols) throws IOException {
+        double[] data = new double[rows * cols];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = in.readDouble();
+        }
+        Mat m = new Mat(rows, cols, CvType.CV_64F);
+        m.put(0, 0, data);
+        return m;
+    }
+}
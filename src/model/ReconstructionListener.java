@@ -0,0 +1,20 @@
+package model;
+
+/**
+ * Получатель событий реконструкции. Методы вызываются из потока,
+ * в котором идёт реконструкция, а не из EDT.
+ */
+public interface ReconstructionListener {
+
+    /** Listener that ignores every event. */
+    ReconstructionListener NONE = progress -> { };
+
+    void onProgress(ReconstructionProgress progress);
+
+    /**
+     * Called after each registered camera and each bundle adjustment with the points
+     * that changed since the previous call. Deltas arrive in order and are never merged.
+     */
+    default void onCloudUpdate(CloudDelta delta) {
+    }
+}
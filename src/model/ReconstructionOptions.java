@@ -0,0 +1,46 @@
+package model;
+
+import lombok.Data;
+import model.dense.DenseOptions;
+import model.features.FeatureOptions;
+
+import java.nio.file.Path;
+
+/**
+ * Настройки одного запуска OpenCVSFMConstructor.
+ * Значения по умолчанию воспроизводят прежнее поведение: инкрементальный режим без чекпоинтов.
+ */
+@Data
+public class ReconstructionOptions {
+
+    public enum Mode {
+        /** One incremental reconstruction over all images. */
+        INCREMENTAL,
+        /** Images are clustered, clusters are reconstructed in parallel and merged. */
+        PARTITIONED,
+        /** Relative poses of all pairs, rotation and translation averaging, one final BA. */
+        GLOBAL
+    }
+
+    private Mode mode = Mode.INCREMENTAL;
+
+    /** Where the checkpoint is written and read from (incremental mode); {@code null} disables checkpoints. */
+    private Path checkpointPath;
+    /** Write a checkpoint after every N registered cameras. */
+    private int checkpointInterval = 5;
+    /** Continue from {@link #checkpointPath} if it exists instead of starting from the best pair. */
+    private boolean resume;
+
+    /** Partitioned mode: upper bound on the images of one cluster before overlap is added. */
+    private int maxClusterSize = 20;
+    /** Partitioned mode: images borrowed from neighbouring clusters so submodels share points. */
+    private int clusterOverlap = 2;
+    /** Partitioned and global modes: number of worker threads. */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Automatic feature detection and matching added to the manual points; {@code null} disables it. */
+    private FeatureOptions features;
+
+    /** Dense PatchMatch reconstruction after the sparse one; {@code null} disables it. */
+    private DenseOptions dense;
+}
@@ -0,0 +1,57 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Неизменяемое событие прогресса реконструкции, публикуемое движком SfM в UI.
+ */
+@Getter
+@AllArgsConstructor
+public class ReconstructionProgress {
+
+    /**
+     * Stages of the reconstruction pipeline, in the order they are reached.
+     */
+    public enum Stage {
+        PREPARING("Preparing"),
+        FEATURES("Feature matching"),
+        INITIAL_PAIR("Initial pair"),
+        RELATIVE_POSES("Relative poses"),
+        MOTION_AVERAGING("Motion averaging"),
+        REGISTERING("Registering cameras"),
+        BUNDLE_ADJUSTMENT("Bundle adjustment"),
+        TRIANGULATION("Triangulation"),
+        /** Observations and points added around the known poses, reported after each pass. */
+        GUIDED_MATCHING("Guided matching"),
+        /** Camera counts of this stage are depth-map tiles fused so far / in total. */
+        DENSE("Dense reconstruction"),
+        FINISHED("Finished");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final Stage stage;
+    private final int camerasRegistered;
+    private final int totalCameras;
+    private final int points;
+    /** Mean reprojection error in pixels, {@code NaN} until the first points exist. */
+    private final double reprojectionError;
+
+    @Override
+    public String toString() {
+        String err = Double.isNaN(reprojectionError)
+                ? "-" : String.format("%.2f px", reprojectionError);
+        return String.format("%s: %d/%d cameras, %d points, error %s",
+                stage, camerasRegistered, totalCameras, points, err);
+    }
+}
@@ -0,0 +1,81 @@
+package model;
+
+import model.ReconstructionProgress.Stage;
+import org.opencv.core.Mat;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Публикует прогресс и дельты облака одного запуска реконструкции.
+ * Помнит последний отправленный снимок, поэтому в дельту попадают
+ * только новые и изменённые точки (Point3D неизменяемы — сравниваем по ссылке).
+ */
+class ReconstructionReporter {
+    private final ReconstructionListener listener;
+    private final int totalCameras;
+    private final Map<String, Point3D> lastSent = new HashMap<>();
+    private long version = 0;
+
+    ReconstructionReporter(ReconstructionListener listener, int totalCameras) {
+        this.listener = listener;
+        this.totalCameras = totalCameras;
+    }
+
+    void started() {
+        listener.onProgress(new ReconstructionProgress(Stage.PREPARING, 0, totalCameras, 0, Double.NaN));
+    }
+
+    /** Forwards a ready-made progress event, without a cloud delta. */
+    void progress(ReconstructionProgress progress) {
+        listener.onProgress(progress);
+    }
+
+    void report(Stage stage, Reconstruction recon, Set<String> cameras) {
+        listener.onProgress(new ReconstructionProgress(
+                stage, cameras.size(), totalCameras,
+                recon.getPointCloud().size(), meanReprojectionError(recon, cameras)));
+        publishDelta(stage, recon.getPointCloud());
+    }
+
+    private void publishDelta(Stage stage, Map<String, Point3D> cloud) {
+        Map<String, Point3D> upserted = new LinkedHashMap<>();
+        for (Map.Entry<String, Point3D> e : cloud.entrySet()) {
+            if (lastSent.get(e.getKey()) != e.getValue()) {
+                upserted.put(e.getKey(), e.getValue());
+            }
+        }
+        Set<String> removed = new HashSet<>(lastSent.keySet());
+        removed.removeAll(cloud.keySet());
+        if (upserted.isEmpty() && removed.isEmpty()) return;
+
+        lastSent.putAll(upserted);
+        lastSent.keySet().removeAll(removed);
+        listener.onCloudUpdate(new CloudDelta(++version, stage, upserted, removed));
+    }
+
+    /**
+     * Mean reprojection error in pixels over all observations of the reconstructed points.
+     */
+    private static double meanReprojectionError(Reconstruction recon, Set<String> cameras) {
+        double sum = 0;
+        int count = 0;
+        for (String cam : cameras) {
+            Mat P = OpenCVSFMConstructor.buildProjection(recon.getK(),
+                    recon.getCameraRotation(cam),
+                    recon.getCameraTranslation(cam));
+            for (Map.Entry<String, Point3D> e : recon.getPointCloud().entrySet()) {
+                if (recon.hasObservation(e.getKey(), cam)) {
+                    sum += OpenCVSFMConstructor.computeReprojectionError(
+                            e.getValue(), recon.getObservation(e.getKey(), cam), P);
+                    count++;
+                }
+            }
+            P.release();
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+}
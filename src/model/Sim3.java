@@ -0,0 +1,164 @@
+package model;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Similarity transform {@code x' = s * R * x + t} between two reconstructions
+ * that differ by gauge (rotation, translation and scale).
+ */
+public class Sim3 {
+    private final double scale;
+    private final double[][] R;
+    private final double[] t;
+
+    public Sim3(double scale, double[][] R, double[] t) {
+        this.scale = scale;
+        this.R = R;
+        this.t = t;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Least-squares similarity mapping {@code src[i]} onto {@code dst[i]} (Umeyama, 1991).
+     * Needs at least three non-collinear correspondences.
+     */
+    public static Sim3 estimate(List<double[]> src, List<double[]> dst) {
+        int n = src.size();
+        if (n < 3 || dst.size() != n) {
+            throw new IllegalArgumentException("At least 3 correspondences are required, got " + n);
+        }
+        double[] muS = mean(src);
+        double[] muD = mean(dst);
+
+        double[][] cov = new double[3][3];
+        double varS = 0;
+        for (int i = 0; i < n; i++) {
+            double[] s = src.get(i), d = dst.get(i);
+            for (int r = 0; r < 3; r++) {
+                for (int c = 0; c < 3; c++) {
+                    cov[r][c] += (d[r] - muD[r]) * (s[c] - muS[c]) / n;
+                }
+                varS += (s[r] - muS[r]) * (s[r] - muS[r]) / n;
+            }
+        }
+
+        SingularValueDecomposition svd = new SingularValueDecomposition(new Array2DRowRealMatrix(cov));
+        RealMatrix U = svd.getU();
+        RealMatrix V = svd.getV();
+        double[] D = svd.getSingularValues();
+        // отражение вместо поворота — меняем знак последней оси
+        double sign = new LUDecomposition(U.multiply(V.transpose()))
+                .getDeterminant() < 0 ? -1 : 1;
+        RealMatrix S = new Array2DRowRealMatrix(new double[][]{{1, 0, 0}, {0, 1, 0}, {0, 0, sign}});
+        double[][] R = U.multiply(S).multiply(V.transpose()).getData();
+
+        double scale = varS < 1e-12 ? 1.0 : (D[0] + D[1] + sign * D[2]) / varS;
+        double[] t = new double[3];
+        for (int r = 0; r < 3; r++) {
+            t[r] = muD[r] - scale * (R[r][0] * muS[0] + R[r][1] * muS[1] + R[r][2] * muS[2]);
+        }
+        return new Sim3(scale, R, t);
+    }
+
+    /**
+     * Estimates the transform, drops correspondences whose residual exceeds
+     * {@code outlierFactor} times the median residual, and re-estimates once.
+     */
+    public static Sim3 estimateRobust(List<double[]> src, List<double[]> dst, double outlierFactor) {
+        Sim3 sim = estimate(src, dst);
+        double[] res = new double[src.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = sim.residual(src.get(i), dst.get(i));
+        }
+        double[] sorted = res.clone();
+        Arrays.sort(sorted);
+        double limit = Math.max(sorted[sorted.length / 2] * outlierFactor, 1e-9);
+
+        List<double[]> inSrc = new ArrayList<>();
+        List<double[]> inDst = new ArrayList<>();
+        for (int i = 0; i < res.length; i++) {
+            if (res[i] <= limit) {
+                inSrc.add(src.get(i));
+                inDst.add(dst.get(i));
+            }
+        }
+        return inSrc.size() >= 3 && inSrc.size() < src.size() ? estimate(inSrc, inDst) : sim;
+    }
+
+    public double[] apply(double x, double y, double z) {
+        double[] out = new double[3];
+        for (int r = 0; r < 3; r++) {
+            out[r] = scale * (R[r][0] * x + R[r][1] * y + R[r][2] * z) + t[r];
+        }
+        return out;
+    }
+
+    public Point3D apply(Point3D p) {
+        double[] q = apply(p.getX(), p.getY(), p.getZ());
+        return new Point3D(p.getName(), q[0], q[1], q[2]);
+    }
+
+    /**
+     * Rotation of a camera pose {@code x_cam = Rc * X + tc} expressed in the target frame:
+     * {@code Rc * R^T}.
+     */
+    public Mat transformRotation(Mat Rc) {
+        double[] rc = new double[9];
+        Rc.get(0, 0, rc);
+        Mat out = new Mat(3, 3, CvType.CV_64F);
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                double v = 0;
+                for (int k = 0; k < 3; k++) {
+                    v += rc[r * 3 + k] * R[c][k];
+                }
+                out.put(r, c, v);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Translation of a camera pose in the target frame: {@code s * tc - Rc' * t}, where
+     * {@code Rc'} is the already transformed rotation. Projections are unchanged up to scale.
+     */
+    public Mat transformTranslation(Mat tc, Mat transformedRotation) {
+        double[] tv = new double[3];
+        tc.get(0, 0, tv);
+        double[] r = new double[9];
+        transformedRotation.get(0, 0, r);
+        Mat out = new Mat(3, 1, CvType.CV_64F);
+        for (int i = 0; i < 3; i++) {
+            out.put(i, 0, scale * tv[i] - (r[i * 3] * t[0] + r[i * 3 + 1] * t[1] + r[i * 3 + 2] * t[2]));
+        }
+        return out;
+    }
+
+    private double residual(double[] s, double[] d) {
+        double[] q = apply(s[0], s[1], s[2]);
+        double dx = q[0] - d[0], dy = q[1] - d[1], dz = q[2] - d[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static double[] mean(List<double[]> pts) {
+        double[] m = new double[3];
+        for (double[] p : pts) {
+            for (int i = 0; i < 3; i++) {
+                m[i] += p[i] / pts.size();
+            }
+        }
+        return m;
+    }
+}
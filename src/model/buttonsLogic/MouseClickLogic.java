@@ -44,8 +44,7 @@ public class MouseClickLogic extends MouseAdapter {
                 return;
             }
 
-            selectedPoint.setX(imgPt.x);
-            selectedPoint.setY(imgPt.y);
+            processor.moveActivePoint(imgPt.x, imgPt.y);
             imagePanel.repaint();
 
         } else if (SwingUtilities.isRightMouseButton(e)) {
@@ -0,0 +1,108 @@
+package model.buttonsLogic;
+
+import model.ImageProcessor;
+import model.ProjectSnapshot;
+
+import javax.swing.*;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Сохраняет проект в фоновом потоке. Снимок проекта снимается в EDT при вызове
+ * {@link #save}, а записывается отдельным потоком, так что окно не замирает.
+ * Пока идёт запись, новые запросы не копятся: ждёт только самый свежий снимок.
+ * Обратные вызовы приходят в EDT.
+ */
+public class ProjectSaver {
+    private final ImageProcessor processor;
+    private final Runnable onStarted;
+    private final Consumer<ProjectSnapshot> onSaved;
+    private final Consumer<Throwable> onFailure;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "project-save");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // ожидающий запрос заменяет предыдущий ожидающий
+    private ProjectSnapshot pending;
+    private Path pendingPath;
+    private boolean running;
+
+    public ProjectSaver(ImageProcessor processor,
+                        Runnable onStarted,
+                        Consumer<ProjectSnapshot> onSaved,
+                        Consumer<Throwable> onFailure) {
+        this.processor = processor;
+        this.onStarted = onStarted;
+        this.onSaved = onSaved;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Takes a snapshot of the project and queues it for writing to {@code path}. Call on
+     * the event thread, where the project is edited.
+     */
+    public void save(String path) {
+        ProjectSnapshot snapshot = processor.snapshot();
+        synchronized (this) {
+            pending = snapshot;
+            pendingPath = Path.of(path);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    /** Whether a save is queued or being written. */
+    public synchronized boolean isBusy() {
+        return running;
+    }
+
+    /**
+     * Waits until queued saves are written, e.g. before the application exits.
+     *
+     * @return {@code false} if they did not finish in time
+     */
+    public synchronized boolean awaitIdle(Duration timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        while (running) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            ProjectSnapshot snapshot;
+            Path path;
+            synchronized (this) {
+                snapshot = pending;
+                path = pendingPath;
+                pending = null;
+                if (snapshot == null) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            SwingUtilities.invokeLater(onStarted);
+            try {
+                processor.save(snapshot, path);
+                SwingUtilities.invokeLater(() -> onSaved.accept(snapshot));
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> onFailure.accept(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package model.buttonsLogic;
+
+import model.CloudDelta;
+import model.Reconstruction;
+import model.ReconstructionListener;
+import model.ReconstructionProgress;
+
+import javax.swing.*;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Запускает задачу реконструкции (полную или инкрементальную) в фоновом потоке и
+ * доставляет прогресс и результат обратно в EDT.
+ * Отмена — через cancel(true), который прерывает поток реконструкции.
+ * Дельты облака приходят с номером запуска: отменённый запуск может прислать их уже
+ * после того, как начался следующий, и получатель отбрасывает чужие.
+ */
+public class ReconstructionWorker extends SwingWorker<Reconstruction, ReconstructionProgress> {
+    private static final AtomicLong RUNS = new AtomicLong();
+
+    private final long runId = RUNS.incrementAndGet();
+    private final Function<ReconstructionListener, Reconstruction> job;
+    private final Consumer<ReconstructionProgress> onProgress;
+    private final BiConsumer<Long, CloudDelta> onCloudDelta;
+    private final Consumer<Reconstruction> onSuccess;
+    private final Consumer<Throwable> onFailure;
+    private final Runnable onCancel;
+
+    public ReconstructionWorker(Function<ReconstructionListener, Reconstruction> job,
+                                Consumer<ReconstructionProgress> onProgress,
+                                BiConsumer<Long, CloudDelta> onCloudDelta,
+                                Consumer<Reconstruction> onSuccess,
+                                Consumer<Throwable> onFailure,
+                                Runnable onCancel) {
+        this.job = job;
+        this.onProgress = onProgress;
+        this.onCloudDelta = onCloudDelta;
+        this.onSuccess = onSuccess;
+        this.onFailure = onFailure;
+        this.onCancel = onCancel;
+    }
+
+    /** Number of this run, unique within the application. */
+    public long getRunId() {
+        return runId;
+    }
+
+    @Override
+    protected Reconstruction doInBackground() {
+        return job.apply(new ReconstructionListener() {
+            @Override
+            public void onProgress(ReconstructionProgress progress) {
+                publish(progress);
+            }
+
+            @Override
+            public void onCloudUpdate(CloudDelta delta) {
+                // дельты нельзя склеивать, как прогресс, поэтому каждая идёт в EDT отдельно
+                SwingUtilities.invokeLater(() -> onCloudDelta.accept(runId, delta));
+            }
+        });
+    }
+
+    @Override
+    protected void process(List<ReconstructionProgress> chunks) {
+        // промежуточные события можно пропустить — UI показывает только последнее
+        onProgress.accept(chunks.get(chunks.size() - 1));
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            onCancel.run();
+            return;
+        }
+        try {
+            onSuccess.accept(get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onCancel.run();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                onCancel.run();
+            } else {
+                onFailure.accept(e.getCause());
+            }
+        }
+    }
+}
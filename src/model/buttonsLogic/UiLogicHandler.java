@@ -43,7 +43,7 @@ public class UiLogicHandler {
             try {
                 BufferedImage img = ImageIO.read(file);
                 String imageName = file.getName();
-                processor.addImage(imageName, img);
+                processor.addImage(imageName, img, file.toPath());
                 imagePanel.setImage(img);
             } catch (IOException ex) {
                 JOptionPane.showMessageDialog(
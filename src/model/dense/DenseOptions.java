@@ -0,0 +1,31 @@
+package model.dense;
+
+import lombok.Data;
+
+/**
+ * Настройки плотной реконструкции PatchMatch MVS.
+ */
+@Data
+public class DenseOptions {
+    /** Neighbouring cameras photometrically compared with each reference image. */
+    private int maxSourceViews = 4;
+    /**
+     * Depth maps are computed on the finest pyramid level whose longer side fits this many
+     * pixels (0: full resolution).
+     */
+    private int maxImageSize = 2000;
+    /** Matching window is {@code (2r + 1)^2} pixels, sampled every {@link #windowStep} pixels. */
+    private int windowRadius = 4;
+    private int windowStep = 2;
+    /** Propagation sweeps per tile; odd sweeps run in reverse scan order. */
+    private int iterations = 3;
+    /** Depth maps are computed in square tiles of this size, one tile per task. */
+    private int tileSize = 128;
+    /** Pixels with a matching cost (1 - NCC) above this are discarded. */
+    private double maxCost = 0.4;
+    /** Fused points need support from at least this many reference images. */
+    private int minConsistentViews = 2;
+    /** Fusion voxel edge in pixel footprints at the median scene depth. */
+    private double voxelScale = 2.0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+}
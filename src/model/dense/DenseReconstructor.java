@@ -0,0 +1,184 @@
+package model.dense;
+
+import model.ImagePyramid;
+import model.Point3D;
+import model.Reconstruction;
+
+import java.awt.Dimension;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Плотная реконструкция по зарегистрированным камерам: карты глубины PatchMatch
+ * по плиткам на пуле потоков и потоковое слияние в облако точек.
+ */
+public final class DenseReconstructor {
+
+    private DenseReconstructor() {
+    }
+
+    /**
+     * Computes depth maps for every registered camera and fuses them. Points are in the
+     * coordinates of {@code recon}.
+     *
+     * @param sizes    full-resolution size of each camera image
+     * @param images   decodes the pyramid of a camera image each time it is called; the result is
+     *                 dropped once the grey levels at {@link DenseOptions#getMaxImageSize()} are taken
+     * @param progress receives (tiles done, tiles total) as tiles are fused
+     */
+    public static List<Point3D> reconstruct(Reconstruction recon, Function<String, Dimension> sizes,
+                                            Function<String, ImagePyramid> images,
+                                            DenseOptions options, BiConsumer<Integer, Integer> progress) {
+        long start = System.currentTimeMillis();
+        List<String> cameras = new ArrayList<>(recon.getCameraNames());
+        List<DenseView> views = new ArrayList<>();
+        for (String cam : cameras) {
+            Dimension size = sizes.apply(cam);
+            int level = ImagePyramid.levelFor(size.width, size.height, options.getMaxImageSize());
+            views.add(new DenseView(cam, size, level, recon.getK(),
+                    recon.getCameraRotation(cam), recon.getCameraTranslation(cam)));
+        }
+
+        // 1) Для каждой опорной камеры — соседи и диапазон глубин по разреженным точкам
+        List<List<Integer>> sources = new ArrayList<>();
+        double[][] depthRange = new double[views.size()][];
+        List<Double> footprints = new ArrayList<>();
+        for (int r = 0; r < views.size(); r++) {
+            DenseView ref = views.get(r);
+            sources.add(selectSources(recon, cameras, views, r, options.getMaxSourceViews()));
+            depthRange[r] = depthRange(recon, ref);
+            if (depthRange[r] != null) {
+                footprints.add(0.5 * (depthRange[r][0] + depthRange[r][1]) / ref.fx);
+            }
+        }
+        if (footprints.isEmpty()) {
+            throw new RuntimeException("No camera has sparse points to bound its depth range");
+        }
+        Collections.sort(footprints);
+        DepthFusion fusion = new DepthFusion(options.getVoxelScale() * footprints.get(footprints.size() / 2),
+                options.getMinConsistentViews());
+
+        // 2) Плитки всех опорных изображений — отдельные задачи; готовые сразу сливаются.
+        // Пиксели видов грузятся плиткой и держатся только для тех, что нужны потокам сейчас
+        int threads = Math.max(1, options.getThreads());
+        DenseViewCache cache = new DenseViewCache(views, images, threads * (1 + options.getMaxSourceViews()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<PatchMatchStereo.TileResult> completion = new ExecutorCompletionService<>(pool);
+        int tiles = 0;
+        try {
+            int size = options.getTileSize();
+            for (int r = 0; r < views.size(); r++) {
+                DenseView ref = views.get(r);
+                if (depthRange[r] == null || sources.get(r).isEmpty()) {
+                    continue;
+                }
+                for (int y = 0; y < ref.height; y += size) {
+                    for (int x = 0; x < ref.width; x += size) {
+                        int reference = r, x0 = x, y0 = y;
+                        List<Integer> src = sources.get(r);
+                        double[] range = depthRange[r];
+                        long seed = 31L * tiles + r;
+                        completion.submit(() -> {
+                            DenseView loaded = cache.get(reference);
+                            List<PatchMatchStereo.Source> list = new ArrayList<>();
+                            for (int s : src) {
+                                list.add(new PatchMatchStereo.Source(loaded, cache.get(s)));
+                            }
+                            return PatchMatchStereo.run(reference, loaded, list, options,
+                                    range[0], range[1], x0, y0, Math.min(x0 + size, ref.width),
+                                    Math.min(y0 + size, ref.height), seed);
+                        });
+                        tiles++;
+                    }
+                }
+            }
+            for (int done = 1; done <= tiles; done++) {
+                fusion.add(completion.take().get());
+                progress.accept(done, tiles);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Dense reconstruction cancelled");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Dense reconstruction failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Point3D> points = fusion.points();
+        System.out.println("Dense reconstruction: " + tiles + " tiles, " + fusion.voxelCount() + " voxels, "
+                + points.size() + " points in " + (System.currentTimeMillis() - start) + " ms");
+        return points;
+    }
+
+    /**
+     * Cameras sharing the most sparse points with the reference, skipping those whose
+     * viewing direction is nearly identical (no parallax) or too different (little overlap).
+     */
+    private static List<Integer> selectSources(Reconstruction recon, List<String> cameras, List<DenseView> views,
+                                               int reference, int max) {
+        String ref = cameras.get(reference);
+        Map<String, Integer> shared = new HashMap<>();
+        for (String pointName : recon.getPointCloud().keySet()) {
+            Set<String> observers = recon.getObservingCameras(pointName);
+            if (!observers.contains(ref)) {
+                continue;
+            }
+            for (String cam : observers) {
+                if (!cam.equals(ref)) {
+                    shared.merge(cam, 1, Integer::sum);
+                }
+            }
+        }
+        double[] axisRef = axis(views.get(reference));
+        List<Integer> candidates = new ArrayList<>();
+        for (int s = 0; s < cameras.size(); s++) {
+            if (s == reference || !shared.containsKey(cameras.get(s))) {
+                continue;
+            }
+            double[] a = axis(views.get(s));
+            double angle = Math.toDegrees(Math.acos(Math.max(-1, Math.min(1,
+                    a[0] * axisRef[0] + a[1] * axisRef[1] + a[2] * axisRef[2]))));
+            double[] c1 = views.get(reference).center(), c2 = views.get(s).center();
+            double baseline = Math.sqrt(Math.pow(c1[0] - c2[0], 2) + Math.pow(c1[1] - c2[1], 2)
+                    + Math.pow(c1[2] - c2[2], 2));
+            if (angle <= 60 && baseline > 1e-9) {
+                candidates.add(s);
+            }
+        }
+        candidates.sort((a, b) -> Integer.compare(shared.get(cameras.get(b)), shared.get(cameras.get(a))));
+        return candidates.subList(0, Math.min(max, candidates.size()));
+    }
+
+    /** Optical axis in world coordinates (third row of R). */
+    private static double[] axis(DenseView v) {
+        return new double[]{v.R[6], v.R[7], v.R[8]};
+    }
+
+    /**
+     * Depth range of the sparse points seen by the camera, from the 5th to the 95th
+     * percentile widened by a quarter; {@code null} if it sees no points.
+     */
+    private static double[] depthRange(Reconstruction recon, DenseView view) {
+        List<Double> depths = new ArrayList<>();
+        for (Map.Entry<String, Point3D> e : recon.getPointCloud().entrySet()) {
+            if (!recon.hasObservation(e.getKey(), view.name)) {
+                continue;
+            }
+            Point3D p = e.getValue();
+            double d = view.depth(p.getX(), p.getY(), p.getZ());
+            if (d > 0) {
+                depths.add(d);
+            }
+        }
+        if (depths.size() < 3) {
+            return null;
+        }
+        Collections.sort(depths);
+        double lo = depths.get((int) (0.05 * (depths.size() - 1)));
+        double hi = depths.get((int) Math.ceil(0.95 * (depths.size() - 1)));
+        return new double[]{0.75 * lo, 1.25 * hi};
+    }
+}
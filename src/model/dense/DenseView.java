@@ -0,0 +1,106 @@
+package model.dense;
+
+import model.ImagePyramid;
+import org.opencv.core.Mat;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+/**
+ * Grey-level image of one registered camera with its pose, as used by PatchMatch.
+ * Intensities are floats in [0, 1]; the pose maps world to camera coordinates. The image is
+ * one pyramid level and the intrinsics are scaled to it, so depths are those of the full
+ * camera. A view is first created from the image size only, for choosing sources and depth
+ * ranges; {@link #load} returns a copy with the grey levels for matching.
+ */
+final class DenseView {
+    final String name;
+    final int level;
+    final int width;
+    final int height;
+    /** {@code null} until {@linkplain #load loaded}. */
+    final float[] gray;
+    final double fx, fy, cx, cy;
+    /** Row-major world-to-camera rotation. */
+    final double[] R = new double[9];
+    final double[] t = new double[3];
+
+    DenseView(String name, Dimension size, int level, Mat K, Mat R, Mat t) {
+        this.name = name;
+        this.level = level;
+        // каждый уровень пирамиды вдвое меньше предыдущего, с округлением вниз
+        this.width = size.width >> level;
+        this.height = size.height >> level;
+        this.gray = null;
+        int scale = ImagePyramid.scale(level);
+        this.fx = K.get(0, 0)[0] / scale;
+        this.fy = K.get(1, 1)[0] / scale;
+        this.cx = ImagePyramid.fromFull(level, K.get(0, 2)[0]);
+        this.cy = ImagePyramid.fromFull(level, K.get(1, 2)[0]);
+        R.get(0, 0, this.R);
+        t.get(0, 0, this.t);
+    }
+
+    private DenseView(DenseView view, float[] gray) {
+        this.name = view.name;
+        this.level = view.level;
+        this.width = view.width;
+        this.height = view.height;
+        this.gray = gray;
+        this.fx = view.fx;
+        this.fy = view.fy;
+        this.cx = view.cx;
+        this.cy = view.cy;
+        System.arraycopy(view.R, 0, this.R, 0, 9);
+        System.arraycopy(view.t, 0, this.t, 0, 3);
+    }
+
+    /** The same view with the grey levels of its pyramid level. */
+    DenseView load(ImagePyramid pyramid) {
+        BufferedImage image = pyramid.level(level);
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalStateException("Pyramid level of " + name + " does not match its view");
+        }
+        float[] gray = new float[width * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                gray[y * width + x] = (0.299f * ((rgb >> 16) & 0xFF)
+                        + 0.587f * ((rgb >> 8) & 0xFF) + 0.114f * (rgb & 0xFF)) / 255f;
+            }
+        }
+        return new DenseView(this, gray);
+    }
+
+    float at(int x, int y) {
+        return gray[y * width + x];
+    }
+
+    /** Bilinear intensity, or NaN outside the image. */
+    float sample(double x, double y) {
+        if (x < 0 || y < 0 || x > width - 1.001 || y > height - 1.001) {
+            return Float.NaN;
+        }
+        int x0 = (int) x, y0 = (int) y;
+        float ax = (float) (x - x0), ay = (float) (y - y0);
+        int i = y0 * width + x0;
+        float top = gray[i] + ax * (gray[i + 1] - gray[i]);
+        float bottom = gray[i + width] + ax * (gray[i + width + 1] - gray[i + width]);
+        return top + ay * (bottom - top);
+    }
+
+    /** Camera centre in world coordinates, -R^T t. */
+    double[] center() {
+        return new double[]{
+                -(R[0] * t[0] + R[3] * t[1] + R[6] * t[2]),
+                -(R[1] * t[0] + R[4] * t[1] + R[7] * t[2]),
+                -(R[2] * t[0] + R[5] * t[1] + R[8] * t[2])};
+    }
+
+    /** Depth of a world point along the optical axis. */
+    double depth(double x, double y, double z) {
+        return R[6] * x + R[7] * y + R[8] * z + t[2];
+    }
+}
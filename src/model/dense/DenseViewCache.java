@@ -0,0 +1,49 @@
+package model.dense;
+
+import model.ImagePyramid;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Grey levels of the views a tile needs, loaded on demand and kept for the most recently
+ * used views only. Tiles are matched in reference order, so the threads share a handful of
+ * references and their sources at any time. A view is loaded by decoding its image and
+ * keeping only the grey levels of one pyramid level, so images that were not decoded
+ * before the run are not held at full resolution.
+ */
+final class DenseViewCache {
+    private final List<DenseView> views;
+    private final Function<String, ImagePyramid> images;
+    private final Map<Integer, DenseView> loaded;
+
+    DenseViewCache(List<DenseView> views, Function<String, ImagePyramid> images, int capacity) {
+        this.views = views;
+        this.images = images;
+        this.loaded = new LinkedHashMap<Integer, DenseView>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, DenseView> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** View {@code index} with its grey levels. */
+    DenseView get(int index) {
+        synchronized (loaded) {
+            DenseView view = loaded.get(index);
+            if (view != null) {
+                return view;
+            }
+        }
+        // загрузка вне блокировки: другие потоки тем временем берут уже загруженные виды
+        DenseView geometry = views.get(index);
+        DenseView view = geometry.load(images.apply(geometry.name));
+        synchronized (loaded) {
+            DenseView other = loaded.putIfAbsent(index, view);
+            return other != null ? other : view;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package model.dense;
+
+import model.Point3D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming fusion of depth-map tiles into a voxel grid: each tile is folded in as soon as
+ * it is computed and then dropped, so no depth map is ever held whole. A voxel becomes a
+ * point when enough different reference images put a depth sample into it, which rejects
+ * estimates that no other view agrees with.
+ */
+final class DepthFusion {
+
+    private static final class Voxel {
+        double sx, sy, sz;
+        int samples;
+        /** Distinct reference images, recorded only up to {@code minViews}. */
+        final int[] views;
+        int viewCount;
+
+        Voxel(int minViews) {
+            views = new int[minViews];
+        }
+    }
+
+    private final double voxelSize;
+    private final int minViews;
+    private final Map<Long, Voxel> voxels = new HashMap<>();
+
+    DepthFusion(double voxelSize, int minViews) {
+        this.voxelSize = voxelSize;
+        this.minViews = minViews;
+    }
+
+    void add(PatchMatchStereo.TileResult tile) {
+        for (int i = 0; i < tile.count; i++) {
+            float x = tile.xyz[3 * i], y = tile.xyz[3 * i + 1], z = tile.xyz[3 * i + 2];
+            Voxel v = voxels.computeIfAbsent(key(x, y, z), k -> new Voxel(minViews));
+            v.sx += x;
+            v.sy += y;
+            v.sz += z;
+            v.samples++;
+            addView(v, tile.reference);
+        }
+    }
+
+    private static void addView(Voxel v, int reference) {
+        if (v.viewCount == v.views.length) {
+            // порог уже набран, больше видов считать незачем
+            return;
+        }
+        for (int i = 0; i < v.viewCount; i++) {
+            if (v.views[i] == reference) {
+                return;
+            }
+        }
+        v.views[v.viewCount++] = reference;
+    }
+
+    /** Voxels supported by at least {@code minViews} reference images, as their mean point. */
+    List<Point3D> points() {
+        List<Point3D> result = new ArrayList<>();
+        for (Voxel v : voxels.values()) {
+            if (v.viewCount >= minViews) {
+                result.add(new Point3D("dense_" + result.size(),
+                        v.sx / v.samples, v.sy / v.samples, v.sz / v.samples));
+            }
+        }
+        return result;
+    }
+
+    int voxelCount() {
+        return voxels.size();
+    }
+
+    private long key(double x, double y, double z) {
+        long ix = (long) Math.floor(x / voxelSize) & 0x1FFFFF;
+        long iy = (long) Math.floor(y / voxelSize) & 0x1FFFFF;
+        long iz = (long) Math.floor(z / voxelSize) & 0x1FFFFF;
+        return (ix << 42) | (iy << 21) | iz;
+    }
+}
@@ -0,0 +1,295 @@
+package model.dense;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * PatchMatch stereo over one tile of a reference image: every pixel carries a slanted plane
+ * hypothesis (depth and normal in the reference camera frame) that is scored by NCC against
+ * the source views through the plane-induced homography, propagated from its neighbours and
+ * randomly refined. Hypotheses are kept for the tile plus a margin only; the grey levels
+ * of the views come from {@link DenseViewCache}.
+ */
+final class PatchMatchStereo {
+
+    /** Cost of hypotheses that cannot be evaluated (textureless, outside, behind the camera). */
+    private static final float INVALID = 2f;
+    private static final int REFINEMENTS = 3;
+
+    /** A source view with its pose relative to the reference camera. */
+    static final class Source {
+        final DenseView view;
+        /** Reference-camera to source-camera rotation (row-major) and translation. */
+        final double[] R = new double[9];
+        final double[] t = new double[3];
+
+        Source(DenseView ref, DenseView view) {
+            this.view = view;
+            // R_rs = R_s * R_r^T, t_rs = t_s - R_rs * t_r
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    double s = 0;
+                    for (int k = 0; k < 3; k++) {
+                        s += view.R[i * 3 + k] * ref.R[j * 3 + k];
+                    }
+                    R[i * 3 + j] = s;
+                }
+            }
+            for (int i = 0; i < 3; i++) {
+                t[i] = view.t[i] - (R[i * 3] * ref.t[0] + R[i * 3 + 1] * ref.t[1] + R[i * 3 + 2] * ref.t[2]);
+            }
+        }
+    }
+
+    /** World points of the accepted pixels of one tile, packed as x, y, z. */
+    static final class TileResult {
+        final int reference;
+        final float[] xyz;
+        final int count;
+
+        TileResult(int reference, float[] xyz, int count) {
+            this.reference = reference;
+            this.xyz = xyz;
+            this.count = count;
+        }
+    }
+
+    private final DenseView ref;
+    private final List<Source> sources;
+    private final DenseOptions options;
+    private final double minDepth, maxDepth;
+    private final Random random;
+
+    // рабочая область: плитка + поля
+    private final int ox, oy, w, h;
+    private final float[] depth;
+    private final float[] normal;
+    private final float[] cost;
+    private final float[] sourceCosts;
+
+    private PatchMatchStereo(DenseView ref, List<Source> sources, DenseOptions options,
+                             double minDepth, double maxDepth, int ox, int oy, int w, int h, long seed) {
+        this.ref = ref;
+        this.sources = sources;
+        this.options = options;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        this.ox = ox;
+        this.oy = oy;
+        this.w = w;
+        this.h = h;
+        this.depth = new float[w * h];
+        this.normal = new float[3 * w * h];
+        this.cost = new float[w * h];
+        this.sourceCosts = new float[sources.size()];
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Estimates depths for the tile {@code [x0, x1) x [y0, y1)} of the reference image and
+     * returns the world points of the pixels whose cost is below {@link DenseOptions#getMaxCost()}.
+     */
+    static TileResult run(int reference, DenseView ref, List<Source> sources, DenseOptions options,
+                          double minDepth, double maxDepth, int x0, int y0, int x1, int y1, long seed) {
+        // поля дают плитке распространение гипотез из соседних областей
+        int margin = options.getWindowRadius() + options.getTileSize() / 8;
+        int ox = Math.max(0, x0 - margin), oy = Math.max(0, y0 - margin);
+        int ex = Math.min(ref.width, x1 + margin), ey = Math.min(ref.height, y1 + margin);
+        PatchMatchStereo pm = new PatchMatchStereo(ref, sources, options, minDepth, maxDepth,
+                ox, oy, ex - ox, ey - oy, seed);
+        pm.initialise();
+        for (int iter = 0; iter < options.getIterations(); iter++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return new TileResult(reference, new float[0], 0);
+            }
+            pm.sweep(iter % 2 == 1);
+        }
+        return pm.collect(reference, x0, y0, x1, y1);
+    }
+
+    private void initialise() {
+        float[] n = new float[3];
+        for (int i = 0; i < w * h; i++) {
+            // обратная глубина равномерна: ближние плоскости не оказываются в меньшинстве
+            double inv = 1 / maxDepth + random.nextDouble() * (1 / minDepth - 1 / maxDepth);
+            depth[i] = (float) (1 / inv);
+            randomNormal(n);
+            System.arraycopy(n, 0, normal, 3 * i, 3);
+            cost[i] = evaluate(ox + i % w, oy + i / w, depth[i], n[0], n[1], n[2]);
+        }
+    }
+
+    /** One top-down (or reverse) sweep: neighbour propagation, then random refinement. */
+    private void sweep(boolean reverse) {
+        int step = reverse ? -1 : 1;
+        int startX = reverse ? w - 1 : 0, startY = reverse ? h - 1 : 0;
+        float[] n = new float[3];
+        for (int y = startY; y >= 0 && y < h; y += step) {
+            for (int x = startX; x >= 0 && x < w; x += step) {
+                int i = y * w + x;
+                int px = ox + x, py = oy + y;
+                // соседи, уже обработанные в этом проходе
+                int nx = x - step, ny = y - step;
+                if (nx >= 0 && nx < w) {
+                    tryHypothesis(i, px, py, nx + y * w);
+                }
+                if (ny >= 0 && ny < h) {
+                    tryHypothesis(i, px, py, x + ny * w);
+                }
+                double range = 0.25 * (maxDepth - minDepth);
+                double normalRange = 0.5;
+                for (int r = 0; r < REFINEMENTS; r++, range *= 0.5, normalRange *= 0.5) {
+                    float d = (float) (depth[i] + (random.nextDouble() * 2 - 1) * range);
+                    if (d < minDepth || d > maxDepth) {
+                        continue;
+                    }
+                    n[0] = (float) (normal[3 * i] + (random.nextDouble() * 2 - 1) * normalRange);
+                    n[1] = (float) (normal[3 * i + 1] + (random.nextDouble() * 2 - 1) * normalRange);
+                    n[2] = (float) (normal[3 * i + 2] + (random.nextDouble() * 2 - 1) * normalRange);
+                    if (!normalise(n)) {
+                        continue;
+                    }
+                    float c = evaluate(px, py, d, n[0], n[1], n[2]);
+                    if (c < cost[i]) {
+                        cost[i] = c;
+                        depth[i] = d;
+                        System.arraycopy(n, 0, normal, 3 * i, 3);
+                    }
+                }
+            }
+        }
+    }
+
+    private void tryHypothesis(int i, int px, int py, int from) {
+        float c = evaluate(px, py, depth[from], normal[3 * from], normal[3 * from + 1], normal[3 * from + 2]);
+        if (c < cost[i]) {
+            cost[i] = c;
+            depth[i] = depth[from];
+            System.arraycopy(normal, 3 * from, normal, 3 * i, 3);
+        }
+    }
+
+    /**
+     * Matching cost of the plane through the point at depth {@code d} on the ray of pixel
+     * (u, v) with normal n: mean of the two best per-source costs 1 - NCC, robust to a view
+     * where the patch is occluded.
+     */
+    private float evaluate(int u, int v, float d, float nx, float ny, float nz) {
+        double rx = (u - ref.cx) / ref.fx, ry = (v - ref.cy) / ref.fy;
+        // плоскость n·Y = c в системе опорной камеры
+        double c = d * (nx * rx + ny * ry + nz);
+        if (c >= 0) {
+            return INVALID;
+        }
+        int radius = options.getWindowRadius(), step = options.getWindowStep();
+        for (int s = 0; s < sources.size(); s++) {
+            Source src = sources.get(s);
+            // M = R + t n^T / c переводит луч опорной камеры в точку в системе источника
+            double[] M = new double[9];
+            for (int r = 0; r < 3; r++) {
+                M[r * 3] = src.R[r * 3] + src.t[r] * nx / c;
+                M[r * 3 + 1] = src.R[r * 3 + 1] + src.t[r] * ny / c;
+                M[r * 3 + 2] = src.R[r * 3 + 2] + src.t[r] * nz / c;
+            }
+            DenseView sv = src.view;
+            double sr = 0, ss = 0, srr = 0, sss = 0, srs = 0;
+            int n = 0;
+            for (int dy = -radius; dy <= radius; dy += step) {
+                int y = v + dy;
+                if (y < 0 || y >= ref.height) {
+                    continue;
+                }
+                double qy = (y - ref.cy) / ref.fy;
+                for (int dx = -radius; dx <= radius; dx += step) {
+                    int x = u + dx;
+                    if (x < 0 || x >= ref.width) {
+                        continue;
+                    }
+                    double qx = (x - ref.cx) / ref.fx;
+                    double Y2 = M[6] * qx + M[7] * qy + M[8];
+                    if (Y2 <= 0) {
+                        continue;
+                    }
+                    double Y0 = M[0] * qx + M[1] * qy + M[2];
+                    double Y1 = M[3] * qx + M[4] * qy + M[5];
+                    float b = sv.sample(sv.fx * Y0 / Y2 + sv.cx, sv.fy * Y1 / Y2 + sv.cy);
+                    if (Float.isNaN(b)) {
+                        continue;
+                    }
+                    float a = ref.at(x, y);
+                    sr += a;
+                    ss += b;
+                    srr += a * a;
+                    sss += b * b;
+                    srs += a * b;
+                    n++;
+                }
+            }
+            float sc = INVALID;
+            if (n >= 4) {
+                double varR = srr - sr * sr / n, varS = sss - ss * ss / n;
+                if (varR > 1e-5 * n && varS > 1e-5 * n) {
+                    sc = (float) (1 - (srs - sr * ss / n) / Math.sqrt(varR * varS));
+                }
+            }
+            sourceCosts[s] = sc;
+        }
+        Arrays.sort(sourceCosts);
+        int k = Math.min(2, sourceCosts.length);
+        float sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += sourceCosts[i];
+        }
+        return sum / k;
+    }
+
+    private TileResult collect(int reference, int x0, int y0, int x1, int y1) {
+        float[] xyz = new float[3 * (x1 - x0) * (y1 - y0)];
+        int count = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int i = (y - oy) * w + (x - ox);
+                if (cost[i] > options.getMaxCost()) {
+                    continue;
+                }
+                double d = depth[i];
+                double cxp = d * (x - ref.cx) / ref.fx, cyp = d * (y - ref.cy) / ref.fy, czp = d;
+                // X_world = R^T (X_cam - t)
+                double[] R = ref.R, t = ref.t;
+                double ax = cxp - t[0], ay = cyp - t[1], az = czp - t[2];
+                xyz[3 * count] = (float) (R[0] * ax + R[3] * ay + R[6] * az);
+                xyz[3 * count + 1] = (float) (R[1] * ax + R[4] * ay + R[7] * az);
+                xyz[3 * count + 2] = (float) (R[2] * ax + R[5] * ay + R[8] * az);
+                count++;
+            }
+        }
+        return new TileResult(reference, xyz, count);
+    }
+
+    /** Random unit normal facing the camera (negative z in the camera frame). */
+    private void randomNormal(float[] n) {
+        do {
+            n[0] = (float) (random.nextDouble() * 2 - 1);
+            n[1] = (float) (random.nextDouble() * 2 - 1);
+            n[2] = (float) (random.nextDouble() * 2 - 1);
+        } while (!normalise(n));
+    }
+
+    private static boolean normalise(float[] n) {
+        double len = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+        if (len < 1e-6) {
+            return false;
+        }
+        n[0] /= len;
+        n[1] /= len;
+        n[2] /= len;
+        // нормаль должна смотреть в камеру
+        if (n[2] > 0) {
+            n[0] = -n[0];
+            n[1] = -n[1];
+            n[2] = -n[2];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package model.features;
+
+import org.opencv.core.Core;
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.BFMatcher;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FlannBasedMatcher;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Nearest-neighbour index over the descriptors of one image. Built once and queried by
+ * every pair the image takes part in: a FLANN KD-forest for float descriptors, FLANN
+ * LSH for binary ones, or an exact brute-force matcher when approximate matching is off.
+ */
+public class DescriptorIndex {
+
+    private final ImageFeatures features;
+    private final DescriptorMatcher matcher;
+
+    private DescriptorIndex(ImageFeatures features, DescriptorMatcher matcher) {
+        this.features = features;
+        this.matcher = matcher;
+    }
+
+    /**
+     * @param flannParams parameter file from {@link #writeFlannParams}, or {@code null}
+     *                    for exact matching
+     */
+    public static DescriptorIndex build(ImageFeatures features, FeatureOptions options, Path flannParams) {
+        if (features.size() < 2) {
+            return new DescriptorIndex(features, null);
+        }
+        DescriptorMatcher matcher;
+        if (flannParams != null) {
+            FlannBasedMatcher flann = FlannBasedMatcher.create();
+            flann.read(flannParams.toString());
+            matcher = flann;
+        } else {
+            int norm = options.getDetector().isBinary() ? Core.NORM_HAMMING : Core.NORM_L2;
+            matcher = BFMatcher.create(norm, false);
+        }
+        matcher.add(Collections.singletonList(features.getDescriptors()));
+        matcher.train();
+        return new DescriptorIndex(features, matcher);
+    }
+
+    public ImageFeatures getFeatures() {
+        return features;
+    }
+
+    /**
+     * For every descriptor of {@code query} the index of its nearest neighbour in this image
+     * that passes the Lowe ratio test, or -1.
+     */
+    public int[] bestMatches(ImageFeatures query, double ratio) {
+        int[] best = new int[query.size()];
+        Arrays.fill(best, -1);
+        if (matcher == null || query.size() == 0) {
+            return best;
+        }
+        List<MatOfDMatch> knn = new ArrayList<>();
+        // FLANN-индекс не гарантирует потокобезопасность поиска — запросы к одному индексу по очереди
+        synchronized (this) {
+            matcher.knnMatch(query.getDescriptors(), knn, 2);
+        }
+        for (MatOfDMatch m : knn) {
+            DMatch[] d = m.toArray();
+            if (d.length == 2 && d[0].distance < ratio * d[1].distance) {
+                best[d[0].queryIdx] = d[0].trainIdx;
+            }
+            m.release();
+        }
+        return best;
+    }
+
+    /**
+     * The Java bindings of {@link FlannBasedMatcher} expose no index parameters, only
+     * {@code read}, so the parameters are written in the format of
+     * {@code FlannBasedMatcher::write} to a temporary file. Returns {@code null} when
+     * approximate matching is disabled.
+     */
+    public static Path writeFlannParams(FeatureOptions options) {
+        if (!options.isApproximateMatching()) {
+            return null;
+        }
+        StringBuilder yml = new StringBuilder("%YAML:1.0\n---\nformat: 3\nindexParams:\n");
+        if (options.getDetector().isBinary()) {
+            // FLANN_INDEX_LSH
+            param(yml, "algorithm", 9, 6);
+            param(yml, "table_number", 4, options.getLshTables());
+            param(yml, "key_size", 4, options.getLshKeySize());
+            param(yml, "multi_probe_level", 4, options.getLshProbeLevel());
+        } else {
+            // FLANN_INDEX_KDTREE
+            param(yml, "algorithm", 9, 1);
+            param(yml, "trees", 4, options.getKdTrees());
+        }
+        yml.append("searchParams:\n");
+        param(yml, "checks", 4, options.getAnnChecks());
+        yml.append("   - { name: eps, type: 5, value: 0. }\n");
+        param(yml, "explore_all_trees", 8, 0);
+        param(yml, "sorted", 8, 1);
+        try {
+            Path file = Files.createTempFile("flann", ".yml");
+            Files.writeString(file, yml, StandardCharsets.US_ASCII);
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write FLANN parameters", e);
+        }
+    }
+
+    private static void param(StringBuilder yml, String name, int type, int value) {
+        yml.append("   - { name: ").append(name).append(", type: ").append(type)
+                .append(", value: ").append(value).append(" }\n");
+    }
+}
@@ -0,0 +1,186 @@
+package model.features;
+
+import model.ImagePyramid;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * On-disk cache of keypoints and descriptors, one file per image named by a hash of the
+ * image content and the detector settings, so any change to either is a cache miss.
+ * Descriptors are read into a direct buffer and wrapped as a {@link Mat} without another
+ * copy; the file itself is not kept open.
+ *
+ * <p>File layout, in native byte order: 8 ints of header (magic, version, byte order,
+ * keypoints, descriptor rows, cols, type, reserved), {@code 2 * keypoints} floats, then
+ * the descriptor matrix row by row.
+ */
+public final class FeatureCache {
+    private static final int MAGIC = 0x46454154; // "FEAT"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private FeatureCache() {
+    }
+
+    /**
+     * File name of the features of an image: the hash of its content (e.g. of its encoded
+     * bytes, so a cached run does not decode it) and the settings that affect extraction.
+     * The pyramid level is fixed by the image size and {@link FeatureOptions#getMaxImageSize()}.
+     */
+    public static String key(String contentHash, FeatureOptions options) {
+        return contentHash + "_" + options.getDetector() + "_" + options.getMaxFeatures()
+                + "_" + options.getMaxImageSize();
+    }
+
+    /**
+     * Features of the images by name, in the order of {@code keys}: read from the cache where
+     * present, otherwise extracted from the pyramid, which is only requested for misses, and
+     * written back. Files of keys not in {@code keys} are deleted, so the cache holds no more
+     * than the current images.
+     */
+    public static Map<String, ImageFeatures> load(Path directory, Map<String, String> keys,
+                                                  Function<String, ImagePyramid> pyramids,
+                                                  FeatureOptions options) {
+        Map<String, ImageFeatures> features = new LinkedHashMap<>();
+        Map<String, ImagePyramid> missing = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : keys.entrySet()) {
+            ImageFeatures cached = read(directory, e.getValue(), e.getKey());
+            features.put(e.getKey(), cached);
+            if (cached == null) {
+                missing.put(e.getKey(), pyramids.apply(e.getKey()));
+            }
+        }
+        for (Map.Entry<String, ImageFeatures> e : FeatureExtractor.extractAll(missing, options).entrySet()) {
+            features.put(e.getKey(), e.getValue());
+            try {
+                write(directory, keys.get(e.getKey()), e.getValue());
+            } catch (IOException ex) {
+                // без кэша просто извлечём признаки заново в следующий раз
+                System.err.println("Cannot cache features of " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+        System.out.println("Features: " + (keys.size() - missing.size()) + " cached, "
+                + missing.size() + " extracted");
+        retainOnly(directory, new HashSet<>(keys.values()));
+        return features;
+    }
+
+    /**
+     * Deletes cache files whose key is not in {@code keep}. A file that cannot be deleted,
+     * e.g. one still open elsewhere on Windows, is left for the next run.
+     */
+    public static void retainOnly(Path directory, Set<String> keep) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".feat") && !keep.contains(name.substring(0, name.length() - 5))) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        System.err.println("Cannot delete stale feature cache " + file + ": " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot list feature cache " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /** Cached features of the image, or {@code null} on a miss or an unreadable file. */
+    public static ImageFeatures read(Path directory, String key, String imageName) {
+        Path file = directory.resolve(key + ".feat");
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // читаем в память, а не отображаем: открытое отображение не даёт удалить файл в Windows
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    return null;
+                }
+            }
+            data.flip();
+            if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION
+                    || data.getInt(8) != byteOrderTag()) {
+                return null;
+            }
+            int count = data.getInt(12), rows = data.getInt(16), cols = data.getInt(20), type = data.getInt(24);
+            long descriptorBytes = (long) rows * cols * CvType.ELEM_SIZE(type);
+            if (data.limit() != HEADER_BYTES + 8L * count + descriptorBytes) {
+                return null;
+            }
+
+            float[] xy = new float[2 * count];
+            data.position(HEADER_BYTES);
+            data.asFloatBuffer().get(xy);
+
+            data.position(HEADER_BYTES + 8 * count);
+            ByteBuffer descriptorData = data.slice();
+            Mat descriptors = rows == 0 ? new Mat() : new Mat(rows, cols, type, descriptorData);
+            return new ImageFeatures(imageName, xy, descriptors, descriptorData);
+        } catch (IOException e) {
+            System.err.println("Unreadable feature cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the features to a temporary file and moves it into place, so readers never
+     * see a partial file.
+     */
+    public static void write(Path directory, String key, ImageFeatures features) throws IOException {
+        Files.createDirectories(directory);
+        Mat d = features.getDescriptors();
+        int rows = d.rows(), cols = d.cols(), type = rows == 0 ? CvType.CV_8U : d.type();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + 8 * features.size()
+                + rows * cols * (int) CvType.ELEM_SIZE(type)).order(ByteOrder.nativeOrder());
+        buf.putInt(MAGIC).putInt(VERSION).putInt(byteOrderTag())
+                .putInt(features.size()).putInt(rows).putInt(cols).putInt(type).putInt(0);
+        buf.asFloatBuffer().put(features.getXy());
+        buf.position(HEADER_BYTES + 8 * features.size());
+        if (rows > 0) {
+            if (CvType.depth(type) == CvType.CV_32F) {
+                float[] values = new float[rows * cols];
+                d.get(0, 0, values);
+                buf.asFloatBuffer().put(values);
+            } else {
+                byte[] values = new byte[rows * cols * (int) CvType.ELEM_SIZE(type)];
+                d.get(0, 0, values);
+                buf.put(values);
+            }
+        }
+        buf.rewind();
+
+        Path file = directory.resolve(key + ".feat");
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int byteOrderTag() {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 2;
+    }
+}
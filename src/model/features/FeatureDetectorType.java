@@ -0,0 +1,38 @@
+package model.features;
+
+import org.opencv.features2d.Feature2D;
+
+/**
+ * Детекторы признаков из поставляемого OpenCV.
+ */
+public enum FeatureDetectorType {
+    ORB(true),
+    AKAZE(true),
+    SIFT(false);
+
+    private final boolean binary;
+
+    FeatureDetectorType(boolean binary) {
+        this.binary = binary;
+    }
+
+    /** Binary descriptors are compared by Hamming distance, float ones by L2. */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Creates a new detector instance; OpenCV detectors are not thread-safe,
+     * so every worker needs its own.
+     */
+    Feature2D create(int maxFeatures) {
+        switch (this) {
+            case ORB:
+                return org.opencv.features2d.ORB.create(maxFeatures);
+            case SIFT:
+                return org.opencv.features2d.SIFT.create(maxFeatures);
+            default:
+                return org.opencv.features2d.AKAZE.create();
+        }
+    }
+}
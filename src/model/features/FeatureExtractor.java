@@ -0,0 +1,100 @@
+package model.features;
+
+import model.ImagePyramid;
+import org.opencv.core.*;
+import org.opencv.features2d.Feature2D;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Параллельное извлечение ключевых точек и дескрипторов по всем изображениям.
+ */
+public final class FeatureExtractor {
+
+    private FeatureExtractor() {
+    }
+
+    public static Map<String, ImageFeatures> extractAll(Map<String, ImagePyramid> images,
+                                                        FeatureOptions options) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, options.getThreads()));
+        try {
+            Map<String, Future<ImageFeatures>> futures = new LinkedHashMap<>();
+            for (Map.Entry<String, ImagePyramid> e : images.entrySet()) {
+                futures.put(e.getKey(), pool.submit(() -> extract(e.getKey(), e.getValue(), options)));
+            }
+            Map<String, ImageFeatures> result = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<ImageFeatures>> e : futures.entrySet()) {
+                result.put(e.getKey(), e.getValue().get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Feature extraction cancelled");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Feature extraction failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Detects on the pyramid level selected by {@link FeatureOptions#getMaxImageSize()} and
+     * returns keypoints in full-resolution pixel coordinates.
+     */
+    public static ImageFeatures extract(String imageName, ImagePyramid pyramid, FeatureOptions options) {
+        int level = pyramid.levelFor(options.getMaxImageSize());
+        return extract(imageName, pyramid.level(level), level, options);
+    }
+
+    public static ImageFeatures extract(String imageName, BufferedImage image, FeatureOptions options) {
+        return extract(imageName, image, 0, options);
+    }
+
+    private static ImageFeatures extract(String imageName, BufferedImage image, int level, FeatureOptions options) {
+        Mat gray = toGray(image);
+        Feature2D detector = options.getDetector().create(options.getMaxFeatures());
+        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        Mat descriptors = new Mat();
+        detector.detectAndCompute(gray, new Mat(), keypoints, descriptors);
+
+        KeyPoint[] kps = keypoints.toArray();
+        if (kps.length > options.getMaxFeatures()) {
+            // не все детекторы ограничивают число точек сами — оставляем самые сильные
+            Arrays.sort(kps, (a, b) -> Float.compare(b.response, a.response));
+            kps = Arrays.copyOf(kps, options.getMaxFeatures());
+            keypoints = new MatOfKeyPoint(kps);
+            descriptors = new Mat();
+            detector.compute(gray, keypoints, descriptors);
+            kps = keypoints.toArray();
+        }
+        gray.release();
+
+        // координаты уровня пирамиды → пиксели оригинала
+        float[] xy = new float[kps.length * 2];
+        for (int i = 0; i < kps.length; i++) {
+            xy[2 * i] = (float) ImagePyramid.toFull(level, kps[i].pt.x);
+            xy[2 * i + 1] = (float) ImagePyramid.toFull(level, kps[i].pt.y);
+        }
+        return new ImageFeatures(imageName, xy, descriptors);
+    }
+
+    /** 8-bit luminance of the image, as OpenCV detectors expect. */
+    static Mat toGray(BufferedImage image) {
+        int w = image.getWidth(), h = image.getHeight();
+        byte[] data = new byte[w * h];
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                int rgb = row[x];
+                int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+                data[y * w + x] = (byte) ((r * 299 + g * 587 + b * 114) / 1000);
+            }
+        }
+        Mat gray = new Mat(h, w, CvType.CV_8UC1);
+        gray.put(0, 0, data);
+        return gray;
+    }
+}
@@ -0,0 +1,39 @@
+package model.features;
+
+import java.util.Arrays;
+
+/**
+ * Сопоставление дескрипторов двух изображений по их индексам: k-NN с тестом отношения Лоу
+ * и, по желанию, взаимная проверка.
+ */
+public final class FeatureMatcher {
+
+    private FeatureMatcher() {
+    }
+
+    /**
+     * Matches two images through their prebuilt indexes: nearest neighbours of {@code a} in
+     * {@code b} filtered by the ratio test and, with cross-check, kept only when {@code a}'s
+     * keypoint is also the best match of its partner in the other direction.
+     */
+    public static PairMatches match(DescriptorIndex indexA, DescriptorIndex indexB, FeatureOptions options) {
+        ImageFeatures a = indexA.getFeatures(), b = indexB.getFeatures();
+        if (a.size() < 2 || b.size() < 2) {
+            return new PairMatches(a.getImageName(), b.getImageName(), new int[0]);
+        }
+        int[] forward = indexB.bestMatches(a, options.getRatio());
+        int[] backward = options.isCrossCheck() ? indexA.bestMatches(b, options.getRatio()) : null;
+
+        int[] indices = new int[2 * a.size()];
+        int n = 0;
+        for (int i = 0; i < forward.length; i++) {
+            int j = forward[i];
+            if (j < 0 || (backward != null && backward[j] != i)) {
+                continue;
+            }
+            indices[n++] = i;
+            indices[n++] = j;
+        }
+        return new PairMatches(a.getImageName(), b.getImageName(), Arrays.copyOf(indices, n));
+    }
+}
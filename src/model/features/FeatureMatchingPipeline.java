@@ -0,0 +1,236 @@
+package model.features;
+
+import model.ImagePyramid;
+import model.Point2D;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Автоматический фронтенд SfM: признаки → попарные сопоставления → RANSAC → именованные треки
+ * в том же виде {@code image -> (pointName -> Point2D)}, что и ручная разметка.
+ */
+public final class FeatureMatchingPipeline {
+
+    /**
+     * Prefix of generated point names ({@code auto_<image>#<keypoint>}); manual names are
+     * free-form, so collisions are resolved on merge.
+     */
+    public static final String AUTO_PREFIX = "auto_";
+
+    private FeatureMatchingPipeline() {
+    }
+
+    /**
+     * Detects features in every image, picks candidate pairs by retrieval (large projects),
+     * matches and geometrically verifies them in parallel and chains the verified matches
+     * into tracks.
+     *
+     * @param images     pyramid of each image; detection runs at {@link FeatureOptions#getMaxImageSize()}
+     * @param intrinsics K per image for essential-matrix verification, or {@code null}
+     *                   to verify with fundamental matrices
+     */
+    public static FeatureTracks buildTracks(Map<String, ImagePyramid> images,
+                                            Function<String, Mat> intrinsics,
+                                            FeatureOptions options) {
+        return matchTracks(FeatureExtractor.extractAll(images, options), intrinsics, options);
+    }
+
+    /**
+     * {@link #buildTracks} on features that are already extracted, e.g. read from the
+     * {@link FeatureCache}.
+     */
+    public static FeatureTracks matchTracks(Map<String, ImageFeatures> features,
+                                            Function<String, Mat> intrinsics,
+                                            FeatureOptions options) {
+        long start = System.currentTimeMillis();
+        Map<String, double[]> cameras = new HashMap<>();
+        if (intrinsics != null) {
+            for (String image : features.keySet()) {
+                cameras.put(image, GeometricVerifier.intrinsics(intrinsics.apply(image)));
+            }
+        }
+
+        Set<String> candidates = null;
+        int topN = options.getRetrievalTopN();
+        if (topN > 0 && features.size() > topN + 1) {
+            candidates = ImageRetrieval.build(features.values(), options).candidatePairs(topN);
+            System.out.println("Retrieval: " + candidates.size() + " candidate pairs of "
+                    + features.size() * (features.size() - 1) / 2);
+        }
+
+        TrackBuilder builder = new TrackBuilder(features.values());
+        Map<String, Double> ratios = matchAndVerify(new ArrayList<>(features.values()), candidates,
+                cameras, builder, options);
+        Map<String, Map<String, Point2D>> tracks = selectTracks(features, builder, options.getMaxTracks());
+        System.out.println("Feature matching: " + ratios.size() + " pairs, " + builder.getMatchCount()
+                + " verified matches, " + countTracks(tracks) + " tracks in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return new FeatureTracks(tracks, ratios, features);
+    }
+
+    /**
+     * Matches and verifies the candidate image pairs ({@code null}: all pairs) on a
+     * work-stealing pool of {@link FeatureOptions#getThreads()} workers. Each pair's inliers
+     * go into the track builder as soon as it is verified, so no pair's raw matches outlive
+     * its task.
+     * Returns the inlier ratio per {@link FeatureTracks#pairKey pair}.
+     */
+    static Map<String, Double> matchAndVerify(List<ImageFeatures> features, Set<String> candidates,
+                                              Map<String, double[]> cameras,
+                                              TrackBuilder builder, FeatureOptions options) {
+        Map<String, Double> ratios = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, options.getThreads()));
+        Path flannParams = DescriptorIndex.writeFlannParams(options);
+        try {
+            // 1) Индекс каждого изображения строится один раз и используется всеми его парами
+            long start = System.currentTimeMillis();
+            List<ForkJoinTask<DescriptorIndex>> builds = new ArrayList<>();
+            for (ImageFeatures f : features) {
+                builds.add(pool.submit(() -> DescriptorIndex.build(f, options, flannParams)));
+            }
+            List<DescriptorIndex> indexes = new ArrayList<>();
+            for (ForkJoinTask<DescriptorIndex> build : builds) {
+                indexes.add(build.get());
+            }
+            // какой сопоставитель работал — чтобы сравнить прогоны с approximateMatching и без
+            System.out.println((options.isApproximateMatching() ? "Approximate" : "Brute-force")
+                    + " matcher: " + indexes.size() + " indexes in " + (System.currentTimeMillis() - start) + " ms");
+
+            // 2) Сопоставление и проверка пар
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < features.size(); i++) {
+                for (int j = i + 1; j < features.size(); j++) {
+                    DescriptorIndex ia = indexes.get(i), ib = indexes.get(j);
+                    ImageFeatures a = ia.getFeatures(), b = ib.getFeatures();
+                    if (candidates != null
+                            && !candidates.contains(FeatureTracks.pairKey(a.getImageName(), b.getImageName()))) {
+                        continue;
+                    }
+                    tasks.add(pool.submit(() -> {
+                        PairMatches raw = FeatureMatcher.match(ia, ib, options);
+                        VerifiedPair verified = GeometricVerifier.verify(raw, a, b,
+                                cameras.get(a.getImageName()), cameras.get(b.getImageName()), options);
+                        if (verified.getInliers().size() > 0) {
+                            builder.add(verified.getInliers());
+                        }
+                        ratios.put(FeatureTracks.pairKey(a.getImageName(), b.getImageName()),
+                                verified.getInlierRatio());
+                    }));
+                }
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.get();
+            }
+            return ratios;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Feature matching cancelled");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Feature matching failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (flannParams != null) {
+                try {
+                    Files.deleteIfExists(flannParams);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the tracks of the builder and keeps the {@code maxTracks} longest ones
+     * (ties broken by name, so the selection is stable).
+     */
+    static Map<String, Map<String, Point2D>> selectTracks(Map<String, ImageFeatures> features,
+                                                          TrackBuilder builder, int maxTracks) {
+        List<Track> tracks = builder.build();
+        if (builder.getRejectedCount() > 0) {
+            System.out.println("Rejected " + builder.getRejectedCount() + " inconsistent tracks");
+        }
+
+        // самые длинные треки дают больше всего ограничений для BA
+        tracks.sort(Comparator.comparingInt(Track::length).reversed().thenComparing(Track::getName));
+
+        Map<String, Map<String, Point2D>> byImage = new HashMap<>();
+        for (String image : features.keySet()) {
+            byImage.put(image, new HashMap<>());
+        }
+        for (Track track : tracks.subList(0, Math.min(maxTracks, tracks.size()))) {
+            for (int i = 0; i < track.length(); i++) {
+                ImageFeatures f = features.get(track.getImages()[i]);
+                int kp = track.getKeypoints()[i];
+                byImage.get(track.getImages()[i]).put(track.getName(),
+                        new Point2D(track.getName(), f.x(kp), f.y(kp)));
+            }
+        }
+        return byImage;
+    }
+
+    /**
+     * Merges automatic tracks into the manual points. Manual points always win: an automatic
+     * observation closer than {@code radius} pixels to a manual point of the same image is
+     * dropped, and automatic tracks left with fewer than two observations are discarded.
+     */
+    public static Map<String, Map<String, Point2D>> mergeWithManual(Map<String, Map<String, Point2D>> manual,
+                                                                    Map<String, Map<String, Point2D>> auto,
+                                                                    double radius) {
+        Map<String, Map<String, Point2D>> result = new HashMap<>();
+        Set<String> manualNames = new HashSet<>();
+        for (Map.Entry<String, Map<String, Point2D>> e : manual.entrySet()) {
+            result.put(e.getKey(), new HashMap<>(e.getValue()));
+            manualNames.addAll(e.getValue().keySet());
+        }
+
+        // 1) Отбрасываем автоматические наблюдения рядом с ручными точками
+        double r2 = radius * radius;
+        Map<String, Map<String, Point2D>> kept = new HashMap<>();
+        for (Map.Entry<String, Map<String, Point2D>> e : auto.entrySet()) {
+            Collection<Point2D> manualPoints = manual.getOrDefault(e.getKey(), Collections.emptyMap()).values();
+            for (Point2D p : e.getValue().values()) {
+                boolean covered = false;
+                for (Point2D q : manualPoints) {
+                    double dx = p.getX() - q.getX(), dy = p.getY() - q.getY();
+                    if (dx * dx + dy * dy < r2) {
+                        covered = true;
+                        break;
+                    }
+                }
+                if (!covered) {
+                    kept.computeIfAbsent(p.getName(), k -> new HashMap<>()).put(e.getKey(), p);
+                }
+            }
+        }
+
+        // 2) Добавляем треки, которые по-прежнему видны хотя бы на двух изображениях
+        for (Map.Entry<String, Map<String, Point2D>> track : kept.entrySet()) {
+            if (track.getValue().size() < 2) {
+                continue;
+            }
+            String name = track.getKey();
+            while (manualNames.contains(name)) {
+                name = AUTO_PREFIX + name;
+            }
+            for (Map.Entry<String, Point2D> obs : track.getValue().entrySet()) {
+                Point2D p = obs.getValue();
+                result.computeIfAbsent(obs.getKey(), k -> new HashMap<>())
+                        .put(name, new Point2D(name, p.getX(), p.getY()));
+            }
+        }
+        return result;
+    }
+
+    private static int countTracks(Map<String, Map<String, Point2D>> byImage) {
+        Set<String> names = new HashSet<>();
+        for (Map<String, Point2D> points : byImage.values()) {
+            names.addAll(points.keySet());
+        }
+        return names.size();
+    }
+}
@@ -0,0 +1,61 @@
+package model.features;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+
+/**
+ * Настройки автоматического поиска и сопоставления признаков.
+ */
+@Data
+public class FeatureOptions {
+    private FeatureDetectorType detector = FeatureDetectorType.SIFT;
+    /** Upper bound on keypoints per image; the strongest responses are kept. */
+    private int maxFeatures = 4000;
+    /**
+     * Features are detected on the finest pyramid level whose longer side fits this many
+     * pixels (0: full resolution); keypoints are reported in full-resolution pixels.
+     */
+    private int maxImageSize = 3200;
+    /** Lowe ratio: best match must be closer than this fraction of the second best. */
+    private double ratio = 0.8;
+    /** Keep only matches that are also mutual best matches in the other direction. */
+    private boolean crossCheck = true;
+    /** Match through FLANN indexes instead of brute force. */
+    private boolean approximateMatching = true;
+    /** Leaves visited per ANN query: higher gives better recall, lower is faster. */
+    private int annChecks = 64;
+    /** Float descriptors: randomized KD-trees in the forest. */
+    private int kdTrees = 4;
+    /** Binary descriptors: LSH hash tables, key bits and multi-probe level. */
+    private int lshTables = 12;
+    private int lshKeySize = 20;
+    private int lshProbeLevel = 2;
+    /**
+     * Match each image only with its N most similar images by vocabulary-tree retrieval;
+     * 0, or a project with at most N + 1 images, matches all pairs.
+     */
+    private int retrievalTopN = 20;
+    /** Vocabulary tree: children per node, levels, and descriptors sampled for training. */
+    private int vocabBranching = 8;
+    private int vocabDepth = 4;
+    private int vocabSampleSize = 100000;
+    /** RANSAC threshold of the epipolar verification, in pixels. */
+    private double verifyThreshold = 2.0;
+    private double verifyConfidence = 0.999;
+    /** Pairs with fewer verified matches are treated as not overlapping. */
+    private int minInliers = 15;
+    /** After registration, look for more correspondences guided by the known camera poses. */
+    private boolean guidedMatching = true;
+    /** Guided matching: search radius around the reprojection of an existing point, in pixels. */
+    private double reprojectionRadius = 4.0;
+    /** Guided matching: maximum distance of a candidate from the epipolar line, in pixels. */
+    private double epipolarThreshold = 2.0;
+    /** Automatic observations closer than this to a manual point of the same image are dropped. */
+    private double manualRadius = 8.0;
+    /** Upper bound on automatic tracks passed to reconstruction; the longest tracks are kept. */
+    private int maxTracks = 1000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** Directory of the on-disk feature cache; {@code null} always extracts. */
+    private Path cacheDirectory;
+}
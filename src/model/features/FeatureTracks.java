@@ -0,0 +1,44 @@
+package model.features;
+
+import lombok.Getter;
+import model.Point2D;
+
+import java.util.Map;
+
+/**
+ * Результат автоматического фронтенда: треки по изображениям и доля инлаеров по парам.
+ */
+@Getter
+public class FeatureTracks {
+    /**
+     * Weight of a pair that was not verified: its automatic correspondences, if any, come
+     * from tracks through other images and are trusted as they are.
+     */
+    public static final double UNVERIFIED_WEIGHT = 1.0;
+
+    /** image -> (trackName -> observation). */
+    private final Map<String, Map<String, Point2D>> points;
+    /** {@link #pairKey} -> fraction of raw matches that passed geometric verification. */
+    private final Map<String, Double> inlierRatios;
+    /** Keypoints and descriptors per image, for matching passes after pose estimation. */
+    private final Map<String, ImageFeatures> features;
+
+    public FeatureTracks(Map<String, Map<String, Point2D>> points, Map<String, Double> inlierRatios,
+                         Map<String, ImageFeatures> features) {
+        this.points = points;
+        this.inlierRatios = inlierRatios;
+        this.features = features;
+    }
+
+    /**
+     * Inlier ratio of a verified pair (0 if verification found nothing), or
+     * {@link #UNVERIFIED_WEIGHT} when the pair was not matched automatically.
+     */
+    public double inlierRatio(String imageA, String imageB) {
+        return inlierRatios.getOrDefault(pairKey(imageA, imageB), UNVERIFIED_WEIGHT);
+    }
+
+    static String pairKey(String imageA, String imageB) {
+        return imageA.compareTo(imageB) < 0 ? imageA + '|' + imageB : imageB + '|' + imageA;
+    }
+}
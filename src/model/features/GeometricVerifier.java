@@ -0,0 +1,88 @@
+package model.features;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+
+import java.util.Arrays;
+
+/**
+ * RANSAC-проверка сопоставлений пары изображений по эпиполярной геометрии.
+ */
+public final class GeometricVerifier {
+
+    private GeometricVerifier() {
+    }
+
+    /**
+     * Keeps the matches consistent with one epipolar geometry. With both intrinsics known the
+     * points are normalised and an essential matrix is fitted (5 parameters, fewer degenerate
+     * cases); otherwise a fundamental matrix. Pairs with fewer than
+     * {@link FeatureOptions#getMinInliers()} inliers come back empty.
+     *
+     * @param kA intrinsics of {@code a}, or {@code null}
+     * @param kB intrinsics of {@code b}, or {@code null}
+     */
+    public static VerifiedPair verify(PairMatches raw, ImageFeatures a, ImageFeatures b,
+                                      double[] kA, double[] kB, FeatureOptions options) {
+        int n = raw.size();
+        if (n < Math.max(8, options.getMinInliers())) {
+            return new VerifiedPair(empty(raw), n);
+        }
+
+        Point[] pa = new Point[n], pb = new Point[n];
+        boolean essential = kA != null && kB != null;
+        for (int m = 0; m < n; m++) {
+            pa[m] = point(a, raw.keypointA(m), essential ? kA : null);
+            pb[m] = point(b, raw.keypointB(m), essential ? kB : null);
+        }
+        MatOfPoint2f ma = new MatOfPoint2f(pa), mb = new MatOfPoint2f(pb);
+        Mat mask = new Mat();
+        Mat model;
+        if (essential) {
+            // порог в пикселях переводим в нормализованные координаты
+            double f = 0.5 * (kA[0] + kB[0]);
+            model = Calib3d.findEssentialMat(ma, mb, Mat.eye(3, 3, CvType.CV_64F), Calib3d.RANSAC,
+                    options.getVerifyConfidence(), options.getVerifyThreshold() / f, 1000, mask);
+        } else {
+            model = Calib3d.findFundamentalMat(ma, mb, Calib3d.FM_RANSAC,
+                    options.getVerifyThreshold(), options.getVerifyConfidence(), mask);
+        }
+
+        int[] inliers = new int[2 * n];
+        int k = 0;
+        if (!model.empty() && mask.rows() == n) {
+            for (int m = 0; m < n; m++) {
+                if (mask.get(m, 0)[0] != 0) {
+                    inliers[k++] = raw.keypointA(m);
+                    inliers[k++] = raw.keypointB(m);
+                }
+            }
+        }
+        ma.release();
+        mb.release();
+        mask.release();
+        model.release();
+
+        if (k / 2 < options.getMinInliers()) {
+            return new VerifiedPair(empty(raw), n);
+        }
+        return new VerifiedPair(new PairMatches(raw.getImageA(), raw.getImageB(), Arrays.copyOf(inliers, k)), n);
+    }
+
+    /** Packs K as {fx, fy, cx, cy}. */
+    public static double[] intrinsics(Mat K) {
+        return new double[]{K.get(0, 0)[0], K.get(1, 1)[0], K.get(0, 2)[0], K.get(1, 2)[0]};
+    }
+
+    private static Point point(ImageFeatures f, int keypoint, double[] k) {
+        double x = f.x(keypoint), y = f.y(keypoint);
+        if (k == null) {
+            return new Point(x, y);
+        }
+        return new Point((x - k[2]) / k[0], (y - k[3]) / k[1]);
+    }
+
+    private static PairMatches empty(PairMatches raw) {
+        return new PairMatches(raw.getImageA(), raw.getImageB(), new int[0]);
+    }
+}
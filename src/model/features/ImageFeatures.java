@@ -0,0 +1,56 @@
+package model.features;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Keypoints and descriptors of one image. Keypoint {@code k} is at
+ * {@code (xy[2k], xy[2k + 1])} in full-resolution pixels; its descriptor is row {@code k}.
+ */
+@Getter
+public class ImageFeatures {
+    private final String imageName;
+    private final float[] xy;
+    private final Mat descriptors;
+    /**
+     * Direct buffer the descriptor Mat wraps when it comes from the cache; kept here so the
+     * buffer is not freed while the Mat still points into it.
+     */
+    @Getter(AccessLevel.NONE)
+    private final ByteBuffer storage;
+
+    public ImageFeatures(String imageName, float[] xy, Mat descriptors) {
+        this(imageName, xy, descriptors, null);
+    }
+
+    ImageFeatures(String imageName, float[] xy, Mat descriptors, ByteBuffer storage) {
+        this.imageName = imageName;
+        this.xy = xy;
+        this.descriptors = descriptors;
+        this.storage = storage;
+    }
+
+    public int size() {
+        return xy.length / 2;
+    }
+
+    public float x(int keypoint) {
+        return xy[2 * keypoint];
+    }
+
+    public float y(int keypoint) {
+        return xy[2 * keypoint + 1];
+    }
+
+    /**
+     * Descriptors as float vectors for distance computations in Java; binary descriptors
+     * are unpacked to bits, so squared L2 between them is the Hamming distance.
+     */
+    public List<float[]> descriptorVectors() {
+        return VocabularyTree.vectors(descriptors);
+    }
+}
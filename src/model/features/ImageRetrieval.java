@@ -0,0 +1,122 @@
+package model.features;
+
+import java.util.*;
+
+/**
+ * Bag-of-visual-words retrieval over the images of a project: TF-IDF weighted word
+ * histograms, L2-normalised and scored by cosine similarity through an inverted file,
+ * so a query only touches images that share at least one word with it.
+ */
+public class ImageRetrieval {
+
+    private final List<String> images = new ArrayList<>();
+    /** word -> images containing it. */
+    private final Map<Integer, List<Integer>> postingImages = new HashMap<>();
+    /** word -> weight of the word in each image of {@link #postingImages}. */
+    private final Map<Integer, List<Double>> postingWeights = new HashMap<>();
+    private final List<Map<Integer, Double>> vectors = new ArrayList<>();
+
+    private ImageRetrieval() {
+    }
+
+    /** Trains a vocabulary on the given features and indexes all of their images. */
+    public static ImageRetrieval build(Collection<ImageFeatures> features, FeatureOptions options) {
+        VocabularyTree tree = VocabularyTree.train(features, options.getVocabBranching(),
+                options.getVocabDepth(), options.getVocabSampleSize(), 42);
+
+        // 1) Гистограммы слов по изображениям
+        ImageRetrieval retrieval = new ImageRetrieval();
+        List<Map<Integer, Integer>> histograms = new ArrayList<>();
+        int[] documentFrequency = new int[tree.getWordCount()];
+        for (ImageFeatures f : features) {
+            Map<Integer, Integer> histogram = new HashMap<>();
+            for (float[] v : VocabularyTree.vectors(f.getDescriptors())) {
+                histogram.merge(tree.quantize(v), 1, Integer::sum);
+            }
+            for (int word : histogram.keySet()) {
+                documentFrequency[word]++;
+            }
+            retrieval.images.add(f.getImageName());
+            histograms.add(histogram);
+        }
+
+        // 2) TF-IDF, нормировка и инвертированный индекс
+        int n = histograms.size();
+        for (int i = 0; i < n; i++) {
+            Map<Integer, Double> vector = new HashMap<>();
+            double norm = 0;
+            for (Map.Entry<Integer, Integer> e : histograms.get(i).entrySet()) {
+                double w = e.getValue() * Math.log((double) n / documentFrequency[e.getKey()]);
+                if (w > 0) {
+                    vector.put(e.getKey(), w);
+                    norm += w * w;
+                }
+            }
+            double scale = norm > 0 ? 1 / Math.sqrt(norm) : 0;
+            vector.replaceAll((word, w) -> w * scale);
+            for (Map.Entry<Integer, Double> e : vector.entrySet()) {
+                retrieval.postingImages.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(i);
+                retrieval.postingWeights.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(e.getValue());
+            }
+            retrieval.vectors.add(vector);
+        }
+        return retrieval;
+    }
+
+    /** The {@code n} images most similar to {@code image}, best first. */
+    public List<String> query(String image, int n) {
+        int q = images.indexOf(image);
+        if (q < 0) {
+            throw new RuntimeException("Image " + image + " is not indexed");
+        }
+        double[] scores = new double[images.size()];
+        for (Map.Entry<Integer, Double> e : vectors.get(q).entrySet()) {
+            List<Integer> ids = postingImages.get(e.getKey());
+            List<Double> weights = postingWeights.get(e.getKey());
+            for (int k = 0; k < ids.size(); k++) {
+                scores[ids.get(k)] += e.getValue() * weights.get(k);
+            }
+        }
+        scores[q] = 0;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > 0) {
+                order.add(i);
+            }
+        }
+        order.sort((a, b) -> Double.compare(scores[b], scores[a]));
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(n, order.size()); i++) {
+            result.add(images.get(order.get(i)));
+        }
+        return result;
+    }
+
+    /** Unordered candidate pairs: every image with its {@code n} nearest neighbours. */
+    public List<String[]> neighbourPairs(int n) {
+        return neighbourPairs(images, n);
+    }
+
+    /** Unordered candidate pairs of the given indexed images with their {@code n} nearest neighbours. */
+    public List<String[]> neighbourPairs(Collection<String> queries, int n) {
+        Set<String> seen = new HashSet<>();
+        List<String[]> pairs = new ArrayList<>();
+        for (String image : queries) {
+            for (String other : query(image, n)) {
+                if (seen.add(FeatureTracks.pairKey(image, other))) {
+                    pairs.add(new String[]{image, other});
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /** {@link #neighbourPairs} as {@link FeatureTracks#pairKey} keys. */
+    public Set<String> candidatePairs(int n) {
+        Set<String> keys = new HashSet<>();
+        for (String[] pair : neighbourPairs(n)) {
+            keys.add(FeatureTracks.pairKey(pair[0], pair[1]));
+        }
+        return keys;
+    }
+}
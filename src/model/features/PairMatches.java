@@ -0,0 +1,32 @@
+package model.features;
+
+import lombok.Getter;
+
+/**
+ * Keypoint correspondences between two images: match {@code m} links keypoint
+ * {@code indices[2m]} of {@link #imageA} with keypoint {@code indices[2m + 1]} of {@link #imageB}.
+ */
+@Getter
+public class PairMatches {
+    private final String imageA;
+    private final String imageB;
+    private final int[] indices;
+
+    public PairMatches(String imageA, String imageB, int[] indices) {
+        this.imageA = imageA;
+        this.imageB = imageB;
+        this.indices = indices;
+    }
+
+    public int size() {
+        return indices.length / 2;
+    }
+
+    public int keypointA(int match) {
+        return indices[2 * match];
+    }
+
+    public int keypointB(int match) {
+        return indices[2 * match + 1];
+    }
+}
@@ -0,0 +1,24 @@
+package model.features;
+
+import lombok.Getter;
+
+/**
+ * One multi-view track: observation {@code i} is keypoint {@code keypoints[i]}
+ * of image {@code images[i]}; every image appears at most once.
+ */
+@Getter
+public class Track {
+    private final String name;
+    private final String[] images;
+    private final int[] keypoints;
+
+    Track(String name, String[] images, int[] keypoints) {
+        this.name = name;
+        this.images = images;
+        this.keypoints = keypoints;
+    }
+
+    public int length() {
+        return images.length;
+    }
+}
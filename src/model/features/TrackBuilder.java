@@ -0,0 +1,163 @@
+package model.features;
+
+import java.util.*;
+
+/**
+ * Builds multi-view tracks from pairwise matches with a disjoint-set forest over
+ * (image, keypoint) pairs. Every keypoint of every image gets a global id
+ * {@code offset[image] + keypoint}; the forest is kept in primitive arrays, so millions
+ * of matches cost a few bytes per keypoint. Matches may be added from several threads.
+ */
+public class TrackBuilder {
+
+    private final String[] images;
+    private final Map<String, Integer> imageIndex = new HashMap<>();
+    /** offsets[i] is the global id of keypoint 0 of image i; offsets[n] is the total. */
+    private final int[] offsets;
+    private final int[] parent;
+    private final byte[] rank;
+    private long matches;
+    private int rejected;
+
+    public TrackBuilder(Collection<ImageFeatures> features) {
+        images = new String[features.size()];
+        offsets = new int[features.size() + 1];
+        int i = 0;
+        for (ImageFeatures f : features) {
+            images[i] = f.getImageName();
+            imageIndex.put(f.getImageName(), i);
+            offsets[i + 1] = offsets[i] + f.size();
+            i++;
+        }
+        parent = new int[offsets[images.length]];
+        rank = new byte[parent.length];
+        for (int id = 0; id < parent.length; id++) {
+            parent[id] = id;
+        }
+    }
+
+    public synchronized void add(PairMatches pair) {
+        int a = imageIndex(pair.getImageA());
+        int b = imageIndex(pair.getImageB());
+        for (int m = 0; m < pair.size(); m++) {
+            union(offsets[a] + pair.keypointA(m), offsets[b] + pair.keypointB(m));
+        }
+        matches += pair.size();
+    }
+
+    public synchronized long getMatchCount() {
+        return matches;
+    }
+
+    /** Number of components dropped by the last {@link #build()} because they saw an image twice. */
+    public synchronized int getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Collects the components of the forest into tracks. Components with two keypoints in
+     * the same image are inconsistent (a chain of matches that closes on a different
+     * keypoint) and are rejected as a whole. Each track is named after its smallest member,
+     * so the same matches always give the same names.
+     */
+    public synchronized List<Track> build() {
+        int n = parent.length;
+
+        // 1) Считаем размеры компонент (сортировка подсчётом по корню)
+        int[] root = new int[n];
+        int[] count = new int[n + 1];
+        for (int id = 0; id < n; id++) {
+            root[id] = find(id);
+            count[root[id] + 1]++;
+        }
+        for (int r = 0; r < n; r++) {
+            count[r + 1] += count[r];
+        }
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(count, n);
+        for (int id = 0; id < n; id++) {
+            members[fill[root[id]]++] = id;
+        }
+
+        // 2) Компоненты из двух и более точек становятся треками
+        List<Track> tracks = new ArrayList<>();
+        rejected = 0;
+        for (int r = 0; r < n; r++) {
+            int from = count[r], to = count[r + 1];
+            if (to - from < 2) {
+                continue;
+            }
+            String[] trackImages = new String[to - from];
+            int[] keypoints = new int[to - from];
+            int previousImage = -1;
+            boolean consistent = true;
+            for (int k = from; k < to; k++) {
+                // members идут по возрастанию id, значит и по номеру изображения
+                int image = imageOf(members[k]);
+                if (image == previousImage) {
+                    consistent = false;
+                    break;
+                }
+                previousImage = image;
+                trackImages[k - from] = images[image];
+                keypoints[k - from] = members[k] - offsets[image];
+            }
+            if (!consistent) {
+                rejected++;
+                continue;
+            }
+            String name = FeatureMatchingPipeline.AUTO_PREFIX + trackImages[0] + '#' + keypoints[0];
+            tracks.add(new Track(name, trackImages, keypoints));
+        }
+        return tracks;
+    }
+
+    private int imageIndex(String imageName) {
+        Integer index = imageIndex.get(imageName);
+        if (index == null) {
+            throw new RuntimeException("No features for image " + imageName);
+        }
+        return index;
+    }
+
+    private int imageOf(int id) {
+        int i = Arrays.binarySearch(offsets, id);
+        if (i >= 0) {
+            // пустые изображения дают одинаковые смещения — берём последнее
+            while (i + 1 < offsets.length && offsets[i + 1] == id) {
+                i++;
+            }
+            return i;
+        }
+        return -i - 2;
+    }
+
+    private int find(int id) {
+        int r = id;
+        while (parent[r] != r) {
+            r = parent[r];
+        }
+        // сжатие пути
+        while (parent[id] != r) {
+            int next = parent[id];
+            parent[id] = r;
+            id = next;
+        }
+        return r;
+    }
+
+    private void union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra == rb) {
+            return;
+        }
+        if (rank[ra] < rank[rb]) {
+            parent[ra] = rb;
+        } else if (rank[ra] > rank[rb]) {
+            parent[rb] = ra;
+        } else {
+            parent[rb] = ra;
+            rank[ra]++;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package model.features;
+
+import lombok.Getter;
+
+/**
+ * Geometrically verified matches of one image pair together with the number of
+ * raw matches they were selected from.
+ */
+@Getter
+public class VerifiedPair {
+    private final PairMatches inliers;
+    private final int rawMatches;
+
+    public VerifiedPair(PairMatches inliers, int rawMatches) {
+        this.inliers = inliers;
+        this.rawMatches = rawMatches;
+    }
+
+    /** Fraction of raw matches that survived verification; 0 for pairs without matches. */
+    public double getInlierRatio() {
+        return rawMatches == 0 ? 0 : (double) inliers.size() / rawMatches;
+    }
+}
@@ -0,0 +1,243 @@
+package model.features;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.*;
+
+/**
+ * Словарь визуальных слов: иерархический k-means по дескрипторам проекта
+ * (Nistér &amp; Stewénius). Листья дерева — слова; квантование спускается от корня
+ * к ближайшему ребёнку, поэтому стоит {@code branching * depth} сравнений.
+ */
+public class VocabularyTree {
+
+    private static final int KMEANS_ITERATIONS = 10;
+
+    private static final class Node {
+        float[] center;
+        Node[] children;
+        int word = -1;
+    }
+
+    private final Node root = new Node();
+    private int words;
+
+    private VocabularyTree() {
+    }
+
+    /**
+     * Trains a tree on a random sample of at most {@code sampleSize} descriptors of the
+     * given images.
+     */
+    public static VocabularyTree train(Collection<ImageFeatures> features, int branching, int depth,
+                                       int sampleSize, long seed) {
+        Random random = new Random(seed);
+        // сначала выбираем номера строк, в float переводим только выборку
+        int total = 0;
+        for (ImageFeatures f : features) {
+            total += f.getDescriptors().rows();
+        }
+        int[] picked = sample(total, Math.min(sampleSize, total), random);
+        List<float[]> sample = new ArrayList<>(picked.length);
+        int offset = 0, next = 0;
+        for (ImageFeatures f : features) {
+            Mat descriptors = f.getDescriptors();
+            int end = offset + descriptors.rows(), first = next;
+            while (next < picked.length && picked[next] < end) {
+                picked[next++] -= offset;
+            }
+            if (next > first) {
+                sample.addAll(vectors(descriptors, Arrays.copyOfRange(picked, first, next)));
+            }
+            offset = end;
+        }
+
+        VocabularyTree tree = new VocabularyTree();
+        tree.split(tree.root, sample, branching, depth, random);
+        return tree;
+    }
+
+    public int getWordCount() {
+        return words;
+    }
+
+    /** Visual word of one descriptor vector. */
+    public int quantize(float[] v) {
+        Node node = root;
+        while (node.children != null) {
+            Node best = null;
+            double bestDist = Double.MAX_VALUE;
+            for (Node child : node.children) {
+                double d = distance2(v, child.center);
+                if (d < bestDist) {
+                    bestDist = d;
+                    best = child;
+                }
+            }
+            node = best;
+        }
+        return node.word;
+    }
+
+    /**
+     * Descriptor rows as float vectors. Binary descriptors are unpacked to one 0/1 value per
+     * bit, so squared L2 distance between them equals the Hamming distance.
+     */
+    static List<float[]> vectors(Mat descriptors) {
+        int[] all = new int[descriptors.rows()];
+        for (int r = 0; r < all.length; r++) {
+            all[r] = r;
+        }
+        return vectors(descriptors, all);
+    }
+
+    /** The given descriptor rows as float vectors, see {@link #vectors(Mat)}. */
+    private static List<float[]> vectors(Mat descriptors, int[] rowIndices) {
+        int rows = descriptors.rows(), cols = descriptors.cols();
+        List<float[]> result = new ArrayList<>(rowIndices.length);
+        if (rows == 0) {
+            return result;
+        }
+        if (descriptors.depth() == CvType.CV_32F) {
+            float[] data = new float[rows * cols];
+            descriptors.get(0, 0, data);
+            for (int r : rowIndices) {
+                result.add(Arrays.copyOfRange(data, r * cols, (r + 1) * cols));
+            }
+        } else {
+            byte[] data = new byte[rows * cols];
+            descriptors.get(0, 0, data);
+            for (int r : rowIndices) {
+                float[] v = new float[cols * 8];
+                for (int c = 0; c < cols; c++) {
+                    int b = data[r * cols + c];
+                    for (int bit = 0; bit < 8; bit++) {
+                        v[c * 8 + bit] = (b >> bit) & 1;
+                    }
+                }
+                result.add(v);
+            }
+        }
+        return result;
+    }
+
+    /** {@code count} distinct indices below {@code total}, ascending (Floyd's algorithm). */
+    private static int[] sample(int total, int count, Random random) {
+        Set<Integer> chosen = new HashSet<>();
+        for (int j = total - count; j < total; j++) {
+            int t = random.nextInt(j + 1);
+            chosen.add(chosen.contains(t) ? j : t);
+        }
+        int[] result = new int[chosen.size()];
+        int i = 0;
+        for (int index : chosen) {
+            result[i++] = index;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void split(Node node, List<float[]> points, int branching, int depth, Random random) {
+        if (depth == 0 || points.size() < 2 * branching) {
+            node.word = words++;
+            return;
+        }
+        float[][] centers = kmeans(points, branching, random);
+        List<List<float[]>> groups = new ArrayList<>();
+        for (int k = 0; k < branching; k++) {
+            groups.add(new ArrayList<>());
+        }
+        for (float[] p : points) {
+            groups.get(nearest(p, centers)).add(p);
+        }
+        node.children = new Node[branching];
+        for (int k = 0; k < branching; k++) {
+            Node child = new Node();
+            child.center = centers[k];
+            node.children[k] = child;
+            split(child, groups.get(k), branching, depth - 1, random);
+        }
+    }
+
+    /** Lloyd iterations from a k-means++ seeding. */
+    private static float[][] kmeans(List<float[]> points, int k, Random random) {
+        int dim = points.get(0).length;
+        float[][] centers = new float[k][];
+        centers[0] = points.get(random.nextInt(points.size())).clone();
+        double[] d2 = new double[points.size()];
+        Arrays.fill(d2, Double.MAX_VALUE);
+        for (int c = 1; c < k; c++) {
+            double sum = 0;
+            for (int i = 0; i < points.size(); i++) {
+                d2[i] = Math.min(d2[i], distance2(points.get(i), centers[c - 1]));
+                sum += d2[i];
+            }
+            double r = random.nextDouble() * sum;
+            int chosen = points.size() - 1;
+            for (int i = 0; i < points.size(); i++) {
+                r -= d2[i];
+                if (r <= 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+            centers[c] = points.get(chosen).clone();
+        }
+
+        int[] assignment = new int[points.size()];
+        for (int iter = 0; iter < KMEANS_ITERATIONS; iter++) {
+            boolean changed = false;
+            for (int i = 0; i < points.size(); i++) {
+                int a = nearest(points.get(i), centers);
+                changed |= a != assignment[i];
+                assignment[i] = a;
+            }
+            if (!changed && iter > 0) {
+                break;
+            }
+            double[][] sums = new double[k][dim];
+            int[] counts = new int[k];
+            for (int i = 0; i < points.size(); i++) {
+                float[] p = points.get(i);
+                double[] s = sums[assignment[i]];
+                for (int d = 0; d < dim; d++) {
+                    s[d] += p[d];
+                }
+                counts[assignment[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                // пустой кластер оставляем на прежнем центре
+                if (counts[c] == 0) {
+                    continue;
+                }
+                for (int d = 0; d < dim; d++) {
+                    centers[c][d] = (float) (sums[c][d] / counts[c]);
+                }
+            }
+        }
+        return centers;
+    }
+
+    private static int nearest(float[] p, float[][] centers) {
+        int best = 0;
+        double bestDist = Double.MAX_VALUE;
+        for (int c = 0; c < centers.length; c++) {
+            double d = distance2(p, centers[c]);
+            if (d < bestDist) {
+                bestDist = d;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static double distance2(float[] a, float[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            s += d * d;
+        }
+        return s;
+    }
+}
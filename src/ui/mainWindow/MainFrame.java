@@ -1,10 +1,20 @@
 package ui.mainWindow;
 
+import model.ChangeSet;
 import model.ImageProcessor;
 import model.OpenCVSFMConstructor;
+import model.Point2D;
 import model.Point3D;
+import model.Reconstruction;
+import model.ReconstructionListener;
+import model.ReconstructionOptions;
 import model.buttonsLogic.MouseClickLogic;
+import model.buttonsLogic.ProjectSaver;
+import model.buttonsLogic.ReconstructionWorker;
 import model.buttonsLogic.UiLogicHandler;
+import model.dense.DenseOptions;
+import model.features.FeatureCache;
+import model.features.FeatureOptions;
 import ui.uiComponents.*;
 
 import javax.imageio.ImageIO;
@@ -12,17 +22,53 @@ import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 public class MainFrame extends JFrame {
     private final ImageProcessor processor = new ImageProcessor();
     private PointCloud3DPanel cloudPanel;
     private SFMControlPanel controlPanel;
+    private ReconstructionWorker worker;
+    // состояние последней успешной реконструкции — для инкрементальных обновлений
+    private Reconstruction lastReconstruction;
     private String fileSavePath;
+    private Path sessionFeatureCache;
+
+    // сохранение идёт в фоне; автосохранение — не чаще раза в интервал
+    private static final long AUTOSAVE_INTERVAL_MS = 30_000;
+    private static final Duration EXIT_SAVE_TIMEOUT = Duration.ofSeconds(60);
+    private static final DateTimeFormatter SAVE_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private final JLabel saveStatus = new JLabel(" ");
+    private final JCheckBox autosave = new JCheckBox("Autosave");
+    private long lastSaveRequest;
+    private String lastSavedAt;
+    private boolean lastSaveFailed;
+    private final ProjectSaver saver = new ProjectSaver(
+            processor,
+            () -> {
+                lastSaveFailed = false;
+                saveStatus.setText("Saving…");
+            },
+            snapshot -> {
+                lastSavedAt = LocalTime.now().format(SAVE_TIME);
+                showSaveStatus();
+            },
+            this::saveFailed
+    );
 
     private final CardLayout cardLayout = new CardLayout();
     private final JPanel     mainPanel  = new JPanel(cardLayout);
@@ -48,6 +94,15 @@ public class MainFrame extends JFrame {
         pointsList.setCellRenderer(new MyListCellRenderer());
 
         buildUI();
+
+        new Timer(1000, e -> autosaveTick()).start();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                saveBeforeExit();
+                deleteSessionFeatureCache();
+            }
+        });
     }
 
     private void buildUI() {
@@ -85,6 +140,16 @@ public class MainFrame extends JFrame {
         solBtn.addActionListener(ev -> cardLayout.show(mainPanel, "solve"));
         tb.add(solBtn);
 
+        // Save status
+        tb.add(Box.createHorizontalGlue());
+        autosave.setToolTipText("Save the project in the background every "
+                + AUTOSAVE_INTERVAL_MS / 1000 + " s while it has unsaved changes");
+        autosave.setOpaque(false);
+        tb.add(autosave);
+        tb.addSeparator(new Dimension(10, 0));
+        tb.add(saveStatus);
+        tb.addSeparator(new Dimension(10, 0));
+
         return tb;
     }
 
@@ -104,10 +169,32 @@ public class MainFrame extends JFrame {
         // Top toolbar
         MyToolbar top = new MyToolbar();
         MyButton build = new MyButton("Build Solution");
+        MyButton cancel = new MyButton("Cancel");
         MyButton scale = new MyButton("Scale");
+        JComboBox<ReconstructionOptions.Mode> mode = new JComboBox<>(ReconstructionOptions.Mode.values());
+        mode.setMaximumSize(mode.getPreferredSize());
+        JCheckBox autoFeatures = new JCheckBox("Auto features");
+        autoFeatures.setToolTipText("Detect and match keypoints automatically in addition to the manual points");
+        JCheckBox dense = new JCheckBox("Dense");
+        dense.setToolTipText("Compute a dense point cloud with PatchMatch after the sparse reconstruction");
+        JProgressBar progress = new JProgressBar();
+        progress.setStringPainted(true);
+        progress.setString("");
+        progress.setVisible(false);
+        cancel.setEnabled(false);
         top.add(build);
         top.addSeparator(new Dimension(5, 0));
+        top.add(cancel);
+        top.addSeparator(new Dimension(5, 0));
         top.add(scale);
+        top.addSeparator(new Dimension(5, 0));
+        top.add(mode);
+        top.addSeparator(new Dimension(5, 0));
+        top.add(autoFeatures);
+        top.addSeparator(new Dimension(5, 0));
+        top.add(dense);
+        top.addSeparator(new Dimension(10, 0));
+        top.add(progress);
         solve.add(top, BorderLayout.NORTH);
 
         // 3D view container
@@ -119,34 +206,81 @@ public class MainFrame extends JFrame {
         solve.add(placeholder, BorderLayout.EAST);
 
         build.addActionListener(e -> {
-            try {
-                List<Point3D> cloud = OpenCVSFMConstructor.reconstructAll(processor);
-                if (cloudPanel == null) cloudPanel = new PointCloud3DPanel(cloud);
-                else cloudPanel.updatePoints(cloud);
-
-                view.removeAll();
-                view.add(cloudPanel, BorderLayout.CENTER);
-
-                if (controlPanel != null) solve.remove(controlPanel);
-                controlPanel = new SFMControlPanel(cloud);
-                controlPanel.setOnTransform(() -> {
-                    cloudPanel.updatePoints(controlPanel.getTransformedPoints());
-                });
-                controlPanel.getPointList().addListSelectionListener(evt -> {
-                    if (!evt.getValueIsAdjusting()) {
-                        cloudPanel.setActiveIndex(controlPanel.getPointList().getSelectedIndex());
-                    }
-                });
-
-                solve.remove(placeholder);
-                solve.add(controlPanel, BorderLayout.EAST);
-                solve.revalidate();
-                solve.repaint();
-            } catch (RuntimeException ex) {
-                JOptionPane.showMessageDialog(
-                        this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE
-                );
+            if (worker != null && !worker.isDone()) return;
+            build.setEnabled(false);
+            cancel.setEnabled(true);
+            progress.setIndeterminate(true);
+            progress.setString("Starting...");
+            progress.setVisible(true);
+            showPreview(view);
+
+            Runnable finish = () -> {
+                build.setEnabled(true);
+                cancel.setEnabled(false);
+                progress.setIndeterminate(false);
+            };
+            ChangeSet changes = processor.drainChanges();
+            Reconstruction base = lastReconstruction;
+            Path checkpoint = checkpointPath();
+            // точки и словарь изображений копируются здесь, в EDT: фоновая задача не читает редактируемые данные
+            Map<String, Map<String, Point2D>> points = OpenCVSFMConstructor.collectPoints(processor);
+            Map<String, model.Image> images = new HashMap<>(processor.getImages());
+            Function<ReconstructionListener, Reconstruction> job;
+            if (base != null && !changes.requiresFullRebuild()) {
+                job = listener -> OpenCVSFMConstructor.applyChanges(base, points, changes, listener);
+            } else {
+                ReconstructionOptions options = checkpointOptions(checkpoint);
+                options.setMode((ReconstructionOptions.Mode) mode.getSelectedItem());
+                if (autoFeatures.isSelected()) {
+                    FeatureOptions features = new FeatureOptions();
+                    features.setCacheDirectory(featureCachePath());
+                    options.setFeatures(features);
+                }
+                if (dense.isSelected()) {
+                    options.setDense(new DenseOptions());
+                }
+                job = listener -> OpenCVSFMConstructor.reconstruct(images, points, options, listener);
             }
+            // пока задача идёт, состояние может быть изменено наполовину
+            lastReconstruction = null;
+
+            worker = new ReconstructionWorker(
+                    job,
+                    event -> {
+                        progress.setIndeterminate(false);
+                        progress.setMaximum(event.getTotalCameras());
+                        progress.setValue(event.getCamerasRegistered());
+                        progress.setString(event.toString());
+                    },
+                    (run, delta) -> {
+                        // дельта прерванного запуска могла прийти уже после старта нового
+                        if (worker != null && worker.getRunId() == run) {
+                            cloudPanel.applyDelta(delta);
+                        }
+                    },
+                    recon -> {
+                        finish.run();
+                        lastReconstruction = recon;
+                        deleteCheckpoint(checkpoint);
+                        showCloud(OpenCVSFMConstructor.exportCloud(recon), solve, view, placeholder);
+                    },
+                    ex -> {
+                        finish.run();
+                        progress.setString("Failed");
+                        JOptionPane.showMessageDialog(
+                                this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE
+                        );
+                    },
+                    () -> {
+                        finish.run();
+                        progress.setString("Cancelled");
+                    }
+            );
+            worker.execute();
+        });
+
+        cancel.addActionListener(e -> {
+            if (worker != null) worker.cancel(true);
         });
 
         scale.addActionListener(evt -> {
@@ -168,6 +302,107 @@ public class MainFrame extends JFrame {
         return solve;
     }
 
+    /**
+     * Чекпоинт лежит рядом с файлом проекта (или во временной папке, пока проект не сохранён).
+     * Если он остался от прерванного запуска, предлагаем продолжить с него.
+     */
+    private ReconstructionOptions checkpointOptions(Path checkpoint) {
+        ReconstructionOptions options = new ReconstructionOptions();
+        options.setCheckpointPath(checkpoint);
+        if (Files.exists(checkpoint)) {
+            int answer = JOptionPane.showConfirmDialog(this,
+                    "An interrupted reconstruction was found. Resume from it?",
+                    "Resume", JOptionPane.YES_NO_OPTION);
+            options.setResume(answer == JOptionPane.YES_OPTION);
+        }
+        return options;
+    }
+
+    /** У несохранённого проекта чекпоинт определяется набором изображений, чтобы проекты не делили один файл. */
+    private Path checkpointPath() {
+        if (fileSavePath != null) {
+            return Paths.get(fileSavePath + ".ckpt");
+        }
+        List<String> images = Collections.list(processor.getImagesModel().elements());
+        Collections.sort(images);
+        String key = Integer.toHexString(String.join("\n", images).hashCode());
+        return Paths.get(System.getProperty("java.io.tmpdir"), "imagemodeler-" + key + ".ckpt");
+    }
+
+    /**
+     * Кэш признаков лежит рядом с файлом проекта; у несохранённого проекта — во временном
+     * каталоге этого запуска, который удаляется при выходе. Каждый запуск оставляет в кэше
+     * только текущие изображения, так что он не растёт больше проекта.
+     */
+    private Path featureCachePath() {
+        if (fileSavePath != null) {
+            return Paths.get(fileSavePath + ".features");
+        }
+        if (sessionFeatureCache == null) {
+            try {
+                sessionFeatureCache = Files.createTempDirectory("imagemodeler-features");
+            } catch (IOException e) {
+                System.err.println("Cannot create feature cache: " + e.getMessage());
+                return null;
+            }
+        }
+        return sessionFeatureCache;
+    }
+
+    private void deleteSessionFeatureCache() {
+        if (sessionFeatureCache == null) {
+            return;
+        }
+        FeatureCache.retainOnly(sessionFeatureCache, Collections.emptySet());
+        try {
+            Files.deleteIfExists(sessionFeatureCache);
+        } catch (IOException e) {
+            System.err.println("Cannot delete feature cache " + sessionFeatureCache + ": " + e.getMessage());
+        }
+    }
+
+    private void deleteCheckpoint(Path checkpoint) {
+        try {
+            Files.deleteIfExists(checkpoint);
+        } catch (IOException ignored) {
+            // устаревший чекпоинт просто будет предложен ещё раз
+        }
+    }
+
+    /** Очищает панель облака и показывает её, чтобы дельты реконструкции были видны сразу. */
+    private void showPreview(JPanel view) {
+        if (cloudPanel == null) cloudPanel = new PointCloud3DPanel(List.of());
+        else cloudPanel.updatePoints(List.of());
+        view.removeAll();
+        view.add(cloudPanel, BorderLayout.CENTER);
+        view.revalidate();
+        view.repaint();
+    }
+
+    private void showCloud(List<Point3D> cloud, JPanel solve, JPanel view, Component placeholder) {
+        if (cloudPanel == null) cloudPanel = new PointCloud3DPanel(cloud);
+        else cloudPanel.updatePoints(cloud);
+
+        view.removeAll();
+        view.add(cloudPanel, BorderLayout.CENTER);
+
+        if (controlPanel != null) solve.remove(controlPanel);
+        controlPanel = new SFMControlPanel(cloud);
+        controlPanel.setOnTransform(() -> {
+            cloudPanel.updatePoints(controlPanel.getTransformedPoints());
+        });
+        controlPanel.getPointList().addListSelectionListener(evt -> {
+            if (!evt.getValueIsAdjusting()) {
+                cloudPanel.setActiveIndex(controlPanel.getPointList().getSelectedIndex());
+            }
+        });
+
+        solve.remove(placeholder);
+        solve.add(controlPanel, BorderLayout.EAST);
+        solve.revalidate();
+        solve.repaint();
+    }
+
     private JPanel createSidePanel() {
         JPanel side = new JPanel(new GridLayout(2, 1));
         side.setPreferredSize(new Dimension(300, 0));
@@ -217,6 +452,10 @@ public class MainFrame extends JFrame {
             String path = c.getSelectedFile().getAbsolutePath();
             ImageProcessor loaded = ImageProcessor.load(path);
             processor.replaceWith(loaded);
+            fileSavePath = path;
+            lastSavedAt = null;
+            showSaveStatus();
+            lastReconstruction = null;
             imagesList.setModel(processor.getImagesModel());
             pointsList.setModel(processor.getPointsModel());
         } catch (Exception ex) {
@@ -240,11 +479,51 @@ public class MainFrame extends JFrame {
     }
 
     private void serializeProcessor() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(fileSavePath))) {
-            out.writeObject(processor);
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this,
-                    "Save failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        lastSaveRequest = System.currentTimeMillis();
+        saver.save(fileSavePath);
+    }
+
+    private void showSaveStatus() {
+        if (saver.isBusy()) {
+            saveStatus.setText("Saving…");
+        } else if (lastSaveFailed) {
+            saveStatus.setText("Save failed");
+        } else if (processor.isModified()) {
+            saveStatus.setText("Unsaved changes");
+        } else if (lastSavedAt != null) {
+            saveStatus.setText("Saved " + lastSavedAt);
+        } else {
+            saveStatus.setText(" ");
+        }
+    }
+
+    private void saveFailed(Throwable e) {
+        lastSaveFailed = true;
+        showSaveStatus();
+        JOptionPane.showMessageDialog(this,
+                "Save failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /** Раз в секунду: обновляет индикатор и, если пора, запускает автосохранение. */
+    private void autosaveTick() {
+        if (!saver.isBusy() && autosave.isSelected() && fileSavePath != null && processor.isModified()
+                && System.currentTimeMillis() - lastSaveRequest >= AUTOSAVE_INTERVAL_MS) {
+            serializeProcessor();
+        }
+        showSaveStatus();
+    }
+
+    /** Дописывает автосохранение и ждёт фоновую запись, чтобы выход не оборвал её. */
+    private void saveBeforeExit() {
+        if (autosave.isSelected() && fileSavePath != null && processor.isModified()) {
+            serializeProcessor();
+        }
+        try {
+            if (!saver.awaitIdle(EXIT_SAVE_TIMEOUT)) {
+                System.err.println("Exiting while the project is still being saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -1,6 +1,7 @@
 package ui.uiComponents;
 
 import lombok.Getter;
+import model.CloudDelta;
 import model.Point3D;
 
 import javax.swing.*;
@@ -13,6 +14,8 @@ import java.awt.event.*;
  */
 public class PointCloud3DPanel extends JPanel implements MouseWheelListener {
     private java.util.List<Point3D> cloud;
+    // позиция точки в cloud по имени — для применения дельт без копирования
+    private final java.util.Map<String, Integer> indexByName = new java.util.HashMap<>();
     private int activeIndex = -1;
 
     // Зум и шаг зума
@@ -34,6 +37,7 @@ public class PointCloud3DPanel extends JPanel implements MouseWheelListener {
 
     public PointCloud3DPanel(java.util.List<Point3D> cloud) {
         this.cloud = new java.util.ArrayList<>(cloud);
+        reindex();
         setBackground(Color.BLACK);
         addMouseWheelListener(this);
 
@@ -55,9 +59,45 @@ public class PointCloud3DPanel extends JPanel implements MouseWheelListener {
     public void updatePoints(java.util.List<Point3D> pts) {
         this.cloud = new java.util.ArrayList<>(pts);
         this.activeIndex = -1;
+        reindex();
         repaint();
     }
 
+    /**
+     * Применить дельту живого превью: новые точки дописываются в конец,
+     * сдвинутые заменяются на месте, удалённые вынимаются перестановкой с последней.
+     */
+    public void applyDelta(CloudDelta delta) {
+        for (String name : delta.getRemoved()) {
+            Integer idx = indexByName.remove(name);
+            if (idx == null) continue;
+            int last = cloud.size() - 1;
+            Point3D moved = cloud.remove(last);
+            if (idx != last) {
+                cloud.set(idx, moved);
+                indexByName.put(moved.getName(), idx);
+            }
+        }
+        for (java.util.Map.Entry<String, Point3D> e : delta.getUpserted().entrySet()) {
+            Integer idx = indexByName.get(e.getKey());
+            if (idx != null) {
+                cloud.set(idx, e.getValue());
+            } else {
+                indexByName.put(e.getKey(), cloud.size());
+                cloud.add(e.getValue());
+            }
+        }
+        activeIndex = -1;
+        repaint();
+    }
+
+    private void reindex() {
+        indexByName.clear();
+        for (int i = 0; i < cloud.size(); i++) {
+            indexByName.put(cloud.get(i).getName(), i);
+        }
+    }
+
     /** Установить индекс активной точки и перерисовать. */
     public void setActiveIndex(int idx) {
         this.activeIndex = idx;
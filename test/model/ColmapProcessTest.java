@@ -0,0 +1,147 @@
+package model;
+
+import model.ColmapSFMConstructor.ColmapException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Запуск команд COLMAP на поддельном исполняемом файле: скрипт печатает строки прогресса,
+ * завершается с ошибкой или зависает вместе с дочерним процессом, смотря по стадии.
+ */
+@DisabledOnOs(OS.WINDOWS)
+class ColmapProcessTest {
+    private static final String FAKE_COLMAP = String.join("\n",
+            "#!/bin/sh",
+            "case \"$1\" in",
+            "  --version) echo 'COLMAP 3.9 (fake)';;",
+            "  feature_extractor) for i in 1 2 3; do echo \"Processed file [$i/3]\"; done;;",
+            "  exhaustive_matcher) echo 'Matching block [1/2, 2/2]'; echo 'Matching block [2/2, 2/2]';;",
+            "  mapper) echo 'Registering image #7 (3)';;",
+            "  fail) i=1; while [ $i -le 40 ]; do echo \"line $i\"; i=$((i+1)); done; echo 'boom' >&2; exit 3;;",
+            // дочерний процесс, который должен быть убит вместе со скриптом
+            "  hang) sleep 1000 & echo $! > \"$2\"; wait;;",
+            "esac",
+            "");
+
+    @TempDir
+    Path dir;
+    private String colmap;
+
+    @BeforeEach
+    void writeFakeColmap() throws Exception {
+        Path script = dir.resolve("colmap");
+        Files.write(script, FAKE_COLMAP.getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+        colmap = script.toString();
+    }
+
+    @Test
+    void reportsProgressOfEveryStage() throws Exception {
+        List<ColmapProgress> events = new CopyOnWriteArrayList<>();
+        ColmapSFMConstructor.runCommand(List.of(colmap, "feature_extractor"), dir, null, events::add);
+        ColmapSFMConstructor.runCommand(List.of(colmap, "exhaustive_matcher"), dir, null, events::add);
+        ColmapSFMConstructor.runCommand(List.of(colmap, "mapper"), dir, null, events::add);
+
+        assertEquals(6, events.size());
+        assertEquals("feature_extractor", events.get(0).getStage());
+        assertEquals(1, events.get(0).getDone());
+        assertEquals(3, events.get(2).getDone());
+        assertEquals(3, events.get(2).getTotal());
+        // блок (1, 2) из сетки 2x2
+        assertEquals(2, events.get(3).getDone());
+        assertEquals(4, events.get(3).getTotal());
+        assertEquals(4, events.get(4).getDone());
+        assertEquals("mapper", events.get(5).getStage());
+        assertEquals(3, events.get(5).getRegisteredImages());
+    }
+
+    @Test
+    void failedCommandReportsExitCodeAndOutputTail() {
+        ColmapException e = assertThrows(ColmapException.class, () ->
+                ColmapSFMConstructor.runCommand(List.of(colmap, "fail"), dir, null, null));
+
+        assertTrue(e.getMessage().contains("exit 3"), e.getMessage());
+        assertTrue(e.getMessage().contains("boom"), e.getMessage());
+        assertTrue(e.getMessage().contains("line 40"), e.getMessage());
+        // в сообщение попадают только последние строки вывода
+        assertFalse(e.getMessage().contains("line 5\n"), e.getMessage());
+    }
+
+    @Test
+    void timeoutKillsTheProcessTree() throws Exception {
+        Path pidFile = dir.resolve("child.pid");
+        ColmapException e = assertThrows(ColmapException.class, () ->
+                ColmapSFMConstructor.runCommand(List.of(colmap, "hang", pidFile.toString()), dir,
+                        Duration.ofMillis(500), null));
+
+        assertTrue(e.getMessage().contains("did not finish"), e.getMessage());
+        assertChildKilled(pidFile);
+    }
+
+    @Test
+    void interruptKillsTheProcessTree() throws Exception {
+        Path pidFile = dir.resolve("child.pid");
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread runner = new Thread(() -> {
+            try {
+                ColmapSFMConstructor.runCommand(List.of(colmap, "hang", pidFile.toString()), dir, null, null);
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+        runner.start();
+        waitForPid(pidFile);
+        runner.interrupt();
+        runner.join(10_000);
+
+        assertFalse(runner.isAlive());
+        assertInstanceOf(InterruptedException.class, thrown.get());
+        assertChildKilled(pidFile);
+    }
+
+    @Test
+    void missingExecutableIsReported() {
+        ColmapOptions options = new ColmapOptions();
+        options.setExecutable(dir.resolve("no-such-colmap").toString());
+
+        ColmapException e = assertThrows(ColmapException.class, () ->
+                ColmapSFMConstructor.reconstructAll(new ImageProcessor(), dir.resolve("ws"), options, null));
+        assertTrue(e.getMessage().startsWith("COLMAP not found"), e.getMessage());
+    }
+
+    private static long waitForPid(Path pidFile) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(pidFile)) {
+                String pid = Files.readString(pidFile).trim();
+                if (!pid.isEmpty()) {
+                    return Long.parseLong(pid);
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Fake COLMAP did not start its child process");
+    }
+
+    private static void assertChildKilled(Path pidFile) throws Exception {
+        long pid = waitForPid(pidFile);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Child process " + pid + " is still running");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проект, сохранённый прежней версией как сериализованный {@code ImageProcessor}:
+ * два изображения 8x6 с красным пикселем в (1, 2) и (2, 2) и точками p1, p2 на каждом.
+ */
+class LegacyProjectTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsProjectSerializedByOlderVersion() throws Exception {
+        ImageProcessor proc = ImageProcessor.load(copyFixture().toString());
+
+        assertEquals(2, proc.getImages().size());
+        for (int i = 0; i < 2; i++) {
+            Image image = proc.getImage("img" + i + ".png");
+            BufferedImage pixels = image.getBufferedImage();
+            assertEquals(8, pixels.getWidth());
+            assertEquals(6, pixels.getHeight());
+            assertEquals(0xFF0000, pixels.getRGB(1 + i, 2) & 0xFFFFFF);
+
+            List<Point2D> points = image.getPoints();
+            assertEquals(2, points.size());
+            assertEquals("p1", points.get(0).getName());
+            assertEquals(3 + i, points.get(0).getX());
+            assertEquals(4, points.get(0).getY());
+            assertEquals(1 + i, points.get(1).getY());
+        }
+        assertEquals("img1.png", proc.getActiveImagePath());
+        assertEquals("p2", proc.getActivePoint().getName());
+    }
+
+    @Test
+    void resavesOlderProjectInCurrentFormat() throws Exception {
+        ImageProcessor proc = ImageProcessor.load(copyFixture().toString());
+        Path saved = dir.resolve("resaved.mdlr");
+        proc.save(saved.toString());
+
+        ImageProcessor reopened = ImageProcessor.load(saved.toString());
+        assertEquals(2, reopened.getImages().size());
+        assertEquals(0xFF0000, reopened.getImage("img0.png").getBufferedImage().getRGB(1, 2) & 0xFFFFFF);
+        assertEquals(4, reopened.getImage("img0.png").getPoints().get(0).getY());
+    }
+
+    private Path copyFixture() throws Exception {
+        Path file = dir.resolve("legacy.mdlr");
+        try (InputStream in = getClass().getResourceAsStream("legacy-project.mdlr")) {
+            assertNotNull(in, "legacy-project.mdlr fixture is missing");
+            Files.copy(in, file);
+        }
+        return file;
+    }
+}